@@ -0,0 +1,111 @@
+package com.searover.photogallery.provider;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Serves synthetic catalogs from a local file through {@link FilePageLoader}, up to a million
+ * entries.
+ */
+public class FilePageLoaderTest extends TestCase {
+    static final int MILLION = 1000 * 1000;
+    private static final int PAGE_SIZE = 500;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mFile = File.createTempFile("catalog", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * @param index
+     * @return The URL a synthetic catalog has at the index
+     */
+    static String url(int index){
+        return "http://img.example.com/photos/" + index / 1000 + "/" + index + ".jpg";
+    }
+
+    static void writeCatalog(File file, int count, boolean trailingNewline) throws IOException{
+        final BufferedWriter writer = new BufferedWriter(new FileWriter(file), 64 * 1024);
+        try {
+            for(int i = 0; i < count; i++){
+                writer.write(url(i));
+                if(i < count - 1 || trailingNewline){
+                    writer.write('\n');
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @LargeTest
+    public void testMillionEntryCatalog() throws IOException{
+        writeCatalog(mFile, MILLION, true);
+        final FilePageLoader loader = new FilePageLoader(mFile, PAGE_SIZE);
+        assertEquals(MILLION, loader.getCount());
+
+        // The first, the last and random pages, all served by seeking into the file
+        checkPage(loader, 0);
+        checkPage(loader, MILLION - PAGE_SIZE);
+        final Random random = new Random(32);
+        for(int i = 0; i < 50; i++){
+            checkPage(loader, random.nextInt(MILLION / PAGE_SIZE) * PAGE_SIZE);
+        }
+    }
+
+    public void testPagesNotOnTheIndexStride() throws IOException{
+        writeCatalog(mFile, 1234, true);
+        final FilePageLoader loader = new FilePageLoader(mFile, 100);
+        final UrlPage page = loader.loadPage(150, 77);
+        assertEquals(150, page.getFirstIndex());
+        assertEquals(77, page.size());
+        for(int i = 150; i < 227; i++){
+            assertEquals(url(i), page.getUrl(i));
+        }
+    }
+
+    public void testLastPageIsShort() throws IOException{
+        writeCatalog(mFile, 1010, false);
+        final FilePageLoader loader = new FilePageLoader(mFile, PAGE_SIZE);
+        assertEquals(1010, loader.getCount());
+        final UrlPage page = loader.loadPage(1000, PAGE_SIZE);
+        assertEquals(10, page.size());
+        // Without a trailing newline the last line is still read in full
+        assertEquals(url(1009), page.getUrl(1009));
+        assertEquals(0, loader.loadPage(1010, PAGE_SIZE).size());
+    }
+
+    public void testWindowsLineEndings() throws IOException{
+        final FileWriter writer = new FileWriter(mFile);
+        writer.write(url(0) + "\r\n" + url(1) + "\r\n");
+        writer.close();
+        final FilePageLoader loader = new FilePageLoader(mFile, PAGE_SIZE);
+        assertEquals(2, loader.getCount());
+        assertEquals(url(1), loader.loadPage(0, PAGE_SIZE).getUrl(1));
+    }
+
+    private static void checkPage(FilePageLoader loader, int firstIndex) throws IOException{
+        final UrlPage page = loader.loadPage(firstIndex, PAGE_SIZE);
+        assertEquals(firstIndex, page.getFirstIndex());
+        assertEquals(PAGE_SIZE, page.size());
+        for(int i = firstIndex; i < firstIndex + PAGE_SIZE; i++){
+            assertEquals(url(i), page.getUrl(i));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.searover.photogallery.provider;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the heap a catalog of 100k and of 1M URLs takes as a String array and as a
+ * {@link FrontCodedStringTable}, and how long a lookup by index takes. A million Strings may not
+ * fit in the heap of a small device, which is logged as such. The heap figures are the
+ * growth of the used heap after a forced collection, so run this on an otherwise idle process
+ * and read them from logcat under the tag of this class.
+ */
+@LargeTest
+public class FrontCodedStringTableBenchmark extends TestCase {
+    private static final String TAG = "FrontCodedBenchmark";
+    private static final int LOOKUPS = 100 * 1000;
+
+    // Keeps what is being measured reachable through the collection in usedHeap
+    private Object mMeasured;
+
+    public void testHundredThousand(){
+        measure(100 * 1000);
+    }
+
+    public void testMillion(){
+        measure(FilePageLoaderTest.MILLION);
+    }
+
+    private void measure(int count){
+        long before = usedHeap();
+        long stringBytes;
+        try {
+            final String[] strings = new String[count];
+            for(int i = 0; i < count; i++){
+                strings[i] = FilePageLoaderTest.url(i);
+            }
+            mMeasured = strings;
+            stringBytes = usedHeap() - before;
+        } catch (OutOfMemoryError e) {
+            // Which is the point of the table
+            stringBytes = -1;
+        }
+        mMeasured = null;
+
+        before = usedHeap();
+        final FrontCodedStringTable table =
+                FrontCodedStringTableTest.build(count, FrontCodedStringTable.DEFAULT_BLOCK_SIZE);
+        mMeasured = table;
+        final long tableBytes = usedHeap() - before;
+
+        final FrontCodedStringTable.Cursor cursor = table.newCursor();
+        int hash = 0;
+        final long start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++){
+            hash += cursor.moveTo((int) ((long) i * 7919 % count)).length();
+        }
+        final long lookupNanos = (System.nanoTime() - start) / LOOKUPS;
+
+        Log.i(TAG, count + " URLs: String[] "
+                + (stringBytes >= 0 ? stringBytes / 1024 + "KB" : "out of memory") + ", table "
+                + tableBytes / 1024 + "KB (" + table.getByteSize() / 1024 + "KB of data), "
+                + lookupNanos + "ns per lookup");
+        assertTrue(hash > 0);
+        if(stringBytes >= 0){
+            assertTrue("table " + tableBytes + " bytes, strings " + stringBytes + " bytes",
+                    tableBytes < stringBytes);
+        }
+        mMeasured = null;
+    }
+
+    private static long usedHeap(){
+        final Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++){
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
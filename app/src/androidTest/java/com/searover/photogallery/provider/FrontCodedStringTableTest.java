@@ -0,0 +1,93 @@
+package com.searover.photogallery.provider;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link FrontCodedStringTable} gives back every string it was built from.
+ */
+public class FrontCodedStringTableTest extends TestCase {
+
+    public void testRandomAccess(){
+        final int count = 10 * 1000;
+        final FrontCodedStringTable table = build(count, FrontCodedStringTable.DEFAULT_BLOCK_SIZE);
+        assertEquals(count, table.size());
+        final Random random = new Random(33);
+        for(int i = 0; i < count; i++){
+            final int index = random.nextInt(count);
+            assertEquals(FilePageLoaderTest.url(index), table.getString(index));
+        }
+    }
+
+    public void testBlockSizes(){
+        for(int blockSize : new int[]{1, 2, 7, 16, 64}){
+            final FrontCodedStringTable table = build(300, blockSize);
+            for(int i = 0; i < 300; i++){
+                assertEquals("block size " + blockSize, FilePageLoaderTest.url(i),
+                        table.getString(i));
+            }
+        }
+    }
+
+    public void testPrefixesAreShared(){
+        final FrontCodedStringTable table = build(1000, FrontCodedStringTable.DEFAULT_BLOCK_SIZE);
+        int chars = 0;
+        for(int i = 0; i < 1000; i++){
+            chars += FilePageLoaderTest.url(i).length();
+        }
+        assertTrue("table of " + table.getByteSize() + " bytes for " + chars + " chars",
+                table.getByteSize() < chars / 2);
+    }
+
+    public void testUnsortedAndEmptyAndNonAscii(){
+        final String[] values = {"http://b.example.com/z", "", "http://a.example.com/\u00e9/\u00fc",
+                "http://a.example.com/", "http://a.example.com/\u00e9/\u00fc/\u00df", "x"};
+        final FrontCodedStringTable.Builder builder = new FrontCodedStringTable.Builder(4);
+        for(String value : values){
+            builder.add(value);
+        }
+        final FrontCodedStringTable table = builder.build();
+        for(int i = 0; i < values.length; i++){
+            assertEquals(values[i], table.getString(i));
+        }
+    }
+
+    public void testCursorMovesWithoutNewBuffers(){
+        final FrontCodedStringTable table = build(100, 8);
+        final FrontCodedStringTable.Cursor cursor = table.newCursor();
+        final byte[] bytes = cursor.moveTo(0).bytes();
+        for(int i = 99; i >= 0; i--){
+            assertSame(cursor, cursor.moveTo(i));
+            assertSame(bytes, cursor.bytes());
+            final String expected = FilePageLoaderTest.url(i);
+            assertEquals(expected.length(), cursor.length());
+            for(int c = 0; c < expected.length(); c++){
+                assertEquals(expected.charAt(c), cursor.charAt(c));
+            }
+            assertEquals(expected, cursor.toString());
+        }
+    }
+
+    public void testOutOfBounds(){
+        final FrontCodedStringTable table = build(10, 4);
+        try {
+            table.getString(10);
+            fail("Read past the end");
+        } catch (IndexOutOfBoundsException e) {
+        }
+        try {
+            table.getString(-1);
+            fail("Read before the start");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    static FrontCodedStringTable build(int count, int blockSize){
+        final FrontCodedStringTable.Builder builder = new FrontCodedStringTable.Builder(blockSize);
+        for(int i = 0; i < count; i++){
+            builder.add(FilePageLoaderTest.url(i));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,96 @@
+package com.searover.photogallery.provider;
+
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link PagedPhotoCatalog} over a million-entry file on the UI thread, as the adapter
+ * does, and checks that only a window of pages stays resident.
+ */
+@LargeTest
+public class PagedPhotoCatalogTest extends InstrumentationTestCase {
+    private static final int PAGE_SIZE = 500;
+    private static final int RESIDENT_PAGES = 3;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private File mFile;
+    private PagedPhotoCatalog mCatalog;
+    private final Semaphore mChanges = new Semaphore(0);
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mFile = File.createTempFile("catalog", ".txt");
+        FilePageLoaderTest.writeCatalog(mFile, FilePageLoaderTest.MILLION, true);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mCatalog = new PagedPhotoCatalog(new FilePageLoader(mFile, PAGE_SIZE), PAGE_SIZE,
+                        RESIDENT_PAGES);
+                mCatalog.setOnCatalogChangedListener(
+                        new PagedPhotoCatalog.OnCatalogChangedListener() {
+                            @Override
+                            public void onCatalogChanged() {
+                                mChanges.release();
+                            }
+                        });
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPagesLoadInTheBackgroundAndAreEvicted() throws Exception{
+        // Nothing is known until the count has been read off the UI thread
+        assertEquals(0, getCount());
+        awaitChange();
+        assertEquals(FilePageLoaderTest.MILLION, getCount());
+
+        final int[] indexes = {0, 250 * 1000, 500 * 1000, FilePageLoaderTest.MILLION - 1};
+        for(int index : indexes){
+            assertNull(getUrl(index));
+            awaitChange();
+            assertEquals(FilePageLoaderTest.url(index), getUrl(index));
+        }
+        // Four pages were loaded into a window of three, the least recently used one is gone
+        assertNull(getUrl(indexes[0]));
+        assertEquals(FilePageLoaderTest.url(indexes[3] - 1), getUrl(indexes[3] - 1));
+        awaitChange();
+        assertEquals(FilePageLoaderTest.url(indexes[0]), getUrl(indexes[0]));
+    }
+
+    private void awaitChange() throws InterruptedException{
+        assertTrue("No change within " + TIMEOUT_SECONDS + "s",
+                mChanges.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private int getCount(){
+        final int[] count = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = mCatalog.getCount();
+            }
+        });
+        return count[0];
+    }
+
+    private String getUrl(final int index){
+        final String[] url = new String[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                url[0] = mCatalog.getUrl(index);
+            }
+        });
+        return url[0];
+    }
+}
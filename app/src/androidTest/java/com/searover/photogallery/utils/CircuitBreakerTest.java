@@ -0,0 +1,97 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * The circuit breaker of {@link RequestPolicy}, its trial request in particular.
+ */
+public class CircuitBreakerTest extends TestCase {
+    private static final int THRESHOLD = 3;
+
+    private static RequestPolicy.CircuitBreaker open(long cooldown){
+        final RequestPolicy.CircuitBreaker breaker =
+                new RequestPolicy.CircuitBreaker("example.com", THRESHOLD, cooldown);
+        for(int i = 0; i < THRESHOLD; i++){
+            assertTrue(breaker.allowRequest());
+            breaker.onFailure();
+        }
+        return breaker;
+    }
+
+    /**
+     * @return Whether another thread is allowed a request, which it then abandons
+     */
+    private static boolean allowedOnOtherThread(final RequestPolicy.CircuitBreaker breaker)
+            throws InterruptedException{
+        final boolean[] allowed = new boolean[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                allowed[0] = breaker.allowRequest();
+                if(allowed[0]){
+                    breaker.onAbandoned();
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        return allowed[0];
+    }
+
+    public void testOpensAfterFailuresInARow(){
+        final RequestPolicy.CircuitBreaker breaker =
+                new RequestPolicy.CircuitBreaker("example.com", THRESHOLD, 60 * 1000);
+        for(int i = 0; i < THRESHOLD - 1; i++){
+            breaker.onFailure();
+        }
+        breaker.onSuccess();
+        breaker.onFailure();
+        assertTrue(breaker.allowRequest());
+
+        final RequestPolicy.CircuitBreaker open = open(60 * 1000);
+        assertFalse(open.allowRequest());
+    }
+
+    public void testOneTrialAfterCooldown() throws InterruptedException{
+        final RequestPolicy.CircuitBreaker breaker = open(0);
+        assertTrue(breaker.allowRequest());
+        assertFalse(allowedOnOtherThread(breaker));
+        breaker.onSuccess();
+        assertTrue(allowedOnOtherThread(breaker));
+    }
+
+    public void testFailedTrialOpensAgain(){
+        final RequestPolicy.CircuitBreaker breaker = open(60 * 1000);
+        assertFalse(breaker.allowRequest());
+
+        final RequestPolicy.CircuitBreaker trial = open(0);
+        assertTrue(trial.allowRequest());
+        trial.onFailure();
+        // Still past the threshold, the next trial waits for the cool down, which is over
+        assertTrue(trial.allowRequest());
+    }
+
+    public void testAbandonedTrialLetsTheNextOneThrough() throws InterruptedException{
+        final RequestPolicy.CircuitBreaker breaker = open(0);
+        assertTrue(breaker.allowRequest());
+        // The trial was cancelled
+        breaker.onAbandoned();
+        assertTrue(allowedOnOtherThread(breaker));
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testAbandonedRequestKeepsTheTrialOfAnother() throws InterruptedException{
+        final RequestPolicy.CircuitBreaker breaker = open(0);
+        final Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                breaker.onAbandoned();
+            }
+        });
+        assertTrue(breaker.allowRequest());
+        other.start();
+        other.join();
+        assertFalse(allowedOnOtherThread(breaker));
+        breaker.onSuccess();
+    }
+}
@@ -0,0 +1,116 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Deduplication of the bodies in an HTTP cache by {@link ContentStore}.
+ */
+public class ContentStoreTest extends TestCase {
+    private static final int BODY_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private ContentStore mStore;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mDirectory = File.createTempFile("contentstore", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mCache = DiskLruCache.open(mDirectory, 1, 2, 1024 * 1024);
+        mStore = new ContentStore(mCache, BODY_INDEX);
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mCache.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    private void putUrl(String key, String body) throws IOException{
+        final DiskLruCache.Editor editor = mCache.edit(key);
+        editor.set(BODY_INDEX, body);
+        editor.set(METADATA_INDEX, "");
+        editor.commit();
+    }
+
+    private String readBody(String key) throws IOException{
+        final DiskLruCache.Snapshot snapshot = mCache.get(key);
+        assertNotNull(snapshot);
+        final HttpCacheMetadata metadata =
+                HttpCacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+        final InputStream in = mStore.openBody(snapshot, metadata);
+        if(in == null){
+            return null;
+        }
+        final StringBuilder body = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1){
+            body.append((char) b);
+        }
+        in.close();
+        return body.toString();
+    }
+
+    private long references(String digest) throws IOException{
+        return HttpCacheMetadata.parseLong(mCache.peekString(digest, METADATA_INDEX), 0);
+    }
+
+    public void testSameContentIsStoredOnce() throws IOException{
+        putUrl("a", "same image");
+        putUrl("b", "same image");
+        final String digest = mStore.intern("a");
+        assertNotNull(digest);
+        assertEquals(digest, mStore.intern("b"));
+        assertEquals(1, mStore.getShared());
+        assertEquals(2, references(digest));
+        assertEquals("same image", readBody("a"));
+        assertEquals("same image", readBody("b"));
+    }
+
+    public void testReleaseRemovesTheLastReference() throws IOException{
+        putUrl("a", "image");
+        final String digest = mStore.intern("a");
+        mStore.release(digest);
+        assertNull(mCache.peekString(digest, METADATA_INDEX));
+        assertNull(readBody("a"));
+    }
+
+    public void testBlobBeingWrittenAbortsIntern() throws IOException{
+        putUrl("a", "image");
+        final String digest = mStore.intern("a");
+        putUrl("b", "image");
+        // Whoever writes the blob holds its editor, the count can't change meanwhile
+        final DiskLruCache.Editor editor = mCache.edit(digest);
+        assertNull(mStore.intern("b"));
+        editor.abort();
+        assertEquals(1, references(digest));
+        // Stays a plain entry with its own body
+        assertEquals("image", readBody("b"));
+        assertEquals(0, mStore.getShared());
+    }
+
+    public void testEvictionDropsTheReferenceWithoutAHit() throws IOException{
+        putUrl("a", "image");
+        putUrl("b", "image");
+        final String digest = mStore.intern("a");
+        mStore.intern("b");
+        final long hits = mCache.getHitCount();
+        final long misses = mCache.getMissCount();
+        // Evict everything but the most recent entry
+        mCache.setMaxSize(1);
+        mCache.flush();
+        assertEquals(hits, mCache.getHitCount());
+        assertEquals(misses, mCache.getMissCount());
+        mCache.setMaxSize(1024 * 1024);
+        assertNull(mCache.peekString("a", METADATA_INDEX));
+        assertNull(mCache.peekString(digest, METADATA_INDEX));
+    }
+}
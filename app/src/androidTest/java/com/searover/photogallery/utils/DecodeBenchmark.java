@@ -0,0 +1,80 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.searover.photogallery.R;
+
+/**
+ * Decodes a bundled image over and over, once with Options from {@link DecodeContext} and once
+ * with new Options for every decode as before, and logs the objects and bytes each decode
+ * allocates on the decoding thread. Read the figures from logcat under the tag of this class.
+ */
+@LargeTest
+public class DecodeBenchmark extends AndroidTestCase {
+    private static final String TAG = "DecodeBenchmark";
+    private static final int WARMUP = 10;
+    private static final int DECODES = 200;
+    private static final int SIZE = 100;
+
+    public void testAllocationsPerDecode(){
+        for(int i = 0; i < WARMUP; i++){
+            recycle(decodePooled());
+        }
+        final long decodesBefore = DecodeContext.getDecodeCount();
+        final long allocationsBefore = DecodeContext.getAllocationCount();
+        final float[] pooled = measure(true);
+        final float[] fresh = measure(false);
+        Log.i(TAG, "DecodeContext: " + pooled[0] + " objects, " + pooled[1] + " bytes per decode");
+        Log.i(TAG, "new Options: " + fresh[0] + " objects, " + fresh[1] + " bytes per decode");
+
+        // Once the thread has its context, decodes don't allocate Options or temp storage
+        assertEquals(DECODES, DecodeContext.getDecodeCount() - decodesBefore);
+        assertEquals(0, DecodeContext.getAllocationCount() - allocationsBefore);
+    }
+
+    /**
+     * @param pooled
+     * @return Objects and bytes allocated per decode
+     */
+    @SuppressWarnings("deprecation")
+    private float[] measure(boolean pooled){
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for(int i = 0; i < DECODES; i++){
+            recycle(pooled ? decodePooled() : decodeFresh());
+        }
+        Debug.stopAllocCounting();
+        return new float[]{(float) Debug.getThreadAllocCount() / DECODES,
+                (float) Debug.getThreadAllocSize() / DECODES};
+    }
+
+    private Bitmap decodePooled(){
+        return ImageResizer.decodeSampleBitmapFromResource(getContext().getResources(),
+                R.drawable.empty_photo, SIZE, SIZE, null);
+    }
+
+    /**
+     * The decode as it was before DecodeContext
+     * @return
+     */
+    private Bitmap decodeFresh(){
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(getContext().getResources(), R.drawable.empty_photo, options);
+        options.inSampleSize = ImageResizer.calculateInSampleSize(options, SIZE, SIZE);
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeResource(getContext().getResources(), R.drawable.empty_photo,
+                options);
+    }
+
+    private static void recycle(Bitmap bitmap){
+        if(bitmap != null){
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.searover.photogallery.utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Eviction order of {@link DiskLruCache} with hot keys, see
+ * {@link DiskLruCache#setHotKeys(String, float)}, and the partial entries interrupted downloads
+ * leave to be resumed.
+ */
+public class DiskLruCacheTest extends TestCase {
+    private static final String TAG = "DiskLruCacheTest";
+    private static final String HOT = "t";
+    private static final int MAX_SIZE = 1000;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mDirectory = File.createTempFile("disklrucache", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+        mCache = DiskLruCache.open(mDirectory, 1, 2, MAX_SIZE);
+        mCache.setHotKeys(HOT, 0.5f);
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mCache.delete();
+        mDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Write an entry of {@code length} bytes, all of them in the first value.
+     * @param cache
+     * @param key
+     * @param length
+     * @throws IOException
+     */
+    static void put(DiskLruCache cache, String key, int length) throws IOException{
+        final char[] value = new char[length];
+        Arrays.fill(value, 'x');
+        final DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, new String(value));
+        editor.set(1, "");
+        editor.commit();
+    }
+
+    private boolean contains(String key) throws IOException{
+        final DiskLruCache.Snapshot snapshot = mCache.get(key);
+        if(snapshot == null){
+            return false;
+        }
+        snapshot.close();
+        return true;
+    }
+
+    public void testColdEntriesGoFirst() throws IOException{
+        put(mCache, HOT + 0, 100);
+        for(int i = 0; i < 10; i++){
+            put(mCache, "c" + i, 100);
+        }
+        mCache.flush();
+        assertTrue(mCache.size() <= MAX_SIZE);
+        // The hot entry is the eldest but under its share
+        assertTrue(contains(HOT + 0));
+        assertFalse(contains("c0"));
+        assertTrue(contains("c1"));
+    }
+
+    public void testHotEntriesOverTheirShareGo() throws IOException{
+        for(int i = 0; i < 6; i++){
+            put(mCache, HOT + i, 100);
+        }
+        for(int i = 0; i < 5; i++){
+            put(mCache, "c" + i, 100);
+        }
+        mCache.flush();
+        // 600 hot bytes are over the share of 500, the eldest hot entry makes room
+        assertFalse(contains(HOT + 0));
+        assertTrue(contains(HOT + 1));
+        for(int i = 0; i < 5; i++){
+            assertTrue(contains("c" + i));
+        }
+    }
+
+    public void testHotSizeFollowsReplaceAndRemove() throws IOException{
+        for(int i = 0; i < 5; i++){
+            put(mCache, HOT + i, 100);
+        }
+        // Shrinking and removing hot entries brings them back under their share
+        put(mCache, HOT + 0, 10);
+        assertTrue(mCache.remove(HOT + 1));
+        for(int i = 0; i < 8; i++){
+            put(mCache, "c" + i, 100);
+        }
+        mCache.flush();
+        assertTrue(contains(HOT + 0));
+        assertTrue(contains(HOT + 2));
+        assertFalse(contains("c0"));
+    }
+
+    public void testHotKeysSetOnAnOpenCache() throws IOException{
+        mCache.setHotKeys(null, 0f);
+        for(int i = 0; i < 6; i++){
+            put(mCache, HOT + i, 100);
+        }
+        for(int i = 0; i < 4; i++){
+            put(mCache, "c" + i, 100);
+        }
+        // Counts the hot entries that are there already
+        mCache.setHotKeys(HOT, 0.5f);
+        put(mCache, "c4", 100);
+        mCache.flush();
+        assertFalse(contains(HOT + 0));
+        assertTrue(contains("c0"));
+    }
+
+    public void testOnlyEditedEntriesLeft() throws IOException{
+        final DiskLruCache.Editor editor = mCache.edit(HOT + 0);
+        put(mCache, "c0", 600);
+        put(mCache, "c1", 600);
+        mCache.flush();
+        assertFalse(contains("c0"));
+        editor.abort();
+    }
+
+    /**
+     * Start an entry the way a download does, metadata first, and write part of its body.
+     */
+    private static DiskLruCache.Editor startPartial(DiskLruCache cache, String key, String body)
+            throws IOException{
+        final DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(1, "etag");
+        final OutputStream out = editor.newOutputStream(0);
+        out.write(body.getBytes());
+        out.close();
+        return editor;
+    }
+
+    private static void assertPartial(DiskLruCache cache, String key, String body)
+            throws IOException{
+        assertNull(cache.get(key));
+        final DiskLruCache.Editor editor = cache.edit(key);
+        assertEquals(body.length(), editor.getPartialLength(0));
+        assertEquals("etag", editor.getPartialString(1));
+        final OutputStream out = editor.newOutputStream(0, true);
+        out.write(" and the rest".getBytes());
+        out.close();
+        editor.set(1, "etag");
+        editor.commit();
+        final DiskLruCache.Snapshot snapshot = cache.get(key);
+        assertEquals(body + " and the rest", snapshot.getString(0));
+        snapshot.close();
+    }
+
+    public void testPartialEntryResumes() throws IOException{
+        startPartial(mCache, "p", "the start").abortKeepingPartial();
+        assertEquals("the start".length() + "etag".length(), mCache.size());
+        assertPartial(mCache, "p", "the start");
+    }
+
+    public void testPartialEntrySurvivesReopening() throws IOException{
+        startPartial(mCache, "p", "the start").abortKeepingPartial();
+        mCache.close();
+        mCache = DiskLruCache.open(mDirectory, 1, 2, MAX_SIZE);
+        assertEquals("the start".length() + "etag".length(), mCache.size());
+        assertPartial(mCache, "p", "the start");
+    }
+
+    public void testEditOfAKilledProcessIsKept() throws IOException{
+        // Never finished, as if the process died in the middle of the download
+        startPartial(mCache, "p", "the start");
+        mCache.flush();
+        mCache = DiskLruCache.open(mDirectory, 1, 2, MAX_SIZE);
+        assertPartial(mCache, "p", "the start");
+    }
+
+    public void testAbortDropsThePartialEntry() throws IOException{
+        startPartial(mCache, "p", "the start").abortKeepingPartial();
+        final DiskLruCache.Editor editor = mCache.edit("p");
+        editor.abort();
+        assertEquals(0, mCache.size());
+        final DiskLruCache.Editor again = mCache.edit("p");
+        assertEquals(0, again.getPartialLength(0));
+        again.abort();
+    }
+
+    public void testPartialOfACommittedEntryIsNotKept() throws IOException{
+        put(mCache, "p", 10);
+        // Only first edits are resumable, a committed value stays as it was
+        startPartial(mCache, "p", "new").abortKeepingPartial();
+        final DiskLruCache.Snapshot snapshot = mCache.get("p");
+        assertEquals(10, snapshot.getString(0).length());
+        snapshot.close();
+    }
+
+    @LargeTest
+    public void testTrimManyEntries() throws IOException{
+        final int count = 10000;
+        mCache.setMaxSize(count * 20L);
+        for(int i = 0; i < count; i++){
+            put(mCache, HOT + i, 10);
+            put(mCache, "c" + i, 10);
+        }
+        final long start = System.nanoTime();
+        mCache.setMaxSize(count * 5L);
+        mCache.flush();
+        final long millis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "Trimmed " + count + " of " + 2 * count + " entries in " + millis + " ms");
+        assertTrue(mCache.size() <= count * 5L);
+        assertTrue(contains(HOT + (count - 1)));
+    }
+}
@@ -0,0 +1,113 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.io.InterruptedIOException;
+
+/**
+ * How the window of a {@link DownloadThrottle} follows the finished downloads.
+ */
+public class DownloadThrottleTest extends TestCase {
+
+    private static void finish(DownloadThrottle throttle, int count, boolean success)
+            throws InterruptedIOException{
+        final DownloadThrottle.Permit[] permits = new DownloadThrottle.Permit[count];
+        for(int i = 0; i < count; i++){
+            permits[i] = throttle.acquire();
+        }
+        for(DownloadThrottle.Permit permit : permits){
+            permit.onResponse();
+            permit.setSuccess(success);
+            throttle.release(permit);
+        }
+    }
+
+    public void testFailuresHalveTheWindowOncePerWindow() throws InterruptedIOException{
+        final DownloadThrottle throttle = new DownloadThrottle(8, 1, 8);
+        finish(throttle, 8, false);
+        assertEquals(4, throttle.getWindow());
+        assertEquals(1, throttle.getDecreases());
+        assertEquals(0, throttle.getInFlight());
+    }
+
+    public void testCancelsKeepTheWindow() throws InterruptedIOException{
+        final DownloadThrottle throttle = new DownloadThrottle(8, 1, 8);
+        final DownloadThrottle.Permit[] permits = new DownloadThrottle.Permit[8];
+        for(int i = 0; i < permits.length; i++){
+            permits[i] = throttle.acquire();
+        }
+        // A cancelled load interrupts the thread that downloads
+        Thread.currentThread().interrupt();
+        try {
+            for(DownloadThrottle.Permit permit : permits){
+                permit.setSuccess(false);
+                throttle.release(permit);
+            }
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(8, throttle.getWindow());
+        assertEquals(0, throttle.getDecreases());
+        assertEquals(8, throttle.getCancels());
+        assertEquals(0, throttle.getInFlight());
+    }
+
+    public void testGrowsWhileTheWindowIsUsed() throws InterruptedIOException{
+        final DownloadThrottle throttle = new DownloadThrottle(2, 1, 4);
+        DownloadThrottle.Permit running = throttle.acquire();
+        for(int i = 0; i < 20; i++){
+            final DownloadThrottle.Permit next = throttle.acquire();
+            running.onResponse();
+            running.setSuccess(true);
+            throttle.release(running);
+            running = next;
+        }
+        running.setSuccess(true);
+        throttle.release(running);
+        assertTrue(throttle.getWindow() > 2);
+        assertTrue(throttle.getIncreases() > 0);
+    }
+
+    public void testAcquireWaitsForASlot() throws Exception{
+        final DownloadThrottle throttle = new DownloadThrottle(1, 1, 1);
+        final DownloadThrottle.Permit permit = throttle.acquire();
+        final DownloadThrottle.Permit[] acquired = new DownloadThrottle.Permit[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = throttle.acquire();
+                } catch (InterruptedIOException e) {
+                }
+            }
+        });
+        thread.start();
+        thread.join(100);
+        assertNull(acquired[0]);
+        permit.setSuccess(true);
+        throttle.release(permit);
+        thread.join();
+        assertNotNull(acquired[0]);
+    }
+
+    public void testInterruptedAcquire() throws Exception{
+        final DownloadThrottle throttle = new DownloadThrottle(1, 1, 1);
+        throttle.acquire();
+        final boolean[] interrupted = new boolean[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    throttle.acquire();
+                } catch (InterruptedIOException e) {
+                    interrupted[0] = Thread.currentThread().isInterrupted();
+                }
+            }
+        });
+        thread.start();
+        thread.interrupt();
+        thread.join();
+        assertTrue(interrupted[0]);
+        assertEquals(1, throttle.getInFlight());
+    }
+}
@@ -0,0 +1,58 @@
+package com.searover.photogallery.utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Times {@link Downscaler} taking a 4K frame down to a 256px thumbnail with the work split over
+ * 1, 2, 4 and 8 threads, and logs the milliseconds per resize. JMH doesn't run on Android, so
+ * this warms up and then averages plain wall clock timings. Run it with the other instrumentation
+ * tests and read the figures from logcat under the tag of this class.
+ */
+@LargeTest
+public class DownscalerBenchmark extends TestCase {
+    private static final String TAG = "DownscalerBenchmark";
+    private static final int SRC_WIDTH = 3840;
+    private static final int SRC_HEIGHT = 2160;
+    private static final int DST_WIDTH = 256;
+    private static final int DST_HEIGHT = 144;
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+
+    public void testThreads(){
+        final int[] src = DownscalerTest.randomImage(SRC_WIDTH, SRC_HEIGHT, 4);
+        for(Downscaler.Filter filter : Downscaler.Filter.values()){
+            for(int threads = 1; threads <= 8; threads *= 2){
+                final ExecutorService executor =
+                        threads > 1 ? Executors.newFixedThreadPool(threads - 1) : null;
+                try {
+                    final Downscaler downscaler = new Downscaler(executor, threads);
+                    final int[] dst = downscaler.obtainDestinationBuffer(DST_WIDTH * DST_HEIGHT);
+                    for(int i = 0; i < WARMUP; i++){
+                        downscaler.resize(src, SRC_WIDTH, SRC_HEIGHT, dst, DST_WIDTH, DST_HEIGHT,
+                                filter);
+                    }
+                    final long start = System.nanoTime();
+                    for(int i = 0; i < RUNS; i++){
+                        downscaler.resize(src, SRC_WIDTH, SRC_HEIGHT, dst, DST_WIDTH, DST_HEIGHT,
+                                filter);
+                    }
+                    final float millis = (System.nanoTime() - start) / 1e6f / RUNS;
+                    Log.i(TAG, filter + " " + SRC_WIDTH + "x" + SRC_HEIGHT + " -> " + DST_WIDTH
+                            + "x" + DST_HEIGHT + ", " + threads + " threads: " + millis + "ms");
+                    // The scratch buffers are kept, nothing was grown during the runs
+                    assertSame(dst, downscaler.obtainDestinationBuffer(DST_WIDTH * DST_HEIGHT));
+                } finally {
+                    if(executor != null){
+                        executor.shutdown();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the resampling of {@link Downscaler}. It has no Android dependencies, so these run the
+ * same on a device and on a plain JVM.
+ */
+public class DownscalerTest extends TestCase {
+
+    public void testBoxAveragesEachBlock(){
+        // 4x2 source of two 2x2 blocks, one black and one white
+        final int[] src = {
+                0xFF000000, 0xFF000000, 0xFFFFFFFF, 0xFFFFFFFF,
+                0xFF000000, 0xFF000000, 0xFFFFFFFF, 0xFFFFFFFF
+        };
+        final int[] dst = new int[2];
+        new Downscaler(null, 1).resize(src, 4, 2, dst, 2, 1, Downscaler.Filter.BOX);
+        assertEquals(0xFF000000, dst[0]);
+        assertEquals(0xFFFFFFFF, dst[1]);
+
+        // A block of both averages to grey
+        final int[] grey = new int[1];
+        new Downscaler(null, 1).resize(src, 4, 2, grey, 1, 1, Downscaler.Filter.BOX);
+        assertEquals(0xFF808080, grey[0]);
+    }
+
+    public void testFlatImageStaysFlat(){
+        for(Downscaler.Filter filter : Downscaler.Filter.values()){
+            final int[] src = new int[300 * 200];
+            Arrays.fill(src, 0xFF336699);
+            final int[] dst = new int[37 * 23];
+            new Downscaler(null, 1).resize(src, 300, 200, dst, 37, 23, filter);
+            for(int pixel : dst){
+                assertEquals(filter.toString(), 0xFF336699, pixel);
+            }
+        }
+    }
+
+    public void testParallelMatchesSerial(){
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final int[] src = randomImage(257, 190, 1);
+            for(Downscaler.Filter filter : Downscaler.Filter.values()){
+                final int[] serial = new int[64 * 47];
+                final int[] parallel = new int[64 * 47];
+                new Downscaler(null, 1).resize(src, 257, 190, serial, 64, 47, filter);
+                new Downscaler(executor, 4).resize(src, 257, 190, parallel, 64, 47, filter);
+                assertTrue(filter.toString(), Arrays.equals(serial, parallel));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testBuffersAreReused(){
+        final Downscaler downscaler = new Downscaler(null, 1);
+        final int[] source = downscaler.obtainSourceBuffer(100);
+        final int[] destination = downscaler.obtainDestinationBuffer(10);
+        assertSame(source, downscaler.obtainSourceBuffer(100));
+        assertSame(source, downscaler.obtainSourceBuffer(50));
+        assertSame(destination, downscaler.obtainDestinationBuffer(10));
+        assertNotSame(source, downscaler.obtainSourceBuffer(101));
+    }
+
+    public void testRejectsBadDimensions(){
+        final Downscaler downscaler = new Downscaler(null, 1);
+        try {
+            downscaler.resize(new int[4], 2, 2, new int[1], 0, 1, Downscaler.Filter.BOX);
+            fail("Accepted a width of 0");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            downscaler.resize(new int[3], 2, 2, new int[1], 1, 1, Downscaler.Filter.BOX);
+            fail("Accepted a source buffer that is too small");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    static int[] randomImage(int width, int height, long seed){
+        final Random random = new Random(seed);
+        final int[] pixels = new int[width * height];
+        for(int i = 0; i < pixels.length; i++){
+            pixels[i] = random.nextInt();
+        }
+        return pixels;
+    }
+}
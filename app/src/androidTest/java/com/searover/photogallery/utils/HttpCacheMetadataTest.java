@@ -0,0 +1,174 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Freshness and validators of {@link HttpCacheMetadata}, and the headers it takes from responses
+ * of a {@link StubHttpServer}.
+ */
+public class HttpCacheMetadataTest extends TestCase {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long NOW = 1420070400000L;
+
+    private volatile String mHeaders;
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) {
+                final boolean conditional = ImageFetcherTest.header(request, "If-None-Match") != null;
+                return StubHttpServer.response(conditional ? 304 : 200, mHeaders,
+                        conditional ? null : new byte[100]);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mServer.close();
+        super.tearDown();
+    }
+
+    private static String date(long millis){
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    /**
+     * @param headers The stored header lines, without the receive time
+     * @return Metadata of a response received at {@link #NOW}
+     */
+    private static HttpCacheMetadata received(String headers){
+        return HttpCacheMetadata.parse(headers + "X-Received-Millis: " + NOW + "\n");
+    }
+
+    private HttpURLConnection request(String etag) throws IOException{
+        final HttpURLConnection connection =
+                (HttpURLConnection) new URL(mServer.url("/image.jpg")).openConnection();
+        if(etag != null){
+            connection.setRequestProperty("If-None-Match", etag);
+        }
+        connection.getResponseCode();
+        return connection;
+    }
+
+    public void testParsesWhatItWrites(){
+        final HttpCacheMetadata metadata = received("ETag: \"v1\"\nLast-Modified: "
+                + date(NOW - HOUR) + "\nContent-Length: 100\nCache-Control: max-age=60\n");
+        metadata.setContentDigest("abc");
+        final HttpCacheMetadata parsed = HttpCacheMetadata.parse(metadata.toString());
+        assertEquals(metadata.toString(), parsed.toString());
+        assertEquals("\"v1\"", parsed.getETag());
+        assertEquals(date(NOW - HOUR), parsed.getLastModified());
+        assertEquals(100, parsed.getContentLength());
+        assertEquals("abc", parsed.getContentDigest());
+        assertTrue(parsed.isFresh(NOW + 59 * 1000));
+    }
+
+    public void testMissingMetadataIsStale(){
+        final HttpCacheMetadata metadata = HttpCacheMetadata.parse(null);
+        assertEquals(-1, metadata.getContentLength());
+        assertEquals("", metadata.toString());
+        // Written before there was a receive time
+        assertFalse(metadata.isFresh(NOW));
+        assertFalse(HttpCacheMetadata.parse("ETag: \"v1\"\n").isFresh(NOW));
+    }
+
+    public void testMaxAge(){
+        final HttpCacheMetadata metadata = received("Cache-Control: public, max-age=\"3600\"\n"
+                + "Expires: " + date(NOW - HOUR) + "\n");
+        // max-age wins over Expires
+        assertTrue(metadata.isFresh(NOW + HOUR - 1));
+        assertFalse(metadata.isFresh(NOW + HOUR));
+        // A clock that went back
+        assertFalse(metadata.isFresh(NOW - 1));
+    }
+
+    public void testNoCache(){
+        assertFalse(received("Cache-Control: no-cache, max-age=3600\n").isFresh(NOW));
+        assertFalse(received("Cache-Control: no-store\n").isFresh(NOW));
+        assertFalse(received("Cache-Control: no-cache=\"Set-Cookie\"\n").isFresh(NOW));
+    }
+
+    public void testExpires(){
+        final HttpCacheMetadata metadata = received("Date: " + date(NOW - HOUR)
+                + "\nExpires: " + date(NOW + HOUR) + "\n");
+        // Two hours from the server's Date
+        assertTrue(metadata.isFresh(NOW + 2 * HOUR - 1));
+        assertFalse(metadata.isFresh(NOW + 2 * HOUR));
+        assertFalse(received("Expires: 0\n").isFresh(NOW));
+    }
+
+    public void testLastModifiedHeuristic(){
+        // A tenth of the ten hours since it was modified
+        final HttpCacheMetadata metadata = received("Last-Modified: " + date(NOW - 10 * HOUR) + "\n");
+        assertTrue(metadata.isFresh(NOW + HOUR - 1));
+        assertFalse(metadata.isFresh(NOW + HOUR));
+        // At most a week
+        final HttpCacheMetadata old = received("Last-Modified: " + date(NOW - 1000 * 24 * HOUR) + "\n");
+        assertTrue(old.isFresh(NOW + 7 * 24 * HOUR - 1));
+        assertFalse(old.isFresh(NOW + 7 * 24 * HOUR));
+        // Nothing at all is fresh for a day
+        assertTrue(received("").isFresh(NOW + 24 * HOUR - 1));
+        assertFalse(received("").isFresh(NOW + 24 * HOUR));
+    }
+
+    public void testRangeValidator(){
+        assertEquals("\"v1\"", received("ETag: \"v1\"\nLast-Modified: " + date(NOW) + "\n")
+                .getRangeValidator());
+        // A weak ETag can't be used with If-Range
+        assertEquals(date(NOW), received("ETag: W/\"v1\"\nLast-Modified: " + date(NOW) + "\n")
+                .getRangeValidator());
+        assertNull(received("ETag: W/\"v1\"\n").getRangeValidator());
+    }
+
+    public void testParseRangeStart(){
+        assertEquals(1000, HttpCacheMetadata.parseRangeStart("bytes 1000-1999/2000"));
+        assertEquals(-1, HttpCacheMetadata.parseRangeStart(null));
+        assertEquals(-1, HttpCacheMetadata.parseRangeStart("bytes */2000"));
+        assertEquals(-1, HttpCacheMetadata.parseRangeStart("items 0-1/2"));
+    }
+
+    public void testFromResponse() throws IOException{
+        mHeaders = "ETag: \"v1\"\r\nCache-Control: max-age=60\r\n";
+        final long before = System.currentTimeMillis();
+        final HttpURLConnection connection = request(null);
+        final HttpCacheMetadata metadata = HttpCacheMetadata.fromResponse(connection);
+        connection.disconnect();
+        assertEquals("\"v1\"", metadata.getETag());
+        assertNull(metadata.getLastModified());
+        assertEquals(100, metadata.getContentLength());
+        assertTrue(metadata.isFresh(before + 59 * 1000));
+        assertFalse(metadata.isFresh(System.currentTimeMillis() + 60 * 1000));
+    }
+
+    public void testNotModifiedMakesItFreshAgain() throws IOException{
+        final HttpCacheMetadata metadata = received("ETag: \"v1\"\nContent-Length: 100\n"
+                + "Cache-Control: max-age=60\n");
+        assertFalse(metadata.isFresh(NOW + HOUR));
+
+        // The 304 says nothing of the ETag or the length, and a new max-age
+        mHeaders = "Cache-Control: max-age=7200\r\n";
+        final long before = System.currentTimeMillis();
+        final HttpURLConnection connection = request(metadata.getETag());
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, connection.getResponseCode());
+        metadata.update(connection);
+        connection.disconnect();
+        assertEquals("\"v1\"", metadata.getETag());
+        assertEquals(100, metadata.getContentLength());
+        assertTrue(metadata.isFresh(before + HOUR));
+        assertEquals("\"v1\"", ImageFetcherTest.header(mServer.getRequests().get(0), "If-None-Match"));
+    }
+}
@@ -0,0 +1,103 @@
+package com.searover.photogallery.utils;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times a page of thumbnail requests through {@link HttpTransport} against a
+ * {@link StubHttpServer} with injected latency: a handshake on every new connection and a server
+ * think time on every request. Compares keeping connections alive with closing them, and the
+ * limits of requests per host. Run it with the other instrumentation tests and read the figures
+ * from logcat under the tag of this class.
+ */
+@LargeTest
+public class HttpTransportBenchmark extends TestCase {
+    private static final String TAG = "HttpTransportBenchmark";
+    private static final int REQUESTS = 64;
+    private static final int THREADS = 8;
+    // Like the round trips of TCP and TLS on a mobile link, and the server finding the image
+    private static final int CONNECT_LATENCY_MS = 150;
+    private static final int REQUEST_LATENCY_MS = 20;
+    private static final int BODY_SIZE = 16 * 1024;
+
+    /**
+     * Fetch {@link #REQUESTS} URLs on {@link #THREADS} threads from a new server.
+     * @return The server, to read its connection counts
+     */
+    private static StubHttpServer run(String name, int maxPerHost, final boolean complete)
+            throws Exception{
+        final StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) throws IOException{
+                try {
+                    Thread.sleep(REQUEST_LATENCY_MS);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+                return StubHttpServer.response(200, "", new byte[BODY_SIZE]);
+            }
+        });
+        server.setConnectLatency(CONNECT_LATENCY_MS);
+        final HttpTransport transport = new HttpTransport();
+        transport.setMaxConnectionsPerHost(maxPerHost);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+        final long start = System.nanoTime();
+        for(int i = 0; i < THREADS; i++){
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int request;
+                    while ((request = next.getAndIncrement()) < REQUESTS){
+                        try {
+                            HttpTransportTest.fetch(transport,
+                                    server.url("/thumb" + request + ".jpg"), complete);
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        final long millis = (System.nanoTime() - start) / 1000000;
+        server.close();
+        Log.i(TAG, name + ", " + maxPerHost + " per host: " + REQUESTS + " requests in " + millis
+                + "ms (" + (REQUESTS * 1000 / Math.max(1, millis)) + "/s), "
+                + server.getConnections() + " connections, reused = " + transport.getReuseRate()
+                + ", connect time avg = " + transport.getAverageConnectMicros() + "us");
+        assertEquals(0, failures.get());
+        if(complete){
+            // Closed sockets may be seen by the server a little late, pooled ones never are
+            assertTrue(server.getMaxOpenConnections() <= maxPerHost);
+        }
+        return server;
+    }
+
+    public void testKeepAlive() throws Exception{
+        final int perHost = HttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        final StubHttpServer closing = run("Closing", perHost, false);
+        final StubHttpServer keepAlive = run("Keep-alive", perHost, true);
+        // The platform may still keep one that was disconnected after the whole body arrived
+        assertTrue(closing.getConnections() > REQUESTS / 2);
+        assertTrue(keepAlive.getConnections() <= perHost);
+    }
+
+    public void testConnectionsPerHost() throws Exception{
+        for(int perHost = 1; perHost <= THREADS; perHost *= 2){
+            run("Keep-alive", perHost, true);
+        }
+    }
+}
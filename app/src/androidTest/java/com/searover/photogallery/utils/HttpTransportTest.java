@@ -0,0 +1,159 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The per host limit and keep-alive reuse of {@link HttpTransport} against a
+ * {@link StubHttpServer}.
+ */
+public class HttpTransportTest extends TestCase {
+    private static final int MAX_PER_HOST = 2;
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+    private volatile int mLatency;
+    private StubHttpServer mServer;
+    private HttpTransport mTransport;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) throws IOException{
+                final int active = mActive.incrementAndGet();
+                int max;
+                while ((max = mMaxActive.get()) < active && !mMaxActive.compareAndSet(max, active)){
+                }
+                try {
+                    Thread.sleep(mLatency);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                } finally {
+                    mActive.decrementAndGet();
+                }
+                return StubHttpServer.response(200, "", new byte[4096]);
+            }
+        });
+        mTransport = new HttpTransport();
+        mTransport.setMaxConnectionsPerHost(MAX_PER_HOST);
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Request the URL the way the fetchers do.
+     * @param transport
+     * @param url
+     * @param complete Whether to read the whole body, or give up on it after the headers
+     */
+    static void fetch(HttpTransport transport, String url, boolean complete) throws IOException{
+        final HttpURLConnection connection = transport.open(new URL(url));
+        InputStream in = null;
+        boolean read = false;
+        try {
+            transport.connect(connection);
+            assertEquals(200, connection.getResponseCode());
+            if(complete){
+                in = connection.getInputStream();
+                final byte[] buffer = new byte[8 * 1024];
+                while (in.read(buffer) != -1){
+                }
+                read = true;
+            }
+        } finally {
+            transport.release(connection, in, read);
+        }
+    }
+
+    public void testLimitsRequestsPerHost() throws Exception{
+        mLatency = 50;
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicInteger failures = new AtomicInteger();
+        for(int i = 0; i < 4 * MAX_PER_HOST; i++){
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(mTransport, mServer.url("/photo.jpg"), true);
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads){
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(4 * MAX_PER_HOST, mServer.getRequests().size());
+        assertEquals(MAX_PER_HOST, mMaxActive.get());
+        assertTrue(mServer.getMaxOpenConnections() <= MAX_PER_HOST);
+    }
+
+    public void testReusesConnectionsAfterCompleteReads() throws IOException{
+        for(int i = 0; i < 10; i++){
+            fetch(mTransport, mServer.url("/photo" + i + ".jpg"), true);
+        }
+        assertEquals(1, mServer.getConnections());
+        // All but the first
+        assertEquals(0.9f, mTransport.getReuseRate(), 0.001f);
+    }
+
+    public void testClosesConnectionsAfterIncompleteReads() throws IOException{
+        for(int i = 0; i < 5; i++){
+            fetch(mTransport, mServer.url("/photo" + i + ".jpg"), false);
+        }
+        assertEquals(5, mServer.getConnections());
+        assertEquals(0f, mTransport.getReuseRate());
+    }
+
+    public void testInterruptedWhileWaiting() throws Exception{
+        final List<HttpURLConnection> held = new ArrayList<HttpURLConnection>();
+        for(int i = 0; i < MAX_PER_HOST; i++){
+            held.add(mTransport.open(new URL(mServer.url("/photo.jpg"))));
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final Throwable[] thrown = new Throwable[1];
+        final Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mTransport.open(new URL(mServer.url("/photo.jpg")));
+                } catch (IOException e) {
+                    thrown[0] = e;
+                }
+                done.countDown();
+            }
+        });
+        waiting.start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        waiting.interrupt();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(thrown[0] instanceof InterruptedIOException);
+
+        // The waiter took no permit with it
+        for (HttpURLConnection connection : held){
+            mTransport.release(connection, null, false);
+        }
+        fetch(mTransport, mServer.url("/photo.jpg"), true);
+        fetch(mTransport, mServer.url("/photo.jpg"), true);
+    }
+}
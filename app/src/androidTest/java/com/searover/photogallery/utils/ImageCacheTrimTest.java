@@ -0,0 +1,220 @@
+package com.searover.photogallery.utils;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Walks a full {@link ImageCache} through each of the ComponentCallbacks2 trim levels with
+ * {@link ImageCache#trimMemory(int)}: what the memory cache and the pool may hold afterwards,
+ * which bitmaps are demoted, and that they end up in the disk cache, and how the full size comes
+ * back. Logs how long each trim took under the tag of this class. Needs a device for the
+ * bitmaps and the cache directory.
+ */
+@LargeTest
+public class ImageCacheTrimTest extends AndroidTestCase {
+    private static final String TAG = "ImageCacheTrimTest";
+    // 64 bitmaps of 64KB fill the memory cache
+    private static final int SIDE = 128;
+    private static final int BITMAP_KB = SIDE * SIDE * 4 / 1024;
+    private static final int COUNT = 64;
+    private static final int MEM_CACHE_KB = COUNT * BITMAP_KB;
+    private static final int POOL_SIZE = 2 * 1024 * 1024;
+    // ImageCache restores the full size this long after the last trim
+    private static final long RESTORE_DELAY_MS = 30 * 1000;
+
+    private static final int[] LEVELS = {
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW,
+            ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL,
+            ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN,
+            ComponentCallbacks2.TRIM_MEMORY_BACKGROUND,
+            ComponentCallbacks2.TRIM_MEMORY_MODERATE,
+            ComponentCallbacks2.TRIM_MEMORY_COMPLETE,
+    };
+    // The share of the memory cache kept at each of the levels
+    private static final float[] MEM_CACHE_SHARES = {0.75f, 0.5f, 0.25f, 0.5f, 0.25f, 0f, 0f};
+
+    private ImageCache mImageCache;
+
+    @Override
+    protected void tearDown() throws Exception{
+        if(mImageCache != null){
+            mImageCache.clearCache();
+            mImageCache.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * @return A new cache with a filled memory cache, the first key added is the least recently
+     * used
+     */
+    private ImageCache createFullCache(){
+        final ImageCache.ImageCacheParams params =
+                new ImageCache.ImageCacheParams(getContext(), "trimtest");
+        params.memCacheSize = MEM_CACHE_KB;
+        params.bitmapPoolSize = POOL_SIZE;
+        params.initDiskCacheOnCreate = true;
+        final ImageCache imageCache = new ImageCache(params);
+        imageCache.clearCache();
+        for(int i = 0; i < COUNT; i++){
+            add(imageCache, "image" + i);
+        }
+        return imageCache;
+    }
+
+    private void add(ImageCache imageCache, String data){
+        final Bitmap bitmap = Bitmap.createBitmap(SIDE, SIDE, Bitmap.Config.ARGB_8888);
+        imageCache.addBitmapToMemCache(data, new BitmapDrawable(getContext().getResources(), bitmap));
+    }
+
+    /**
+     * @return How many of the first {@code count} images are in the memory cache
+     */
+    private static int countInMemory(ImageCache imageCache, String prefix, int count){
+        int cached = 0;
+        for(int i = 0; i < count; i++){
+            if(imageCache.getBitmapFromMemCache(prefix + i) != null){
+                cached++;
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Wait for the demoted bitmaps to be written in the background.
+     * @return Whether the image made it to the disk cache
+     */
+    private static boolean awaitOnDisk(ImageCache imageCache, String data)
+            throws InterruptedException{
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!imageCache.isInDiskCache(data)){
+            if(System.currentTimeMillis() > deadline){
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    public void testTrimLevels() throws InterruptedException{
+        for(int i = 0; i < LEVELS.length; i++){
+            final int level = LEVELS[i];
+            mImageCache = createFullCache();
+            assertEquals(COUNT, countInMemory(mImageCache, "image", COUNT));
+
+            final long start = System.nanoTime();
+            mImageCache.trimMemory(level);
+            final long trimMicros = (System.nanoTime() - start) / 1000;
+
+            final int limit = (int) (MEM_CACHE_KB * MEM_CACHE_SHARES[i]);
+            final int kept = limit / BITMAP_KB;
+            assertEquals(limit, mImageCache.getMemCacheLimit());
+            assertEquals(1, mImageCache.getTrims());
+            assertEquals(COUNT - kept, mImageCache.getDemotions());
+            assertEquals(kept, countInMemory(mImageCache, "image", COUNT));
+            // The least recently used go, the newest stay
+            assertNull(mImageCache.getBitmapFromMemCache("image0"));
+            if(kept > 0){
+                assertNotNull(mImageCache.getBitmapFromMemCache("image" + (COUNT - 1)));
+            }
+            final int poolLimit = level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                    ? 0 : POOL_SIZE / 2;
+            final BitmapPool pool = mImageCache.getBitmapPool();
+            if(pool != null){
+                assertEquals(poolLimit, pool.getMaxSize());
+            }
+
+            final long demoteStart = System.nanoTime();
+            assertTrue(awaitOnDisk(mImageCache, "image" + (COUNT - kept - 1)));
+            assertTrue(awaitOnDisk(mImageCache, "image0"));
+            final long demoteMillis = (System.nanoTime() - demoteStart) / 1000000;
+            Log.i(TAG, "Level " + level + ": " + MEM_CACHE_KB + "KB -> " + limit + "KB, "
+                    + mImageCache.getDemotions() + " demoted in " + trimMicros + "us, on disk in "
+                    + demoteMillis + "ms, pool limit " + poolLimit / 1024 + "KB");
+
+            mImageCache.clearCache();
+            mImageCache.close();
+            mImageCache = null;
+        }
+    }
+
+    public void testLimitOnlyGoesDownBetweenTrims(){
+        mImageCache = createFullCache();
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        // A milder level right after doesn't let the cache grow again
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(MEM_CACHE_KB / 4, mImageCache.getMemCacheLimit());
+        assertEquals(2, mImageCache.getTrims());
+    }
+
+    public void testCacheStaysWithinTheLimitAfterATrim(){
+        mImageCache = createFullCache();
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        final long demotions = mImageCache.getDemotions();
+        // Loading a full screen again only fills what the limit allows
+        for(int i = 0; i < COUNT; i++){
+            add(mImageCache, "again" + i);
+        }
+        assertEquals(COUNT / 2, countInMemory(mImageCache, "again", COUNT));
+        assertEquals(0, countInMemory(mImageCache, "image", COUNT));
+        // Only trims demote, plain evictions don't count
+        assertEquals(demotions, mImageCache.getDemotions());
+    }
+
+    public void testRestoreGivesTheFullSizeBack(){
+        mImageCache = createFullCache();
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        // Back in the foreground
+        mImageCache.restoreMemory();
+        assertEquals(MEM_CACHE_KB, mImageCache.getMemCacheLimit());
+        final BitmapPool pool = mImageCache.getBitmapPool();
+        if(pool != null){
+            assertEquals(POOL_SIZE, pool.getMaxSize());
+        }
+        for(int i = 0; i < COUNT; i++){
+            add(mImageCache, "again" + i);
+        }
+        assertEquals(COUNT, countInMemory(mImageCache, "again", COUNT));
+    }
+
+    public void testRestoredAfterADelayWithoutTrims() throws InterruptedException{
+        mImageCache = createFullCache();
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Thread.sleep(RESTORE_DELAY_MS / 2);
+        // Pushes the restore back
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Thread.sleep(RESTORE_DELAY_MS / 2 + 1000);
+        assertEquals(MEM_CACHE_KB / 2, mImageCache.getMemCacheLimit());
+        Thread.sleep(RESTORE_DELAY_MS / 2);
+        assertEquals(MEM_CACHE_KB, mImageCache.getMemCacheLimit());
+    }
+
+    public void testBitmapsTakenOutByATrimAreNotPooled() throws InterruptedException{
+        mImageCache = createFullCache();
+        final BitmapPool pool = mImageCache.getBitmapPool();
+        if(pool == null){
+            return;
+        }
+        // Leaves room in the pool, but what the trim takes out may still be on screen
+        mImageCache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(POOL_SIZE / 2, pool.getMaxSize());
+        assertTrue(awaitOnDisk(mImageCache, "image0"));
+        // Evicted by the limit while it holds, as the new ones come in
+        for(int i = 0; i < COUNT / 4; i++){
+            add(mImageCache, "again" + i);
+        }
+        assertEquals(0, pool.size());
+
+        // Once restored, bitmaps pushed out by newer ones are pooled again
+        mImageCache.restoreMemory();
+        for(int i = 0; i < COUNT; i++){
+            add(mImageCache, "more" + i);
+        }
+        assertTrue(pool.size() > 0);
+    }
+}
@@ -0,0 +1,204 @@
+package com.searover.photogallery.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The HTTP cache of an {@link ImageFetcher} against a {@link StubHttpServer}: resuming cut off
+ * downloads and revalidating stale entries. Needs a device, the fetcher keeps its cache in the
+ * app's cache directory.
+ */
+@LargeTest
+public class ImageFetcherTest extends AndroidTestCase {
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] mBody = new byte[256 * 1024];
+    // The ETag of mBody
+    private volatile String mETag = ETAG;
+    // Bytes of the body the next response is cut off after, -1 to send it all
+    private volatile int mCutAt = -1;
+    // Extra header lines of full responses, each ending in \r\n
+    private volatile String mHeaders = "";
+    private StubHttpServer mServer;
+    private ImageFetcher mImageFetcher;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        new Random(3).nextBytes(mBody);
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) {
+                return ImageFetcherTest.this.respond(request);
+            }
+        });
+        mImageFetcher = new ImageFetcher(getContext(), 100);
+        mImageFetcher.initDiskCacheInternal();
+        // Start from an empty HTTP cache
+        mImageFetcher.clearCacheInternal();
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mImageFetcher.clearCacheInternal();
+        mImageFetcher.closeCacheInternal();
+        mServer.close();
+        super.tearDown();
+    }
+
+    /**
+     * Serves mBody with a strong ETag, and the ranges of it asked for with a matching If-Range.
+     */
+    private byte[] respond(String request){
+        final String range = header(request, "Range");
+        final byte[] response;
+        final int length;
+        final String etag = mETag;
+        if(etag.equals(header(request, "If-None-Match"))){
+            return StubHttpServer.response(304, "ETag: " + etag + "\r\n" + mHeaders, null);
+        }
+        if(range != null && etag.equals(header(request, "If-Range"))){
+            final int start = Integer.parseInt(
+                    range.substring("bytes=".length(), range.indexOf('-')));
+            length = mBody.length - start;
+            response = StubHttpServer.response(206, "ETag: " + etag + "\r\nContent-Range: bytes "
+                            + start + "-" + (mBody.length - 1) + "/" + mBody.length + "\r\n",
+                    Arrays.copyOfRange(mBody, start, mBody.length));
+        }else {
+            length = mBody.length;
+            response = StubHttpServer.response(200, "ETag: " + etag + "\r\n" + mHeaders, mBody);
+        }
+        final int cutAt = mCutAt;
+        if(cutAt < 0){
+            return response;
+        }
+        mCutAt = -1;
+        mServer.dropAfterNextResponse();
+        return Arrays.copyOf(response, response.length - length + cutAt);
+    }
+
+    /**
+     * @return The value of the header in the request, null if it has none
+     */
+    static String header(String request, String name){
+        for (String line : request.split("\r\n")){
+            if(line.regionMatches(true, 0, name + ":", 0, name.length() + 1)){
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for the server to have seen this many requests, the revalidation is in the background.
+     * @return The requests
+     */
+    private List<String> awaitRequests(int count) throws InterruptedException{
+        final long deadline = System.currentTimeMillis() + 5000;
+        List<String> requests = mServer.getRequests();
+        while (requests.size() < count && System.currentTimeMillis() < deadline){
+            Thread.sleep(20);
+            requests = mServer.getRequests();
+        }
+        return requests;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException{
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1){
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    public void testResumesACutOffDownload() throws IOException{
+        final String url = mServer.url("/resume.jpg");
+        // The link goes down halfway through the body
+        final int cut = mBody.length / 2;
+        mCutAt = cut;
+        assertNull(mImageFetcher.getOriginalStream(url));
+
+        final InputStream in = mImageFetcher.getOriginalStream(url);
+        assertNotNull(in);
+        assertTrue(Arrays.equals(mBody, readFully(in)));
+        final List<String> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertNull(header(requests.get(0), "Range"));
+        assertEquals("bytes=" + cut + "-", header(requests.get(1), "Range"));
+        assertEquals(ETAG, header(requests.get(1), "If-Range"));
+    }
+
+    public void testStartsOverWhenTheContentChanged() throws IOException{
+        final String url = mServer.url("/changed.jpg");
+        mCutAt = mBody.length / 2;
+        assertNull(mImageFetcher.getOriginalStream(url));
+
+        // A new version, the server sends all of it rather than the range of the old one
+        new Random(4).nextBytes(mBody);
+        mETag = "\"v2\"";
+        final InputStream in = mImageFetcher.getOriginalStream(url);
+        assertNotNull(in);
+        assertTrue(Arrays.equals(mBody, readFully(in)));
+        final List<String> requests = mServer.getRequests();
+        assertEquals(ETAG, header(requests.get(1), "If-Range"));
+    }
+
+    public void testRevalidatesAStaleEntryInTheBackground() throws Exception{
+        final String url = mServer.url("/stale.jpg");
+        mHeaders = "Cache-Control: no-cache\r\n";
+        assertTrue(Arrays.equals(mBody, readFully(mImageFetcher.getOriginalStream(url))));
+
+        // Served from the cache at once, while the server is asked if it changed
+        mHeaders = "Cache-Control: max-age=3600\r\n";
+        assertTrue(Arrays.equals(mBody, readFully(mImageFetcher.getOriginalStream(url))));
+        final List<String> requests = awaitRequests(2);
+        assertEquals(2, requests.size());
+        assertEquals(ETAG, header(requests.get(1), "If-None-Match"));
+
+        // The 304 made it fresh, the body is still there and nothing else is asked
+        Thread.sleep(200);
+        assertTrue(Arrays.equals(mBody, readFully(mImageFetcher.getOriginalStream(url))));
+        Thread.sleep(200);
+        assertEquals(2, mServer.getRequests().size());
+    }
+
+    public void testFreshEntryIsNotRevalidated() throws Exception{
+        final String url = mServer.url("/fresh.jpg");
+        mHeaders = "Cache-Control: max-age=3600\r\n";
+        readFully(mImageFetcher.getOriginalStream(url));
+        assertTrue(Arrays.equals(mBody, readFully(mImageFetcher.getOriginalStream(url))));
+        Thread.sleep(200);
+        assertEquals(1, mServer.getRequests().size());
+    }
+
+    public void testChangedContentReplacesTheStaleEntry() throws Exception{
+        final String url = mServer.url("/replaced.jpg");
+        mHeaders = "Cache-Control: no-cache\r\n";
+        final byte[] old = mBody.clone();
+        readFully(mImageFetcher.getOriginalStream(url));
+
+        new Random(4).nextBytes(mBody);
+        mETag = "\"v2\"";
+        mHeaders = "Cache-Control: max-age=3600\r\n";
+        // The old body until the new one is in
+        assertTrue(Arrays.equals(old, readFully(mImageFetcher.getOriginalStream(url))));
+        assertEquals(ETAG, header(awaitRequests(2).get(1), "If-None-Match"));
+        final long deadline = System.currentTimeMillis() + 5000;
+        byte[] body = old;
+        while (!Arrays.equals(mBody, body) && System.currentTimeMillis() < deadline){
+            Thread.sleep(20);
+            body = readFully(mImageFetcher.getOriginalStream(url));
+        }
+        assertTrue(Arrays.equals(mBody, body));
+    }
+}
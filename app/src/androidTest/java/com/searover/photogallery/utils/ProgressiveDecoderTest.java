@@ -0,0 +1,130 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Previews of JPEGs from partial data with {@link ProgressiveDecoder}, fed from a
+ * {@link StubHttpServer} that sends at the speed of a slow link.
+ */
+public class ProgressiveDecoderTest extends TestCase {
+    private static final int PREVIEW_SIZE = 256;
+
+    /**
+     * @param sof The start of frame marker, 0xC0 for baseline, 0xC2 for progressive
+     * @return The first bytes of a JPEG, with an APP0 segment and a fill byte before the frame
+     */
+    private static byte[] jpegHeader(int sof){
+        return new byte[]{
+                (byte) 0xFF, (byte) 0xD8,
+                // APP0 with a length of 4, two bytes of payload
+                (byte) 0xFF, (byte) 0xE0, 0, 4, 'J', 'F',
+                (byte) 0xFF,
+                // DHT comes before the frame in some encoders
+                (byte) 0xFF, (byte) 0xC4, 0, 2,
+                (byte) 0xFF, (byte) sof, 0, 11, 8, 0, 16, 0, 16, 1, 1, 0x11, 0
+        };
+    }
+
+    public void testTellsProgressiveFromBaseline(){
+        final byte[] baseline = jpegHeader(0xC0);
+        assertFalse(ProgressiveDecoder.isProgressive(baseline, baseline.length));
+        final byte[] progressive = jpegHeader(0xC2);
+        assertTrue(ProgressiveDecoder.isProgressive(progressive, progressive.length));
+        // The frame hasn't come in yet
+        assertFalse(ProgressiveDecoder.isProgressive(progressive, 8));
+        // Not a marker where one should be
+        progressive[2] = 0;
+        assertFalse(ProgressiveDecoder.isProgressive(progressive, progressive.length));
+    }
+
+    public void testIgnoresOtherFormats(){
+        final int[] previews = new int[1];
+        final ProgressiveDecoder decoder = new ProgressiveDecoder(PREVIEW_SIZE, 1024 * 1024,
+                new ProgressiveDecoder.OnPartialImageListener() {
+                    @Override
+                    public void onPartialImage(Bitmap preview, boolean progressive) {
+                        previews[0]++;
+                    }
+                });
+        // A PNG signature, then more than enough data for a preview
+        final byte[] data = new byte[256 * 1024];
+        data[0] = (byte) 0x89;
+        data[1] = 'P';
+        decoder.write(data, 0, data.length);
+        decoder.write(data, 0, data.length);
+        assertEquals(0, previews[0]);
+    }
+
+    /**
+     * Download a noisy 1024x1024 JPEG at 256KB/s and check that previews come in before it is
+     * complete, no larger than asked for.
+     */
+    @LargeTest
+    public void testPreviewsWhileDownloading() throws IOException{
+        final Bitmap bitmap = Bitmap.createBitmap(1024, 1024, Bitmap.Config.ARGB_8888);
+        final int[] pixels = new int[1024 * 1024];
+        final Random random = new Random(7);
+        for(int i = 0; i < pixels.length; i++){
+            pixels[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+        bitmap.setPixels(pixels, 0, 1024, 0, 0, 1024, 1024);
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, jpeg);
+        bitmap.recycle();
+        final byte[] body = jpeg.toByteArray();
+
+        final StubHttpServer server = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) {
+                return StubHttpServer.response(200, "Content-Type: image/jpeg\r\n", body);
+            }
+        });
+        server.setBytesPerSecond(256 * 1024);
+        final long[] received = new long[1];
+        final long[] firstPreviewAt = {-1};
+        final int[] previews = new int[1];
+        try {
+            final HttpURLConnection connection =
+                    (HttpURLConnection) new URL(server.url("/noise.jpg")).openConnection();
+            final ProgressiveDecoder decoder = new ProgressiveDecoder(PREVIEW_SIZE,
+                    connection.getContentLength(), new ProgressiveDecoder.OnPartialImageListener() {
+                        @Override
+                        public void onPartialImage(Bitmap preview, boolean progressive) {
+                            assertFalse(progressive);
+                            assertTrue(preview.getWidth() <= PREVIEW_SIZE);
+                            assertTrue(preview.getHeight() <= PREVIEW_SIZE);
+                            if(firstPreviewAt[0] < 0){
+                                firstPreviewAt[0] = received[0];
+                            }
+                            previews[0]++;
+                            preview.recycle();
+                        }
+                    });
+            final InputStream in = connection.getInputStream();
+            final byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1){
+                received[0] += count;
+                decoder.write(buffer, 0, count);
+            }
+            in.close();
+            decoder.release();
+            connection.disconnect();
+        } finally {
+            server.close();
+        }
+        assertEquals(body.length, received[0]);
+        assertTrue(previews[0] > 0);
+        assertTrue(firstPreviewAt[0] < body.length);
+    }
+}
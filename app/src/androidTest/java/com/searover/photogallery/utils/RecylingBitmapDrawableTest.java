@@ -0,0 +1,180 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stresses the lock-free counting of {@link RecylingBitmapDrawable} from several threads at once
+ * and checks that the bitmap is released exactly once, and never while it is still displayed
+ * or cached. The releases are counted by a drawable that doesn't really recycle.
+ */
+public class RecylingBitmapDrawableTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+    private static final int CHANGES = 500;
+
+    public void testNotReleasedUntilDisplayed(){
+        final CountingDrawable drawable = new CountingDrawable();
+        drawable.setIsCached(true);
+        drawable.setIsCached(false);
+        assertEquals(0, drawable.releases.get());
+        assertTrue(drawable.hasValidBitmap());
+
+        drawable.setIsDisplayed(true);
+        drawable.setIsDisplayed(false);
+        assertEquals(1, drawable.releases.get());
+        assertFalse(drawable.hasValidBitmap());
+    }
+
+    public void testChangesAfterReleaseAreIgnored(){
+        final CountingDrawable drawable = new CountingDrawable();
+        drawable.setIsDisplayed(true);
+        drawable.setIsDisplayed(false);
+        drawable.setIsDisplayed(true);
+        drawable.setIsCached(true);
+        drawable.setIsDisplayed(false);
+        drawable.setIsCached(false);
+        assertEquals(1, drawable.releases.get());
+    }
+
+    public void testUnbalancedDecrementsDontRelease(){
+        final CountingDrawable drawable = new CountingDrawable();
+        drawable.setIsCached(true);
+        drawable.setIsDisplayed(true);
+        drawable.setIsDisplayed(false);
+        drawable.setIsDisplayed(false);
+        // Still cached, the extra decrement of the display count is ignored
+        assertEquals(0, drawable.releases.get());
+        drawable.setIsCached(false);
+        assertEquals(1, drawable.releases.get());
+    }
+
+    /**
+     * Threads display, cache and drop the drawable at random while a reference held throughout
+     * keeps it alive. Nothing may be released until that reference goes.
+     */
+    @LargeTest
+    public void testNoPrematureRelease() throws Exception{
+        for(int round = 0; round < ROUNDS; round++){
+            final CountingDrawable drawable = new CountingDrawable();
+            drawable.setIsDisplayed(true);
+            drawable.setIsCached(true);
+
+            runConcurrently(new Work() {
+                @Override
+                public void run(int thread, Random random){
+                    for(int i = 0; i < CHANGES; i++){
+                        final boolean display = random.nextBoolean();
+                        set(drawable, display, true);
+                        if(!drawable.hasValidBitmap()){
+                            throw new AssertionError("Released while held");
+                        }
+                        set(drawable, display, false);
+                    }
+                }
+            });
+            assertEquals("round " + round, 0, drawable.releases.get());
+            assertTrue(drawable.hasValidBitmap());
+
+            drawable.setIsDisplayed(false);
+            drawable.setIsCached(false);
+            assertEquals("round " + round, 1, drawable.releases.get());
+        }
+    }
+
+    /**
+     * Every thread holds one reference and they all drop it at the same time, only one of them
+     * may release the bitmap.
+     */
+    @LargeTest
+    public void testReleasedExactlyOnce() throws Exception{
+        for(int round = 0; round < ROUNDS; round++){
+            final CountingDrawable drawable = new CountingDrawable();
+            for(int thread = 0; thread < THREADS; thread++){
+                set(drawable, thread % 2 == 0, true);
+            }
+
+            runConcurrently(new Work() {
+                @Override
+                public void run(int thread, Random random){
+                    // Churn a little before the last drop so the threads overlap
+                    for(int i = 0; i < CHANGES / 10; i++){
+                        final boolean display = random.nextBoolean();
+                        set(drawable, display, true);
+                        set(drawable, display, false);
+                    }
+                    set(drawable, thread % 2 == 0, false);
+                }
+            });
+            assertEquals("round " + round, 1, drawable.releases.get());
+            assertFalse(drawable.hasValidBitmap());
+        }
+    }
+
+    private static void set(RecylingBitmapDrawable drawable, boolean display, boolean value){
+        if(display){
+            drawable.setIsDisplayed(value);
+        }else {
+            drawable.setIsCached(value);
+        }
+    }
+
+    private interface Work{
+        void run(int thread, Random random);
+    }
+
+    /**
+     * Start {@link #THREADS} threads on the work at the same moment and wait for all of them,
+     * rethrowing the first failure.
+     */
+    private static void runConcurrently(final Work work) throws Exception{
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[THREADS];
+        for(int i = 0; i < THREADS; i++){
+            final int thread = i;
+            threads[i] = new Thread(){
+                @Override
+                public void run(){
+                    try {
+                        start.await();
+                        work.run(thread, new Random(thread));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread : threads){
+            thread.join();
+        }
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    /**
+     * Counts how often its bitmap was released instead of recycling it.
+     */
+    private static class CountingDrawable extends RecylingBitmapDrawable{
+        final AtomicInteger releases = new AtomicInteger();
+
+        CountingDrawable(){
+            super(null, Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+        }
+
+        @Override
+        void recycle(Bitmap bitmap){
+            releases.incrementAndGet();
+        }
+    }
+}
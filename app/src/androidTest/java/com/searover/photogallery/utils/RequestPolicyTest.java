@@ -0,0 +1,97 @@
+package com.searover.photogallery.utils;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries and cancels of {@link RequestPolicy} against a {@link StubHttpServer}.
+ */
+public class RequestPolicyTest extends TestCase {
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    private volatile boolean mSilent;
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Handler() {
+            @Override
+            public byte[] respond(String request) {
+                if(mSilent){
+                    return null;
+                }
+                final int code = mFailuresLeft.getAndDecrement() > 0 ? 503 : 200;
+                return StubHttpServer.response(code, "", "image".getBytes());
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mServer.close();
+        super.tearDown();
+    }
+
+    private int fetch(boolean hedge) throws IOException{
+        final RequestPolicy policy = RequestPolicy.getInstance();
+        final HttpURLConnection connection =
+                policy.execute(new URL(mServer.url("/photo.jpg")), null, hedge);
+        final int code = connection.getResponseCode();
+        HttpTransport.getInstance().release(connection, null, false);
+        return code;
+    }
+
+    public void testRetriesServerErrors() throws IOException{
+        mFailuresLeft.set(2);
+        assertEquals(200, fetch(false));
+        assertEquals(3, mServer.getRequests().size());
+    }
+
+    public void testGivesUpAfterMaxAttempts() throws IOException{
+        mFailuresLeft.set(RequestPolicy.DEFAULT_MAX_ATTEMPTS);
+        try {
+            fetch(false);
+            fail("Expected the last failure");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Response 503"));
+        }
+        assertEquals(RequestPolicy.DEFAULT_MAX_ATTEMPTS, mServer.getRequests().size());
+        // Succeeds again, the failures in a row are reset before the circuit opens
+        assertEquals(200, fetch(false));
+    }
+
+    /**
+     * Cancelled loads interrupt their thread while it waits for a hedged response. However
+     * often that happens, it doesn't count against the host.
+     */
+    public void testInterruptIsNotAFailure() throws Exception{
+        mSilent = true;
+        for(int i = 0; i < 8; i++){
+            final Throwable[] thrown = new Throwable[1];
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(true);
+                    } catch (Throwable t) {
+                        thrown[0] = t;
+                    }
+                }
+            });
+            thread.start();
+            Thread.sleep(50);
+            thread.interrupt();
+            thread.join();
+            assertTrue(String.valueOf(thrown[0]), thrown[0] instanceof InterruptedIOException);
+        }
+        // The unanswered attempts give their connections back
+        mSilent = false;
+        mServer.dropConnections();
+        assertEquals(200, fetch(false));
+    }
+}
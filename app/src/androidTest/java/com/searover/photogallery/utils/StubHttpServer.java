@@ -0,0 +1,253 @@
+package com.searover.photogallery.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A local HTTP server for the tests of the fetch path. Every connection gets its own thread and
+ * may carry several requests, the {@link Handler} makes up the responses.
+ */
+class StubHttpServer {
+    private final ServerSocket mServerSocket;
+    private final Handler mHandler;
+    // Guarded by this
+    private final List<String> mRequests = new ArrayList<String>();
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private int mOpenConnections;
+    private int mMaxOpenConnections;
+    private int mConnections;
+    private volatile int mBytesPerSecond;
+    private volatile int mConnectLatency;
+    private final AtomicBoolean mDropAfterResponse = new AtomicBoolean();
+
+    interface Handler{
+        /**
+         * @param request The request line and headers
+         * @return The whole response, see {@link #response(int, String, byte[])}, or null to
+         * never answer
+         */
+        byte[] respond(String request) throws IOException;
+    }
+
+    StubHttpServer(Handler handler) throws IOException{
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "StubHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param path
+     * @return The URL of the path on this server
+     */
+    String url(String path){
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Send the responses no faster than this, like a slow link.
+     * @param bytesPerSecond 0 for as fast as possible
+     */
+    void setBytesPerSecond(int bytesPerSecond){
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Hold back the first response of every new connection, like the round trips of a TCP and
+     * TLS handshake that a reused connection saves.
+     * @param millis
+     */
+    void setConnectLatency(int millis){
+        mConnectLatency = millis;
+    }
+
+    /**
+     * Close the connection right after the next response, like a link that goes down. With a
+     * response shorter than its Content-Length the client sees the body cut off.
+     */
+    void dropAfterNextResponse(){
+        mDropAfterResponse.set(true);
+    }
+
+    synchronized List<String> getRequests(){
+        return new ArrayList<String>(mRequests);
+    }
+
+    /**
+     * @return How many connections were accepted
+     */
+    synchronized int getConnections(){
+        return mConnections;
+    }
+
+    /**
+     * @return The most connections that were open at the same time
+     */
+    synchronized int getMaxOpenConnections(){
+        return mMaxOpenConnections;
+    }
+
+    /**
+     * Drop every open connection, unanswered requests fail.
+     */
+    synchronized void dropConnections(){
+        for (Socket socket : mSockets){
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+        mSockets.clear();
+    }
+
+    /**
+     * Stop accepting and drop every open connection.
+     */
+    void close(){
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+        }
+        dropConnections();
+    }
+
+    /**
+     * @param code
+     * @param headers Header lines without the Content-Length, each ending in \r\n, may be empty
+     * @param body May be null
+     * @return A response with the status line and a Content-Length
+     */
+    static byte[] response(int code, String headers, byte[] body){
+        final int length = body != null ? body.length : 0;
+        final String head = "HTTP/1.1 " + code + " Stub\r\n" + headers
+                + "Content-Length: " + length + "\r\n\r\n";
+        final byte[] response = new byte[head.length() + length];
+        System.arraycopy(head.getBytes(), 0, response, 0, head.length());
+        if(body != null){
+            System.arraycopy(body, 0, response, head.length(), length);
+        }
+        return response;
+    }
+
+    private void accept(){
+        while (!mServerSocket.isClosed()){
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this){
+                mSockets.add(socket);
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "StubHttpServer connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket){
+        synchronized (this){
+            mConnections++;
+            mOpenConnections++;
+            mMaxOpenConnections = Math.max(mMaxOpenConnections, mOpenConnections);
+        }
+        try {
+            final InputStream in = socket.getInputStream();
+            final OutputStream out = socket.getOutputStream();
+            final int connectLatency = mConnectLatency;
+            if(connectLatency > 0){
+                Thread.sleep(connectLatency);
+            }
+            String request;
+            while ((request = readRequest(in)) != null){
+                synchronized (this){
+                    mRequests.add(request);
+                }
+                final byte[] response = mHandler.respond(request);
+                if(response == null){
+                    // Hold the connection until the client or dropConnections() drops it
+                    while (in.read() != -1){
+                    }
+                    return;
+                }
+                write(out, response);
+                if(mDropAfterResponse.getAndSet(false)){
+                    return;
+                }
+            }
+        } catch (IOException e) {
+        } catch (InterruptedException e) {
+        } finally {
+            synchronized (this){
+                mOpenConnections--;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void write(OutputStream out, byte[] response) throws IOException{
+        final int bytesPerSecond = mBytesPerSecond;
+        if(bytesPerSecond <= 0){
+            out.write(response);
+            out.flush();
+            return;
+        }
+        // Tenths of a second worth at a time
+        final int chunk = Math.max(1, bytesPerSecond / 10);
+        for(int offset = 0; offset < response.length; offset += chunk){
+            out.write(response, offset, Math.min(chunk, response.length - offset));
+            out.flush();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    /**
+     * @return The request line and headers up to the empty line, null at the end of the stream.
+     * Requests are expected without a body.
+     */
+    private static String readRequest(InputStream in) throws IOException{
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        int b;
+        while ((b = in.read()) != -1){
+            head.write(b);
+            // Look for \r\n\r\n
+            if(b == (matched % 2 == 0 ? '\r' : '\n')){
+                matched++;
+                if(matched == 4){
+                    return head.toString();
+                }
+            }else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,158 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Times {@link ThumbnailAtlas} hits: the latency of a single one, and how fast a full screen of
+ * the grid comes back from the atlas, with the bitmaps taken from a {@link BitmapPool} as the
+ * grid does and without. A screen is 1080x1920 at xxhdpi, 3 columns of 7 rows of the 100dp
+ * thumbnails. Run it with the other instrumentation tests and read the figures from logcat under
+ * the tag of this class.
+ */
+@LargeTest
+public class ThumbnailAtlasBenchmark extends TestCase {
+    private static final String TAG = "ThumbnailAtlasBenchmark";
+    private static final int TILE = 300;
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 7;
+    private static final int TILES = COLUMNS * ROWS;
+    // Two screens fit in an atlas of the size the gallery uses
+    private static final int SCREENS = 2;
+    private static final int ATLAS_SIZE = 8 * 1024 * 1024;
+    private static final int WARMUP = 50;
+    private static final int RUNS = 500;
+    private static final int SCREEN_RUNS = 20;
+
+    private File mFile;
+    private ThumbnailAtlas mAtlas;
+
+    @Override
+    protected void setUp() throws Exception{
+        super.setUp();
+        mFile = File.createTempFile("thumbnails", ".atlas");
+        mAtlas = ThumbnailAtlas.open(mFile, TILE, TILE, ATLAS_SIZE);
+        // Wider than a tile, like the photos, so every put crops and scales
+        final Bitmap source = Bitmap.createBitmap(TILE * 4 / 3, TILE, Bitmap.Config.ARGB_8888);
+        for(int i = 0; i < SCREENS * TILES; i++){
+            source.eraseColor(0xff000000 | i * 0x010203);
+            assertTrue(mAtlas.put(key(i), source));
+        }
+        source.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception{
+        mAtlas.close();
+        mFile.delete();
+        new File(mFile.getPath() + ".index").delete();
+        super.tearDown();
+    }
+
+    private static String key(int i){
+        return "http://example.com/photos/" + i + ".jpg";
+    }
+
+    /**
+     * @param pool Where the hits are taken from and given back to, may be null
+     * @return The microseconds a hit took on average, measured around the call
+     */
+    private long timeHits(BitmapPool pool){
+        final Random random = new Random(7);
+        for(int i = 0; i < WARMUP; i++){
+            release(mAtlas.get(key(random.nextInt(SCREENS * TILES)), pool), pool);
+        }
+        long nanos = 0;
+        for(int i = 0; i < RUNS; i++){
+            final String key = key(random.nextInt(SCREENS * TILES));
+            final long start = System.nanoTime();
+            final Bitmap bitmap = mAtlas.get(key, pool);
+            nanos += System.nanoTime() - start;
+            assertNotNull(bitmap);
+            release(bitmap, pool);
+        }
+        return nanos / RUNS / 1000;
+    }
+
+    private static void release(Bitmap bitmap, BitmapPool pool){
+        if(pool == null || !pool.put(bitmap)){
+            bitmap.recycle();
+        }
+    }
+
+    public void testHitLatency(){
+        final long unpooled = timeHits(null);
+        final long pooled = timeHits(new BitmapPool(TILE * TILE * 2));
+        Log.i(TAG, "Hit of " + TILE + "x" + TILE + ": " + unpooled + "us allocating, " + pooled
+                + "us pooled, " + mAtlas.getAverageHitMicros() + "us as the atlas counts it");
+        assertEquals(2 * (WARMUP + RUNS), mAtlas.getHitCount());
+        assertEquals(0, mAtlas.getMissCount());
+    }
+
+    /**
+     * Scroll back and forth between the screens, every one is taken from the atlas whole, and
+     * its bitmaps given back to the pool when it scrolls out of view.
+     * @param pool May be null
+     * @return Screens per second
+     */
+    private float timeScreens(BitmapPool pool){
+        final List<Bitmap> screen = new ArrayList<Bitmap>(TILES);
+        final Set<Bitmap> allocated = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+        final long start = System.nanoTime();
+        for(int run = 0; run < SCREEN_RUNS; run++){
+            final int first = run % SCREENS * TILES;
+            for(int i = 0; i < TILES; i++){
+                final Bitmap bitmap = mAtlas.get(key(first + i), pool);
+                assertNotNull(bitmap);
+                screen.add(bitmap);
+                allocated.add(bitmap);
+            }
+            for (Bitmap bitmap : screen){
+                release(bitmap, pool);
+            }
+            screen.clear();
+        }
+        final float seconds = (System.nanoTime() - start) / 1e9f;
+        if(pool != null){
+            // Only the first screen allocated, the others reused its bitmaps
+            assertEquals(TILES, allocated.size());
+        }
+        return SCREEN_RUNS / seconds;
+    }
+
+    public void testFullScreen(){
+        // Warm up
+        timeScreens(null);
+        final float unpooled = timeScreens(null);
+        final float pooled = timeScreens(new BitmapPool(TILES * TILE * TILE * 2));
+        Log.i(TAG, "Screen of " + TILES + " tiles: " + unpooled + " screens/s allocating ("
+                + unpooled * TILES + " tiles/s), " + pooled + " screens/s pooled ("
+                + pooled * TILES + " tiles/s)");
+        assertEquals(0, mAtlas.getMissCount());
+    }
+
+    public void testHitsSurviveReopening() throws IOException{
+        mAtlas.close();
+        mAtlas = ThumbnailAtlas.open(mFile, TILE, TILE, ATLAS_SIZE);
+        final long start = System.nanoTime();
+        for(int i = 0; i < TILES; i++){
+            final Bitmap bitmap = mAtlas.get(key(i), null);
+            assertNotNull(bitmap);
+            bitmap.recycle();
+        }
+        final long millis = (System.nanoTime() - start) / 1000000;
+        Log.i(TAG, "First screen after opening again: " + millis + "ms");
+    }
+}
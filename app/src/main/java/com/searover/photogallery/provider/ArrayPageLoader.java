@@ -0,0 +1,23 @@
+package com.searover.photogallery.provider;
+
+/**
+ * A {@link PageLoader} over an in-memory array such as {@link Photos#imageThumbUrls}.
+ */
+public class ArrayPageLoader implements PageLoader {
+    private final String[] mUrls;
+
+    public ArrayPageLoader(String[] urls){
+        mUrls = urls;
+    }
+
+    @Override
+    public int getCount(){
+        return mUrls.length;
+    }
+
+    @Override
+    public UrlPage loadPage(int firstIndex, int count){
+        final int end = Math.min(mUrls.length, firstIndex + count);
+        return UrlPage.fromStrings(firstIndex, mUrls, firstIndex, end);
+    }
+}
@@ -0,0 +1,126 @@
+package com.searover.photogallery.provider;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * A {@link PageLoader} for a local file with one URL per line. The first call to
+ * {@link #getCount()} scans the file once and remembers the byte offset of every
+ * <code>indexStride</code>-th line, after that a page is read by seeking close to it, so only
+ * the small offset index stays in memory however long the file is.
+ */
+public class FilePageLoader implements PageLoader {
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private final File mFile;
+    private final int mIndexStride;
+    private long[] mLineOffsets;
+    private int mCount = -1;
+
+    /**
+     * @param file
+     * @param indexStride Lines between two entries of the offset index, the page size of the
+     *                    catalog is a good choice
+     */
+    public FilePageLoader(File file, int indexStride){
+        mFile = file;
+        mIndexStride = Math.max(1, indexStride);
+    }
+
+    @Override
+    public synchronized int getCount() throws IOException{
+        if(mCount < 0){
+            buildIndex();
+        }
+        return mCount;
+    }
+
+    @Override
+    public synchronized UrlPage loadPage(int firstIndex, int count) throws IOException{
+        if(mCount < 0){
+            buildIndex();
+        }
+        final int end = Math.min(mCount, firstIndex + count);
+        final FrontCodedStringTable.Builder builder = new FrontCodedStringTable.Builder();
+        if(firstIndex >= end){
+            return new UrlPage(firstIndex, builder.build());
+        }
+        final int indexSlot = firstIndex / mIndexStride;
+        int line = indexSlot * mIndexStride;
+
+        final RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            file.seek(mLineOffsets[indexSlot]);
+            final InputStream in = new BufferedInputStream(
+                    new FileInputStream(file.getFD()), IO_BUFFER_SIZE);
+            byte[] lineBuffer = new byte[256];
+            int length = 0;
+            int b;
+            // Skip to the first wanted line, then add lines until the page is full
+            while (line < end && (b = in.read()) != -1){
+                if(b == '\n'){
+                    if(line >= firstIndex){
+                        builder.add(lineBuffer, 0, length);
+                    }
+                    line++;
+                    length = 0;
+                }else if(b != '\r' && line >= firstIndex){
+                    if(length == lineBuffer.length){
+                        lineBuffer = Arrays.copyOf(lineBuffer, length * 2);
+                    }
+                    lineBuffer[length++] = (byte) b;
+                }
+            }
+            // The last line of the file may not end with a newline
+            if(line < end){
+                builder.add(lineBuffer, 0, length);
+            }
+            return new UrlPage(firstIndex, builder.build());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void buildIndex() throws IOException{
+        long[] offsets = new long[64];
+        int slots = 0;
+        int lines = 0;
+        long position = 0;
+        boolean lineStarted = false;
+        final InputStream in = new BufferedInputStream(new FileInputStream(mFile), IO_BUFFER_SIZE);
+        try {
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1){
+                for (int i = 0; i < read; i++, position++){
+                    if(!lineStarted){
+                        if(lines % mIndexStride == 0){
+                            if(slots == offsets.length){
+                                offsets = Arrays.copyOf(offsets, slots * 2);
+                            }
+                            offsets[slots++] = position;
+                        }
+                        lineStarted = true;
+                    }
+                    if(buffer[i] == '\n'){
+                        lines++;
+                        lineStarted = false;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if(lineStarted){
+            // Last line without a trailing newline
+            lines++;
+        }
+        mLineOffsets = offsets;
+        mCount = lines;
+    }
+}
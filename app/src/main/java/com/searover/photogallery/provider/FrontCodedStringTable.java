@@ -0,0 +1,260 @@
+package com.searover.photogallery.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * An immutable table of strings (catalog URLs) packed into a single UTF-8 byte array with front
+ * coding: the strings are grouped into blocks, the first string of a block is stored in full
+ * and every following one only as the length of the prefix it shares with the string before it
+ * plus the remaining suffix. URLs from one CDN share long prefixes such as
+ * "http://img0.bdstatic.com/img/image/", so this is many times smaller than a String per URL.
+ *
+ * Lookup by index jumps straight to the block and decodes at most one block's worth of entries,
+ * so it takes constant time whatever the size of the table. {@link #get(int, byte[])} and
+ * {@link Cursor} return an entry without allocating, which is enough to hash it into a cache key.
+ */
+public final class FrontCodedStringTable {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    private final byte[] mData;
+    private final int[] mBlockOffsets;
+    private final int mSize;
+    private final int mBlockSize;
+    private final int mMaxLength;
+
+    private FrontCodedStringTable(byte[] data, int[] blockOffsets, int size, int blockSize,
+                                  int maxLength){
+        mData = data;
+        mBlockOffsets = blockOffsets;
+        mSize = size;
+        mBlockSize = blockSize;
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * @return The number of strings in the table
+     */
+    public int size(){
+        return mSize;
+    }
+
+    /**
+     * @return Length in bytes of the longest entry, the size a buffer passed to
+     * {@link #get(int, byte[])} needs to have
+     */
+    public int getMaxLength(){
+        return mMaxLength;
+    }
+
+    /**
+     * @return Approximate number of bytes held by the table
+     */
+    public int getByteSize(){
+        return mData.length + mBlockOffsets.length * 4;
+    }
+
+    /**
+     * Decode the UTF-8 bytes of an entry into <code>out</code>.
+     * @param index
+     * @param out Buffer of at least {@link #getMaxLength()} bytes
+     * @return The length of the entry
+     */
+    public int get(int index, byte[] out){
+        if(index < 0 || index >= mSize){
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        final int block = index / mBlockSize;
+        int pos = mBlockOffsets[block];
+
+        // The block's first entry is stored in full
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = mData[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        int length = value;
+        System.arraycopy(mData, pos, out, 0, length);
+        pos += length;
+
+        // Every following entry overwrites the previous one from its shared prefix on
+        for (int i = block * mBlockSize; i < index; i++){
+            value = 0;
+            shift = 0;
+            do {
+                b = mData[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            final int prefix = value;
+            value = 0;
+            shift = 0;
+            do {
+                b = mData[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            System.arraycopy(mData, pos, out, prefix, value);
+            pos += value;
+            length = prefix + value;
+        }
+        return length;
+    }
+
+    /**
+     * @param index
+     * @return The entry as a new String
+     */
+    public String getString(int index){
+        final byte[] buffer = new byte[mMaxLength];
+        final int length = get(index, buffer);
+        return new String(buffer, 0, length, UTF_8);
+    }
+
+    /**
+     * @return A re-usable view on the entries of this table
+     */
+    public Cursor newCursor(){
+        return new Cursor();
+    }
+
+    /**
+     * A view on one entry of the table that can be moved to another entry without allocating.
+     * As a CharSequence it exposes the raw bytes as chars, which is exact for ASCII strings
+     * such as (percent-encoded) URLs. Not safe for use from more than one thread.
+     */
+    public final class Cursor implements CharSequence{
+        private final byte[] mBytes = new byte[mMaxLength];
+        private int mLength;
+
+        private Cursor(){
+        }
+
+        /**
+         * Point the cursor at another entry.
+         * @param index
+         * @return this cursor
+         */
+        public Cursor moveTo(int index){
+            mLength = get(index, mBytes);
+            return this;
+        }
+
+        /**
+         * @return The backing bytes of the current entry, valid up to {@link #length()} and
+         * only until the cursor is moved
+         */
+        public byte[] bytes(){
+            return mBytes;
+        }
+
+        @Override
+        public int length(){
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index){
+            if(index < 0 || index >= mLength){
+                throw new IndexOutOfBoundsException();
+            }
+            return (char) (mBytes[index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end){
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString(){
+            return new String(mBytes, 0, mLength, UTF_8);
+        }
+    }
+
+    /**
+     * Builds a table from strings added in order. Sorted input shares the most prefixes but is
+     * not required.
+     */
+    public static class Builder{
+        private final int mBlockSize;
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        private int[] mBlockOffsets = new int[16];
+        private byte[] mPrevious = new byte[64];
+        private int mPreviousLength;
+        private int mSize;
+        private int mMaxLength;
+
+        public Builder(){
+            this(DEFAULT_BLOCK_SIZE);
+        }
+
+        /**
+         * @param blockSize Entries per block, larger blocks are smaller but slower to look up
+         */
+        public Builder(int blockSize){
+            if(blockSize < 1){
+                throw new IllegalArgumentException("blockSize < 1");
+            }
+            mBlockSize = blockSize;
+        }
+
+        public Builder add(String value){
+            final byte[] bytes = value.getBytes(UTF_8);
+            return add(bytes, 0, bytes.length);
+        }
+
+        public Builder add(byte[] bytes, int offset, int length){
+            if(mSize % mBlockSize == 0){
+                final int block = mSize / mBlockSize;
+                if(block == mBlockOffsets.length){
+                    mBlockOffsets = Arrays.copyOf(mBlockOffsets, block * 2);
+                }
+                mBlockOffsets[block] = mData.size();
+                writeVarInt(length);
+                mData.write(bytes, offset, length);
+            }else {
+                int prefix = 0;
+                final int max = Math.min(length, mPreviousLength);
+                while (prefix < max && mPrevious[prefix] == bytes[offset + prefix]){
+                    prefix++;
+                }
+                writeVarInt(prefix);
+                writeVarInt(length - prefix);
+                mData.write(bytes, offset + prefix, length - prefix);
+            }
+            if(mPrevious.length < length){
+                mPrevious = new byte[Math.max(length, mPrevious.length * 2)];
+            }
+            System.arraycopy(bytes, offset, mPrevious, 0, length);
+            mPreviousLength = length;
+            mMaxLength = Math.max(mMaxLength, length);
+            mSize++;
+            return this;
+        }
+
+        public int size(){
+            return mSize;
+        }
+
+        public FrontCodedStringTable build(){
+            final int blocks = (mSize + mBlockSize - 1) / mBlockSize;
+            return new FrontCodedStringTable(mData.toByteArray(),
+                    Arrays.copyOf(mBlockOffsets, blocks), mSize, mBlockSize, mMaxLength);
+        }
+
+        private void writeVarInt(int value){
+            while ((value & ~0x7F) != 0){
+                mData.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mData.write(value);
+        }
+    }
+}
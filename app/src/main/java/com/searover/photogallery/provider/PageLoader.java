@@ -0,0 +1,25 @@
+package com.searover.photogallery.provider;
+
+import java.io.IOException;
+
+/**
+ * Reads the URLs of a catalog a page at a time. Both methods are called on a background thread.
+ */
+public interface PageLoader {
+
+    /**
+     * @return The total number of URLs in the catalog
+     * @throws IOException
+     */
+    int getCount() throws IOException;
+
+    /**
+     * Load the URLs with catalog indexes <code>firstIndex</code> up to (excluding)
+     * <code>firstIndex + count</code>.
+     * @param firstIndex
+     * @param count
+     * @return
+     * @throws IOException
+     */
+    UrlPage loadPage(int firstIndex, int count) throws IOException;
+}
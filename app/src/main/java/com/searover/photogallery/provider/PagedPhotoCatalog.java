@@ -0,0 +1,154 @@
+package com.searover.photogallery.provider;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+import com.searover.photogallery.utils.AsyncTask;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A catalog of photo URLs that is read a page at a time from a {@link PageLoader} on a
+ * background thread. Only the most recently used pages are kept in memory, so the grid can show
+ * the first screen as soon as its page is in and the catalog can be far bigger than the heap
+ * would allow as an array of Strings.
+ *
+ * All methods must be called on the UI thread. When the count or a page becomes available the
+ * {@link OnCatalogChangedListener} is called, also on the UI thread, so the adapter can refresh.
+ */
+public class PagedPhotoCatalog {
+    private static final String TAG = "PagedPhotoCatalog";
+
+    private final PageLoader mLoader;
+    private final int mPageSize;
+    private final LruCache<Integer, UrlPage> mPages;
+    private final Set<Integer> mLoadingPages = new HashSet<Integer>();
+    private OnCatalogChangedListener mListener;
+    private int mCount = -1;
+    private boolean mCountLoading;
+
+    public interface OnCatalogChangedListener{
+        /**
+         * The count is now known or another page has been loaded.
+         */
+        void onCatalogChanged();
+    }
+
+    /**
+     * @param loader Where the pages come from
+     * @param pageSize Number of URLs per page
+     * @param maxResidentPages Number of pages kept in memory, the least recently used page is
+     *                         dropped when another one is loaded
+     */
+    public PagedPhotoCatalog(PageLoader loader, int pageSize, int maxResidentPages){
+        mLoader = loader;
+        mPageSize = pageSize;
+        mPages = new LruCache<Integer, UrlPage>(maxResidentPages);
+    }
+
+    public void setOnCatalogChangedListener(OnCatalogChangedListener listener){
+        mListener = listener;
+    }
+
+    /**
+     * @return The number of URLs in the catalog, 0 until it has been read
+     */
+    public int getCount(){
+        if(mCount < 0){
+            loadCount();
+            return 0;
+        }
+        return mCount;
+    }
+
+    /**
+     * Get the URL at a catalog index. If its page is not in memory it is loaded in the background
+     * and null is returned for now.
+     * @param index
+     * @return
+     */
+    public String getUrl(int index){
+        if(index < 0 || index >= getCount()){
+            return null;
+        }
+        final int pageIndex = index / mPageSize;
+        final UrlPage page = mPages.get(pageIndex);
+        if(page != null){
+            return page.getUrl(index);
+        }
+        loadPage(pageIndex);
+        return null;
+    }
+
+    /**
+     * Drop all resident pages, they are loaded again as they are needed.
+     */
+    public void evictAll(){
+        mPages.evictAll();
+    }
+
+    private void loadCount(){
+        if(mCountLoading){
+            return;
+        }
+        mCountLoading = true;
+        new AsyncTask<Void, Void, Integer>(){
+            @Override
+            protected Integer doInBackground(Void... params) {
+                try {
+                    return mLoader.getCount();
+                } catch (IOException e) {
+                    Log.e(TAG, "loadCount - " + e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Integer count){
+                mCountLoading = false;
+                if(count != null){
+                    mCount = count;
+                    notifyChanged();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    private void loadPage(final int pageIndex){
+        if(!mLoadingPages.add(pageIndex)){
+            return;
+        }
+        new AsyncTask<Void, Void, UrlPage>(){
+            @Override
+            protected UrlPage doInBackground(Void... params) {
+                try {
+                    return mLoader.loadPage(pageIndex * mPageSize, mPageSize);
+                } catch (IOException e) {
+                    Log.e(TAG, "loadPage - " + e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(UrlPage page){
+                mLoadingPages.remove(pageIndex);
+                if(page != null){
+                    if(BuildConfig.DEBUG){
+                        Log.d(TAG, "Loaded page " + pageIndex + " (" + page.getByteSize() + " bytes)");
+                    }
+                    mPages.put(pageIndex, page);
+                    notifyChanged();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+    }
+
+    private void notifyChanged(){
+        if(mListener != null){
+            mListener.onCatalogChanged();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.searover.photogallery.provider;
+
+/**
+ * A page of catalog URLs. The URLs are held in a {@link FrontCodedStringTable}, which is a lot
+ * smaller than a String object (and its char array) per URL.
+ */
+public class UrlPage {
+    private final int mFirstIndex;
+    private final FrontCodedStringTable mUrls;
+
+    /**
+     * @param firstIndex Catalog index of the first URL in this page
+     * @param urls The URLs of the page in catalog order
+     */
+    public UrlPage(int firstIndex, FrontCodedStringTable urls){
+        mFirstIndex = firstIndex;
+        mUrls = urls;
+    }
+
+    /**
+     * Pack a list of URLs into a page.
+     * @param firstIndex
+     * @param urls
+     * @param from
+     * @param to
+     * @return
+     */
+    public static UrlPage fromStrings(int firstIndex, String[] urls, int from, int to){
+        final FrontCodedStringTable.Builder builder = new FrontCodedStringTable.Builder();
+        for (int i = from; i < to; i++){
+            builder.add(urls[i]);
+        }
+        return new UrlPage(firstIndex, builder.build());
+    }
+
+    public int getFirstIndex(){
+        return mFirstIndex;
+    }
+
+    /**
+     * @return The number of URLs in this page
+     */
+    public int size(){
+        return mUrls.size();
+    }
+
+    /**
+     * @param index Catalog index, must be within this page
+     * @return
+     */
+    public String getUrl(int index){
+        return mUrls.getString(index - mFirstIndex);
+    }
+
+    /**
+     * @return The table holding this page's URLs, indexed from the start of the page
+     */
+    public FrontCodedStringTable getUrls(){
+        return mUrls;
+    }
+
+    /**
+     * @return Approximate number of bytes held by this page, used to size the page cache
+     */
+    public int getByteSize(){
+        return mUrls.getByteSize();
+    }
+}
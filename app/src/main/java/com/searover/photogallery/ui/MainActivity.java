@@ -1,6 +1,7 @@
 package com.searover.photogallery.ui;
 
 import android.content.Context;
+import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.ActionBarActivity;
@@ -24,7 +25,7 @@ import java.lang.reflect.TypeVariable;
 
 /**
  * Simple FragmentActivity to hold the main {@link com.searover.photogallery.ui.PhotoGalleryFragment}
- * and not much else.
+ * (or {@link com.searover.photogallery.ui.PhotoGalleryRecyclerFragment}) and not much else.
  */
 public class MainActivity extends FragmentActivity {
 
@@ -43,7 +44,10 @@ public class MainActivity extends FragmentActivity {
 
         if(getSupportFragmentManager().findFragmentByTag(TAG) == null){
             final FragmentTransaction transaction = getSupportFragmentManager().beginTransaction();
-            transaction.add(android.R.id.content, new PhotoGalleryFragment(), TAG);
+            // The GridView grid unless R.bool.use_recycler_view is set
+            final Fragment fragment = getResources().getBoolean(R.bool.use_recycler_view)
+                    ? new PhotoGalleryRecyclerFragment() : new PhotoGalleryFragment();
+            transaction.add(android.R.id.content, fragment, TAG);
             transaction.commit();
         }
     }
@@ -0,0 +1,260 @@
+package com.searover.photogallery.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Toast;
+
+import com.searover.photogallery.BuildConfig;
+import com.searover.photogallery.R;
+import com.searover.photogallery.utils.AsyncTask;
+import com.searover.photogallery.utils.ImageCache;
+import com.searover.photogallery.utils.ImageFetcher;
+import com.searover.photogallery.utils.ProgressiveDecoder;
+import com.searover.photogallery.utils.TileCache;
+import com.searover.photogallery.utils.TileDecoder;
+import com.searover.photogallery.utils.Utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Shows one photo at full resolution. The original is fetched into the HTTP cache by the
+ * {@link ImageFetcher} and decoded from there a tile at a time by a {@link TileDecoder}, so
+ * however large the original is, only a screen sized preview and the {@link TileCache} budget
+ * worth of tiles are ever in memory.
+ */
+public class PhotoDetailFragment extends Fragment {
+    private static final String TAG = "PhotoDetailFragment";
+    private static final String IMAGE_DATA_EXTRA = "extra_image_data";
+    private static final String IMAGE_CACHE_DIR = "thumbs";
+    private static final int TILE_SIZE = 256;
+    // Share of the heap the tile cache may use
+    private static final float TILE_CACHE_PERCENT = 0.125f;
+
+    private String mImageUrl;
+    private int mPreviewSize;
+    private ImageFetcher mImageFetcher;
+    private TileCache mTileCache;
+    private TiledImageView mImageView;
+    private boolean mHasThumbnail;
+    private LoadTask mLoadTask;
+    private FileInputStream mOriginalStream;
+    private TileDecoder mDecoder;
+
+    /**
+     * Factory method to generate a new instance of the fragment given an image URL.
+     * @param imageUrl The image url to load
+     * @return A new instance of PhotoDetailFragment with imageUrl extras
+     */
+    public static PhotoDetailFragment newInstance(String imageUrl){
+        final PhotoDetailFragment f = new PhotoDetailFragment();
+        final Bundle args = new Bundle();
+        args.putString(IMAGE_DATA_EXTRA, imageUrl);
+        f.setArguments(args);
+        return f;
+    }
+
+    /**
+     * Open the detail view for an image on top of the current fragment, back returns to it.
+     * @param activity
+     * @param imageUrl
+     */
+    public static void show(FragmentActivity activity, String imageUrl){
+        activity.getSupportFragmentManager().beginTransaction()
+                .replace(android.R.id.content, newInstance(imageUrl), TAG)
+                .addToBackStack(null)
+                .commit();
+    }
+
+    /**
+     * Empty constractor as per the Fragment documentation
+     */
+    public PhotoDetailFragment(){}
+
+    @Override
+    public void onCreate(Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        mImageUrl = getArguments() != null ? getArguments().getString(IMAGE_DATA_EXTRA) : null;
+
+        final int maxBytes = Math.round(TILE_CACHE_PERCENT * Runtime.getRuntime().maxMemory());
+        mTileCache = new TileCache(TILE_SIZE, maxBytes);
+        // Half the screen is sharp enough to show while the tiles come in
+        final DisplayMetrics displayMetrics = getResources().getDisplayMetrics();
+        mPreviewSize = Math.max(TILE_SIZE,
+                Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels) / 2);
+
+        ImageCache.ImageCacheParams cacheParams =
+                new ImageCache.ImageCacheParams(getActivity(),IMAGE_CACHE_DIR);
+        cacheParams.setMemCacheSizePercent(0.25f);
+        // The detail view decodes its own preview and tiles, the fetcher's size is the preview
+        // size so that the grid thumbnails count as smaller variants of it
+        mImageFetcher = new ImageFetcher(getActivity(), mPreviewSize);
+        mImageFetcher.addImageCache(getActivity().getSupportFragmentManager(), cacheParams);
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState){
+        final View v = inflater.inflate(R.layout.photo_detail_fragment, container, false);
+        mImageView = (TiledImageView) v.findViewById(R.id.detail_view);
+        // Show the thumbnail the grid already has in memory straight away, the preview and
+        // tiles replace it as they are decoded
+        final BitmapDrawable thumbnail = mImageFetcher.getBestCachedVariant(mImageUrl);
+        if(thumbnail != null && Utils.hasHoneycomb()){
+            mImageView.setPlaceholder(thumbnail.getBitmap());
+            mHasThumbnail = true;
+        }
+        return v;
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState){
+        super.onActivityCreated(savedInstanceState);
+        if(mImageUrl != null){
+            mLoadTask = new LoadTask(mImageView, mHasThumbnail);
+            mLoadTask.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR, mImageUrl);
+        }
+    }
+
+    @Override
+    public void onDestroyView(){
+        super.onDestroyView();
+        if(mLoadTask != null){
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        releaseDecoder();
+        mTileCache.evictAll();
+        mImageView = null;
+    }
+
+    @Override
+    public void onPause(){
+        super.onPause();
+        mImageFetcher.flushCache();
+    }
+
+    @Override
+    public void onLowMemory(){
+        super.onLowMemory();
+        mTileCache.evictAll();
+    }
+
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        // Only gives back this fragment's reference, the grid below keeps the cache open
+        mImageFetcher.closeCache();
+    }
+
+    private void releaseDecoder(){
+        if(mDecoder != null){
+            mDecoder.recycle();
+            mDecoder = null;
+        }
+        if(mOriginalStream != null){
+            try {
+                mOriginalStream.close();
+            } catch (IOException e) {
+            }
+            mOriginalStream = null;
+        }
+    }
+
+    /**
+     * Fetches the original, opens a decoder on it and decodes a preview the size of the view.
+     * While the original downloads, previews of the partial data are shown.
+     */
+    private class LoadTask extends AsyncTask<String, Bitmap, Bitmap>
+            implements ProgressiveDecoder.OnPartialImageListener{
+        private final TiledImageView mView;
+        private final boolean mHasThumbnail;
+        private FileInputStream mStream;
+        private TileDecoder mTileDecoder;
+
+        /**
+         * @param view
+         * @param hasThumbnail Whether the view already shows a thumbnail, which only a preview of
+         *                     the whole picture should replace
+         */
+        LoadTask(TiledImageView view, boolean hasThumbnail){
+            mView = view;
+            mHasThumbnail = hasThumbnail;
+        }
+
+        @Override
+        public void onPartialImage(Bitmap preview, boolean progressive){
+            // The partial data of a baseline JPEG only covers its top, which is worse than a
+            // complete thumbnail
+            if(!isCancelled() && (progressive || !mHasThumbnail)){
+                publishProgress(preview);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Bitmap... previews){
+            if(!isCancelled()){
+                mView.setPlaceholder(previews[0]);
+            }
+        }
+
+        @Override
+        protected Bitmap doInBackground(String... params) {
+            mStream = mImageFetcher.getOriginalStream(params[0], mPreviewSize, this);
+            if(mStream == null || isCancelled()){
+                return null;
+            }
+            try {
+                mTileDecoder = new TileDecoder(mStream.getFD(), mTileCache, mView);
+            } catch (IOException e) {
+                Log.e(TAG, "LoadTask - " + e);
+                return null;
+            }
+            return mTileDecoder.decodePreview(mPreviewSize);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap preview){
+            mLoadTask = null;
+            if(mTileDecoder == null){
+                closeStream();
+                Toast.makeText(getActivity(), "Couldn't load the photo", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Opened " + mTileDecoder.getWidth() + "x" + mTileDecoder.getHeight()
+                        + " original of " + mImageUrl);
+            }
+            mOriginalStream = mStream;
+            mDecoder = mTileDecoder;
+            mView.setImage(mDecoder, mTileCache, preview);
+        }
+
+        @Override
+        protected void onCancelled(Bitmap preview){
+            if(mTileDecoder != null){
+                mTileDecoder.recycle();
+            }
+            if(preview != null){
+                preview.recycle();
+            }
+            closeStream();
+        }
+
+        private void closeStream(){
+            if(mStream != null){
+                try {
+                    mStream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package com.searover.photogallery.ui;
 
-import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
-import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.util.Log;
@@ -24,9 +22,15 @@ import android.widget.Toast;
 
 import com.searover.photogallery.BuildConfig;
 import com.searover.photogallery.R;
+import com.searover.photogallery.provider.ArrayPageLoader;
+import com.searover.photogallery.provider.PagedPhotoCatalog;
 import com.searover.photogallery.provider.Photos;
+import com.searover.photogallery.utils.BindTimer;
+import com.searover.photogallery.utils.DecodeThrottle;
+import com.searover.photogallery.utils.Downscaler;
 import com.searover.photogallery.utils.ImageCache;
 import com.searover.photogallery.utils.ImageFetcher;
+import com.searover.photogallery.utils.ScrollPrefetcher;
 import com.searover.photogallery.utils.Utils;
 
 /**
@@ -40,11 +44,16 @@ import com.searover.photogallery.utils.Utils;
 public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItemClickListener {
     private static final  String TAG = "PhotoGalleryFragment";
     private static final String IMAGE_CACHE_DIR = "thumbs";
+    private static final int PREFETCH_MIN_ROWS = 1;
+    private static final int PREFETCH_MAX_ROWS = 4;
+    private static final int CATALOG_PAGE_SIZE = 100;
+    private static final int CATALOG_RESIDENT_PAGES = 10;
 
     private int mImageThumbSize;
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
     private ImageFetcher mImageFetcher;
+    private ScrollPrefetcher mPrefetcher;
 
     /**
      * Empty constractor as per the Fragment documentation
@@ -59,7 +68,11 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
         mImageThumbSize = getResources().getDimensionPixelSize(R.dimen.image_thumbnail_size);
         mImageThumbSpacing = getResources().getDimensionPixelOffset(R.dimen.image_thumbnail_spacing);
 
-        mAdapter = new ImageAdapter(getActivity());
+        // The catalog is read a page at a time, swap in a FilePageLoader (or any other
+        // PageLoader) for catalogs that are too big to be compiled in
+        final PagedPhotoCatalog catalog = new PagedPhotoCatalog(
+                new ArrayPageLoader(Photos.imageThumbUrls), CATALOG_PAGE_SIZE, CATALOG_RESIDENT_PAGES);
+        mAdapter = new ImageAdapter(getActivity(), catalog);
         Activity activity = getActivity();
         ImageCache.ImageCacheParams cacheParams =
                 new ImageCache.ImageCacheParams(getActivity(),IMAGE_CACHE_DIR);
@@ -68,7 +81,20 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         mImageFetcher = new ImageFetcher(getActivity(),mImageThumbSize);
         mImageFetcher.setLoadingImage(R.drawable.empty_photo);
+        mImageFetcher.setErrorImage(R.drawable.broken_photo);
+        // Area average the sampled decode down to the cell size to avoid aliased thumbnails
+        mImageFetcher.setDownscaleFilter(Downscaler.Filter.BOX);
+        // Thumbnails are small, a second request for a slow one is cheaper than the wait
+        mImageFetcher.setHedgeRequests(true);
+        // Catalogs serve the same photo under several URLs, store and decode it once
+        mImageFetcher.setDeduplicate(true);
+        // Cells show the thumbnails center cropped at the fetcher's size, keep them in an atlas
+        mImageFetcher.setThumbnailAtlas(true);
         mImageFetcher.addImageCache(getActivity().getSupportFragmentManager(), cacheParams);
+
+        // Warms the caches for the rows that are about to scroll into view
+        mPrefetcher = new ScrollPrefetcher(mImageFetcher, mAdapter, PREFETCH_MIN_ROWS,
+                PREFETCH_MAX_ROWS);
     }
 
     @Override
@@ -80,20 +106,18 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
         mGridView.setOnScrollListener(new AbsListView.OnScrollListener() {
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState) {
-                // Pause fetcher to ensure smoother scrolling when flinging
-                if(scrollState == AbsListView.OnScrollListener.SCROLL_STATE_FLING){
-                    // Before Honeycomb pause image loading on scroll to help with performance
-                    if(!Utils.hasHoneycomb()){
-                        mImageFetcher.setPauseWork(true);
-                    }
-                }else {
-                    mImageFetcher.setPauseWork(false);
-                }
+                // Throttle the fetcher to ensure smoother scrolling, it backs off according to
+                // the measured frame times and ramps back up once the grid comes to rest
+                final boolean scrolling =
+                        scrollState != AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
+                mImageFetcher.setScrolling(scrolling);
+                mPrefetcher.setScrolling(scrolling);
             }
 
             @Override
             public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-
+                mPrefetcher.onScroll(firstVisibleItem, visibleItemCount, totalItemCount,
+                        mAdapter.getNumColumns());
             }
         });
         // This listener is used to get the final width of the GridView and then calculate the
@@ -128,6 +152,8 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
     public void onResume(){
         super.onResume();
         mImageFetcher.setExitTaskEarly(false);
+        // Whatever was trimmed while in the background is needed again now
+        mImageFetcher.restoreMemory();
         mAdapter.notifyDataSetChanged();
     }
 
@@ -136,7 +162,14 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
         super.onPause();
         mImageFetcher.setPauseWork(false);
         mImageFetcher.setExitTaskEarly(true);
+        mPrefetcher.cancelAll();
         mImageFetcher.flushCache();
+        if(BuildConfig.DEBUG){
+            final DecodeThrottle throttle = mImageFetcher.getDecodeThrottle();
+            Log.d(TAG, "bind time avg = " + mAdapter.mBindTimer.getAverageMicros() + "us max = "
+                    + mAdapter.mBindTimer.getMaxMicros() + "us, jank rate = "
+                    + throttle.getJankRate());
+        }
     }
 
     @Override
@@ -145,10 +178,13 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
         mImageFetcher.closeCache();
     }
 
-    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-//    @Override
+    @Override
     public void onItemClick(AdapterView<?> parent, View v, int position, long id){
-//        final Intent i = new Intent()
+        // Null for the header row and for URLs whose page is still loading
+        final Object url = mAdapter.getItem(position);
+        if(url != null){
+            PhotoDetailFragment.show(getActivity(), String.valueOf(url));
+        }
     }
 
     @Override
@@ -172,23 +208,30 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
      * columns in the GridView is used to create a fake top row of empty views as we use a
      * transparent ActionBar and don't want the real top row of images to start off coverd by it.
      */
-    private class ImageAdapter extends BaseAdapter{
+    private class ImageAdapter extends BaseAdapter
+            implements PagedPhotoCatalog.OnCatalogChangedListener{
 
         private final Context mContext;
+        private final PagedPhotoCatalog mCatalog;
+        private final BindTimer mBindTimer = new BindTimer(TAG);
         private int mItemHeight = 0;
         private int mNumColumns = 0;
         private int mActionBarHeight = 0;
         private GridView.LayoutParams mImageViewLayoutParams;
+        private AbsListView.LayoutParams mHeaderLayoutParams;
 
-        public ImageAdapter(Context context){
+        public ImageAdapter(Context context, PagedPhotoCatalog catalog){
             super();
             mContext = context;
+            mCatalog = catalog;
+            mCatalog.setOnCatalogChangedListener(this);
             mImageViewLayoutParams = new GridView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
             // Calculate ActionBar height
             TypedValue tv = new TypedValue();
             if(context.getTheme().resolveAttribute(android.R.attr.actionBarSize,tv,true)){
                 mActionBarHeight = TypedValue.complexToDimensionPixelSize(tv.data,context.getResources().getDisplayMetrics());
             }
+            mHeaderLayoutParams = new AbsListView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,mActionBarHeight);
         }
 
         public int getCount() {
@@ -198,12 +241,17 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
             }
 
             // Size + number of columns for top empty row
-            return Photos.imageThumbUrls.length + mNumColumns;
+            return mCatalog.getCount() + mNumColumns;
         }
 
         @Override
         public Object getItem(int position) {
-            return position < mNumColumns ? null : Photos.imageThumbUrls[position - mNumColumns];
+            return position < mNumColumns ? null : mCatalog.getUrl(position - mNumColumns);
+        }
+
+        @Override
+        public void onCatalogChanged(){
+            notifyDataSetChanged();
         }
 
         @Override
@@ -233,13 +281,14 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
             if(position < mNumColumns){
                 if(convertView == null){
                     convertView = new View(mContext);
+                    // Set empty view with height of ActionBar
+                    convertView.setLayoutParams(mHeaderLayoutParams);
                 }
-                // Set empty view with height of ActionBar
-                convertView.setLayoutParams(new AbsListView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,mActionBarHeight));
                 return convertView;
             }
 
             // Now handle the main ImageView thumbnails
+            mBindTimer.start();
             ImageView imageView;
             if(convertView == null){
                 // If it's not recycled, instantiate and initialize
@@ -258,7 +307,15 @@ public class PhotoGalleryFragment extends Fragment implements AdapterView.OnItem
 
             // Finally load the image asynchronously into the ImageView, this also take care of
             // setting a placeholder image while the background thread runs
-            mImageFetcher.loadImage(Photos.imageThumbUrls[position - mNumColumns], imageView);
+            final String url = mCatalog.getUrl(position - mNumColumns);
+            if(url == null){
+                // The page holding this URL is still loading, the view is bound again once it's in
+                mImageFetcher.showLoadingImage(imageView);
+            }else {
+                mPrefetcher.onBind(url);
+                mImageFetcher.loadImage(url, imageView);
+            }
+            mBindTimer.stop();
             return imageView;
         }
 
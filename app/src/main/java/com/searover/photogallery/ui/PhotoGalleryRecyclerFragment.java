@@ -0,0 +1,341 @@
+package com.searover.photogallery.ui;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Bundle;
+import android.support.v4.app.Fragment;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
+import android.widget.Toast;
+
+import com.searover.photogallery.BuildConfig;
+import com.searover.photogallery.R;
+import com.searover.photogallery.provider.ArrayPageLoader;
+import com.searover.photogallery.provider.PagedPhotoCatalog;
+import com.searover.photogallery.provider.Photos;
+import com.searover.photogallery.utils.BindTimer;
+import com.searover.photogallery.utils.DecodeThrottle;
+import com.searover.photogallery.utils.Downscaler;
+import com.searover.photogallery.utils.ImageCache;
+import com.searover.photogallery.utils.ImageFetcher;
+import com.searover.photogallery.utils.ImageWorker;
+import com.searover.photogallery.utils.ScrollPrefetcher;
+
+/**
+ * The same photo grid as {@link PhotoGalleryFragment} on a RecyclerView with a
+ * GridLayoutManager. The differences that matter for scrolling:
+ *  o there is no fake header row, the list is padded by the ActionBar height instead,
+ *  o image work is started from onBindViewHolder and cancelled as soon as a holder is recycled,
+ *  o the span count follows the width with setSpanCount rather than a new adapter,
+ *  o view holders come from a pool that outlives the RecyclerView, so re-creating the view
+ *    (coming back from the back stack) doesn't inflate a screen of new cells.
+ * Rows ahead of the scroll are prefetched with the {@link ScrollPrefetcher}, fed from the
+ * RecyclerView scroll callbacks.
+ */
+public class PhotoGalleryRecyclerFragment extends Fragment {
+    private static final String TAG = "PhotoRecyclerFragment";
+    private static final String IMAGE_CACHE_DIR = "thumbs";
+    private static final int PREFETCH_MIN_ROWS = 1;
+    private static final int PREFETCH_MAX_ROWS = 4;
+    private static final int CATALOG_PAGE_SIZE = 100;
+    private static final int CATALOG_RESIDENT_PAGES = 10;
+    // Holders kept around for re-use, a few screens worth of cells
+    private static final int MAX_POOLED_VIEWS = 60;
+    // Holders kept bound just off screen so that scrolling back doesn't need a re-bind
+    private static final int ITEM_VIEW_CACHE_SIZE = 8;
+
+    private int mImageThumbSize;
+    private int mImageThumbSpacing;
+    private ImageAdapter mAdapter;
+    private ImageFetcher mImageFetcher;
+    private ScrollPrefetcher mPrefetcher;
+    // Owned by the fragment rather than static, the holders reference the Activity's context
+    private RecyclerView.RecycledViewPool mViewPool;
+
+    /**
+     * Empty constractor as per the Fragment documentation
+     */
+    public PhotoGalleryRecyclerFragment(){}
+
+    @Override
+    public void onCreate(Bundle savedInstanceState){
+        super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+
+        mImageThumbSize = getResources().getDimensionPixelSize(R.dimen.image_thumbnail_size);
+        mImageThumbSpacing = getResources().getDimensionPixelOffset(R.dimen.image_thumbnail_spacing);
+
+        final PagedPhotoCatalog catalog = new PagedPhotoCatalog(
+                new ArrayPageLoader(Photos.imageThumbUrls), CATALOG_PAGE_SIZE, CATALOG_RESIDENT_PAGES);
+        mAdapter = new ImageAdapter(getActivity(), catalog);
+        ImageCache.ImageCacheParams cacheParams =
+                new ImageCache.ImageCacheParams(getActivity(),IMAGE_CACHE_DIR);
+        cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
+
+        mImageFetcher = new ImageFetcher(getActivity(),mImageThumbSize);
+        mImageFetcher.setLoadingImage(R.drawable.empty_photo);
+        mImageFetcher.setErrorImage(R.drawable.broken_photo);
+        mImageFetcher.setDownscaleFilter(Downscaler.Filter.BOX);
+        mImageFetcher.setHedgeRequests(true);
+        // Catalogs serve the same photo under several URLs, store and decode it once
+        mImageFetcher.setDeduplicate(true);
+        // Cells show the thumbnails center cropped at the fetcher's size, keep them in an atlas
+        mImageFetcher.setThumbnailAtlas(true);
+        mImageFetcher.addImageCache(getActivity().getSupportFragmentManager(), cacheParams);
+
+        mPrefetcher = new ScrollPrefetcher(mImageFetcher, mAdapter, PREFETCH_MIN_ROWS,
+                PREFETCH_MAX_ROWS);
+
+        mViewPool = new RecyclerView.RecycledViewPool();
+        mViewPool.setMaxRecycledViews(ImageAdapter.TYPE_PHOTO, MAX_POOLED_VIEWS);
+    }
+
+    @Override
+    public View onCreateView(final LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState){
+        final View v = inflater.inflate(R.layout.photo_gallery_recycler_fragment, container, false);
+        final RecyclerView recyclerView = (RecyclerView) v.findViewById(R.id.recyclerview);
+        final GridLayoutManager layoutManager = new GridLayoutManager(getActivity(), 1);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setRecycledViewPool(mViewPool);
+        recyclerView.setItemViewCacheSize(ITEM_VIEW_CACHE_SIZE);
+        // Start the first row below the transparent ActionBar without a fake header row
+        recyclerView.setPadding(0, mAdapter.getActionBarHeight(), 0, 0);
+        recyclerView.addItemDecoration(new RecyclerView.ItemDecoration() {
+            @Override
+            public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+                outRect.set(0, 0, mImageThumbSpacing, mImageThumbSpacing);
+            }
+        });
+        recyclerView.setAdapter(mAdapter);
+        recyclerView.setOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                // Throttle the fetcher to ensure smoother scrolling
+                final boolean scrolling = newState != RecyclerView.SCROLL_STATE_IDLE;
+                mImageFetcher.setScrolling(scrolling);
+                mPrefetcher.setScrolling(scrolling);
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                final int first = layoutManager.findFirstVisibleItemPosition();
+                final int last = layoutManager.findLastVisibleItemPosition();
+                if(first != RecyclerView.NO_POSITION && last >= first){
+                    mPrefetcher.onScroll(first, last - first + 1, mAdapter.getItemCount(),
+                            layoutManager.getSpanCount());
+                }
+            }
+        });
+        // Follow the width of the RecyclerView, unlike the GridView a change of span count only
+        // needs a new layout pass so the listener stays registered to handle resizes
+        recyclerView.getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
+            @Override
+            public void onGlobalLayout() {
+                final int width = recyclerView.getWidth() - recyclerView.getPaddingLeft()
+                        - recyclerView.getPaddingRight();
+                final int numColumns = (int)Math.floor(width / (mImageThumbSize + mImageThumbSpacing));
+                if(numColumns > 0 && (numColumns != layoutManager.getSpanCount()
+                        || mAdapter.getItemHeight() == 0)){
+                    layoutManager.setSpanCount(numColumns);
+                    mAdapter.setItemHeight((width / numColumns) - mImageThumbSpacing);
+                    if(BuildConfig.DEBUG){
+                        Log.d(TAG,"onCreateView - numColumns set to " + numColumns);
+                    }
+                }
+            }
+        });
+        return v;
+    }
+
+    @Override
+    public void onResume(){
+        super.onResume();
+        mImageFetcher.setExitTaskEarly(false);
+        // Whatever was trimmed while in the background is needed again now
+        mImageFetcher.restoreMemory();
+        mAdapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void onPause(){
+        super.onPause();
+        mImageFetcher.setPauseWork(false);
+        mImageFetcher.setExitTaskEarly(true);
+        mPrefetcher.cancelAll();
+        mImageFetcher.flushCache();
+        if(BuildConfig.DEBUG){
+            final DecodeThrottle throttle = mImageFetcher.getDecodeThrottle();
+            Log.d(TAG, "bind time avg = " + mAdapter.mBindTimer.getAverageMicros() + "us max = "
+                    + mAdapter.mBindTimer.getMaxMicros() + "us, jank rate = "
+                    + throttle.getJankRate());
+        }
+    }
+
+    @Override
+    public void onDestroy(){
+        super.onDestroy();
+        mViewPool.clear();
+        mImageFetcher.closeCache();
+    }
+
+    @Override
+    public void onCreateOptionsMenu(Menu menu, MenuInflater inflater){
+        inflater.inflate(R.menu.menu_main,menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item){
+        switch (item.getItemId()){
+            case R.id.clear_cache:
+                mImageFetcher.clearCache();
+                Toast.makeText(getActivity(),"Caches have been cleared",Toast.LENGTH_LONG).show();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private static class PhotoViewHolder extends RecyclerView.ViewHolder{
+        final ImageView imageView;
+
+        PhotoViewHolder(ImageView imageView){
+            super(imageView);
+            this.imageView = imageView;
+        }
+    }
+
+    /**
+     * Adapter that backs the RecyclerView, one cell per catalog URL.
+     */
+    private class ImageAdapter extends RecyclerView.Adapter<PhotoViewHolder>
+            implements PagedPhotoCatalog.OnCatalogChangedListener, ScrollPrefetcher.ItemSource{
+        static final int TYPE_PHOTO = 0;
+
+        private final Context mContext;
+        private final PagedPhotoCatalog mCatalog;
+        private final BindTimer mBindTimer = new BindTimer(TAG);
+        private int mItemHeight = 0;
+        private int mActionBarHeight = 0;
+
+        public ImageAdapter(Context context, PagedPhotoCatalog catalog){
+            super();
+            mContext = context;
+            mCatalog = catalog;
+            mCatalog.setOnCatalogChangedListener(this);
+            setHasStableIds(true);
+            // Calculate ActionBar height
+            TypedValue tv = new TypedValue();
+            if(context.getTheme().resolveAttribute(android.R.attr.actionBarSize,tv,true)){
+                mActionBarHeight = TypedValue.complexToDimensionPixelSize(tv.data,context.getResources().getDisplayMetrics());
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            // If the cell size is yet to be determined, return no items
+            if(mItemHeight == 0){
+                return 0;
+            }
+            return mCatalog.getCount();
+        }
+
+        @Override
+        public Object getItem(int position) {
+            return mCatalog.getUrl(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public int getItemViewType(int position){
+            return TYPE_PHOTO;
+        }
+
+        @Override
+        public void onCatalogChanged(){
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public PhotoViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            final ImageView imageView = new RecyclingImageView(mContext);
+            imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
+            imageView.setLayoutParams(new RecyclerView.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, mItemHeight));
+            final PhotoViewHolder holder = new PhotoViewHolder(imageView);
+            imageView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    final String url = mCatalog.getUrl(holder.getPosition());
+                    if(url != null){
+                        PhotoDetailFragment.show(getActivity(), url);
+                    }
+                }
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(PhotoViewHolder holder, int position) {
+            mBindTimer.start();
+            final ImageView imageView = holder.imageView;
+            // Pooled holders may have been created for another column width
+            final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+            if(params.height != mItemHeight){
+                params.height = mItemHeight;
+                imageView.setLayoutParams(params);
+            }
+
+            final String url = mCatalog.getUrl(position);
+            if(url == null){
+                // The page holding this URL is still loading, the holder is bound again once it's in
+                mImageFetcher.showLoadingImage(imageView);
+            }else {
+                mPrefetcher.onBind(url);
+                mImageFetcher.loadImage(url, imageView);
+            }
+            mBindTimer.stop();
+        }
+
+        @Override
+        public void onViewRecycled(PhotoViewHolder holder) {
+            // The holder is off screen, don't spend a decode slot on it
+            ImageWorker.cancelWork(holder.imageView);
+        }
+
+        /**
+         * Sets the item height. Useful for when we know the column
+         * width so the height can be set to match.
+         * @param height
+         */
+        public void setItemHeight(int height){
+            if(height == mItemHeight){
+                return;
+            }
+            mItemHeight = height;
+            mImageFetcher.setImageSize(height);
+            notifyDataSetChanged();
+        }
+
+        public int getItemHeight(){
+            return mItemHeight;
+        }
+
+        public int getActionBarHeight(){
+            return mActionBarHeight;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.searover.photogallery.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.searover.photogallery.utils.TileCache;
+import com.searover.photogallery.utils.TileDecoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A pan and zoom view for images too large to decode as a single bitmap. A small preview of the
+ * whole image is drawn first, and on top of it the tiles that are on screen at the sample level
+ * that matches the current zoom: the largest power of two that still gives at least one decoded
+ * pixel per screen pixel. Missing tiles are requested from the {@link TileDecoder} closest to the
+ * center of the view first, so memory only depends on the view size and the {@link TileCache}
+ * budget, not on the size of the image.
+ */
+public class TiledImageView extends View implements TileDecoder.OnTileDecodedListener {
+    // Never zoom in further than this many screen pixels per image pixel
+    private static final float MAX_SCALE = 2f;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+    private final List<Long> mWanted = new ArrayList<Long>();
+    private final List<Float> mWantedDistance = new ArrayList<Float>();
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    private TileDecoder mDecoder;
+    private TileCache mCache;
+    private Bitmap mPreview;
+    private Bitmap mPlaceholder;
+    private int mImageWidth;
+    private int mImageHeight;
+
+    // Screen pixels per image pixel, and the position of the image's top left on screen
+    private float mScale;
+    private float mMinScale;
+    private float mTranslateX;
+    private float mTranslateY;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener(){
+            @Override
+            public boolean onScale(ScaleGestureDetector detector){
+                zoomBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                return true;
+            }
+        });
+        mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener(){
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY){
+                mTranslateX -= distanceX;
+                mTranslateY -= distanceY;
+                clampTranslation();
+                invalidate();
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e){
+                // Toggle between fit to screen and 1:1
+                final float target = mScale < 1f ? 1f : mMinScale;
+                zoomBy(target / mScale, e.getX(), e.getY());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Set a bitmap to show until {@link #setImage(TileDecoder, TileCache, Bitmap)} is called, such
+     * as the thumbnail of the image that is already in memory. It is drawn fit to the view and
+     * must not be recycled while it is shown.
+     * @param placeholder
+     */
+    public void setPlaceholder(Bitmap placeholder){
+        mPlaceholder = placeholder;
+        invalidate();
+    }
+
+    /**
+     * Show an image. The view takes over the preview bitmap but not the decoder or the cache.
+     * @param decoder Decoder of the original image
+     * @param cache Cache for the decoded tiles
+     * @param preview The whole image at a low resolution, may be null
+     */
+    public void setImage(TileDecoder decoder, TileCache cache, Bitmap preview){
+        mDecoder = decoder;
+        mCache = cache;
+        // Keep the placeholder up if there's no preview, it's the same picture
+        mPreview = preview != null ? preview : mPlaceholder;
+        mImageWidth = decoder.getWidth();
+        mImageHeight = decoder.getHeight();
+        resetScale();
+        invalidate();
+    }
+
+    @Override
+    public void onTileDecoded(long key, TileCache.Tile tile){
+        if(mCache == null){
+            tile.bitmap.recycle();
+            return;
+        }
+        mCache.put(key, tile);
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh){
+        super.onSizeChanged(w, h, oldw, oldh);
+        resetScale();
+    }
+
+    @Override
+    protected void onDetachedFromWindow(){
+        mDecoder = null;
+        mCache = null;
+        mPreview = null;
+        mPlaceholder = null;
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event){
+        boolean handled = mScaleDetector.onTouchEvent(event);
+        handled = mGestureDetector.onTouchEvent(event) || handled;
+        return handled || super.onTouchEvent(event);
+    }
+
+    private void resetScale(){
+        if(mImageWidth == 0 || getWidth() == 0){
+            return;
+        }
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+        mMinScale = Math.min(mMinScale, MAX_SCALE);
+        mScale = mMinScale;
+        clampTranslation();
+    }
+
+    private void zoomBy(float factor, float focusX, float focusY){
+        final float scale = Math.max(mMinScale, Math.min(MAX_SCALE, mScale * factor));
+        // Keep the image point under the focus where it is
+        mTranslateX = focusX - (focusX - mTranslateX) * scale / mScale;
+        mTranslateY = focusY - (focusY - mTranslateY) * scale / mScale;
+        mScale = scale;
+        clampTranslation();
+        invalidate();
+    }
+
+    /**
+     * Center the image on an axis where it is smaller than the view, otherwise don't let it
+     * leave a gap at either edge.
+     */
+    private void clampTranslation(){
+        final float width = mImageWidth * mScale;
+        final float height = mImageHeight * mScale;
+        if(width <= getWidth()){
+            mTranslateX = (getWidth() - width) / 2;
+        }else {
+            mTranslateX = Math.max(getWidth() - width, Math.min(0, mTranslateX));
+        }
+        if(height <= getHeight()){
+            mTranslateY = (getHeight() - height) / 2;
+        }else {
+            mTranslateY = Math.max(getHeight() - height, Math.min(0, mTranslateY));
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas){
+        if(mDecoder == null){
+            if(mPlaceholder != null){
+                drawPlaceholder(canvas);
+            }
+            return;
+        }
+        if(mScale == 0){
+            return;
+        }
+        if(mPreview != null){
+            mDst.set(mTranslateX, mTranslateY, mTranslateX + mImageWidth * mScale,
+                    mTranslateY + mImageHeight * mScale);
+            canvas.drawBitmap(mPreview, null, mDst, mPaint);
+        }
+
+        // The coarsest level that still has a decoded pixel for every screen pixel
+        int level = 0;
+        while ((1 << (level + 1)) * mScale <= 1f){
+            level++;
+        }
+        final int sampleSize = 1 << level;
+        if(mPreview != null && mPreview.getWidth() * sampleSize >= mImageWidth){
+            // The preview is already at least as sharp as the tiles would be
+            mDecoder.request(Collections.<Long>emptyList());
+            return;
+        }
+
+        final int tileSize = mCache.getTileSize();
+        final float extent = tileSize * sampleSize;
+        // Visible part of the image in image pixels
+        final float left = Math.max(0, -mTranslateX / mScale);
+        final float top = Math.max(0, -mTranslateY / mScale);
+        final float right = Math.min(mImageWidth, (getWidth() - mTranslateX) / mScale);
+        final float bottom = Math.min(mImageHeight, (getHeight() - mTranslateY) / mScale);
+        final int firstColumn = (int) (left / extent);
+        final int lastColumn = (int) Math.ceil(right / extent);
+        final int firstRow = (int) (top / extent);
+        final int lastRow = (int) Math.ceil(bottom / extent);
+        final float centerX = getWidth() / 2f;
+        final float centerY = getHeight() / 2f;
+
+        mWanted.clear();
+        mWantedDistance.clear();
+        for (int row = firstRow; row < lastRow; row++){
+            for (int column = firstColumn; column < lastColumn; column++){
+                final float x = mTranslateX + column * extent * mScale;
+                final float y = mTranslateY + row * extent * mScale;
+                final long key = TileCache.key(level, column, row);
+                final TileCache.Tile tile = mCache.get(key);
+                if(tile != null){
+                    mSrc.set(0, 0, tile.width, tile.height);
+                    mDst.set(x, y, x + tile.width * sampleSize * mScale,
+                            y + tile.height * sampleSize * mScale);
+                    canvas.drawBitmap(tile.bitmap, mSrc, mDst, mPaint);
+                }else {
+                    final float size = extent * mScale;
+                    final float dx = x + size / 2 - centerX;
+                    final float dy = y + size / 2 - centerY;
+                    mWanted.add(key);
+                    mWantedDistance.add(dx * dx + dy * dy);
+                }
+            }
+        }
+        // Ask for the missing tiles, closest to the center first. This also drops requests for
+        // tiles that are no longer visible.
+        mDecoder.request(sortByDistance());
+    }
+
+    private void drawPlaceholder(Canvas canvas){
+        final float scale = Math.min((float) getWidth() / mPlaceholder.getWidth(),
+                (float) getHeight() / mPlaceholder.getHeight());
+        final float width = mPlaceholder.getWidth() * scale;
+        final float height = mPlaceholder.getHeight() * scale;
+        final float left = (getWidth() - width) / 2;
+        final float top = (getHeight() - height) / 2;
+        mDst.set(left, top, left + width, top + height);
+        canvas.drawBitmap(mPlaceholder, null, mDst, mPaint);
+    }
+
+    private List<Long> sortByDistance(){
+        final int count = mWanted.size();
+        final List<Integer> order = new ArrayList<Integer>(count);
+        for (int i = 0; i < count; i++){
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(mWantedDistance.get(a), mWantedDistance.get(b));
+            }
+        });
+        final List<Long> sorted = new ArrayList<Long>(count);
+        for (Integer i : order){
+            sorted.add(mWanted.get(i));
+        }
+        return sorted;
+    }
+}
@@ -339,6 +339,10 @@ public abstract class AsyncTask<Params, Progress, Result> {
     }
 
     private Result postResult(Result result) {
+        if (isResultDeliveredElsewhere()) {
+            mStatus = Status.FINISHED;
+            return result;
+        }
         @SuppressWarnings("unchecked")
         Message message = sHandler.obtainMessage(MESSAGE_POST_RESULT,
                 new AsyncTaskResult<Result>(this, result));
@@ -346,6 +350,18 @@ public abstract class AsyncTask<Params, Progress, Result> {
         return result;
     }
 
+    /**
+     * Override to return true if the task hands its result to the UI thread by itself (for
+     * example batched with other results once per frame). No message is then posted to the
+     * UI thread when the task finishes, and neither {@link #onPostExecute} nor
+     * {@link #onCancelled} will be called.
+     *
+     * @return true to skip posting the result to the UI thread
+     */
+    protected boolean isResultDeliveredElsewhere() {
+        return false;
+    }
+
     /**
      * Returns the current status of this task.
      *
@@ -355,6 +371,17 @@ public abstract class AsyncTask<Params, Progress, Result> {
         return mStatus;
     }
 
+    /**
+     * Returns <tt>true</tt> once a worker thread has picked up this task. Unlike
+     * {@link #getStatus()}, which is {@link Status#RUNNING} from the moment the task is
+     * executed, this is false while the task still waits in the queue of its executor.
+     *
+     * @return <tt>true</tt> if {@link #doInBackground} has been called
+     */
+    public final boolean isStarted() {
+        return mTaskInvoked.get();
+    }
+
     /**
      * Override this method to perform a computation on a background thread. The
      * specified parameters are the parameters passed to {@link #execute}
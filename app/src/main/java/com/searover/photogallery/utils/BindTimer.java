@@ -0,0 +1,69 @@
+package com.searover.photogallery.utils;
+
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+/**
+ * Measures how long an adapter spends binding its views, so that grid implementations can be
+ * compared on the UI thread time they cost per item. Together with the jank rate of the
+ * {@link DecodeThrottle} this shows where a frame went. Must only be used from the UI thread.
+ */
+public class BindTimer {
+    // Log the figures every this many binds in debug builds
+    private static final int LOG_INTERVAL = 100;
+
+    private final String mTag;
+    private long mStartNanos;
+    private long mBinds;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * @param tag Tag used when logging, usually that of the adapter's fragment
+     */
+    public BindTimer(String tag){
+        mTag = tag;
+    }
+
+    /**
+     * Call at the start of getView / onBindViewHolder.
+     */
+    public void start(){
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Call when the bind is done.
+     */
+    public void stop(){
+        if(mStartNanos == 0){
+            return;
+        }
+        final long elapsed = System.nanoTime() - mStartNanos;
+        mStartNanos = 0;
+        mBinds++;
+        mTotalNanos += elapsed;
+        if(elapsed > mMaxNanos){
+            mMaxNanos = elapsed;
+        }
+        if(BuildConfig.DEBUG && mBinds % LOG_INTERVAL == 0){
+            Log.d(mTag, "binds = " + mBinds + ", bind time avg = " + getAverageMicros()
+                    + "us max = " + getMaxMicros() + "us");
+        }
+    }
+
+    /**
+     * @return Average bind time in microseconds
+     */
+    public long getAverageMicros(){
+        return mBinds == 0 ? 0 : mTotalNanos / mBinds / 1000;
+    }
+
+    /**
+     * @return Longest bind time in microseconds
+     */
+    public long getMaxMicros(){
+        return mMaxNanos / 1000;
+    }
+}
@@ -0,0 +1,221 @@
+package com.searover.photogallery.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A size bounded pool of mutable bitmaps that can be re-used with inBitmap. Bitmaps are held by
+ * strong references, so unlike a set of SoftReferences they survive the garbage collector, and
+ * the byte budget keeps the pool from competing with the memory cache. When the pool is full
+ * the oldest bitmaps are dropped first.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private int mMaxSize;
+    private int mSize;
+
+    /**
+     * @param maxSize The maximum number of bytes of bitmaps held by the pool
+     */
+    public BitmapPool(int maxSize){
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Offer a bitmap to the pool. Nothing else may use the bitmap afterwards.
+     * @param bitmap
+     * @return true if the pool took the bitmap, false if it can't be re-used and the caller
+     * should dispose of it
+     */
+    public boolean put(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || !Utils.hasHoneycomb()){
+            return false;
+        }
+        final int size = getBitmapByteCount(bitmap);
+        synchronized (this){
+            if(size > mMaxSize){
+                return false;
+            }
+            mBitmaps.addLast(bitmap);
+            mSize += size;
+            trimToSizeLocked(mMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Take a bitmap that can be used as inBitmap for the given decode out of the pool.
+     * @param options - BitmapFactory.Options with out* options populated
+     * @return A bitmap which is removed from the pool, or null if none fits
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options){
+        final Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()){
+            final Bitmap item = iterator.next();
+            if(item.isRecycled()){
+                iterator.remove();
+                continue;
+            }
+            if(canUseForInBitmap(item, options)){
+                iterator.remove();
+                mSize -= getBitmapByteCount(item);
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take a bitmap to draw or copy pixels into out of the pool.
+     * @param width
+     * @param height
+     * @param config
+     * @return A mutable bitmap of exactly that size and config, which is removed from the pool,
+     * or null if none fits
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+        final int byteCount = width * height * getBytesPerPixel(config);
+        final Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()){
+            final Bitmap item = iterator.next();
+            if(item.isRecycled()){
+                iterator.remove();
+                continue;
+            }
+            final boolean exact = item.getWidth() == width && item.getHeight() == height
+                    && item.getConfig() == config;
+            // From KitKat on any bitmap whose allocation is large enough can be reconfigured
+            if(exact || (Utils.hasKitkat() && byteCount <= item.getAllocationByteCount())){
+                iterator.remove();
+                mSize -= getBitmapByteCount(item);
+                if(!exact){
+                    item.reconfigure(width, height, config);
+                }
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the oldest bitmaps until the pool holds at most <code>maxSize</code> bytes.
+     * @param maxSize
+     */
+    public synchronized void trimToSize(int maxSize){
+        trimToSizeLocked(maxSize);
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public void evictAll(){
+        trimToSize(0);
+    }
+
+    /**
+     * Change the byte budget of the pool, trimming it if it is now over budget.
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(int maxSize){
+        mMaxSize = maxSize;
+        trimToSizeLocked(maxSize);
+    }
+
+    public synchronized int getMaxSize(){
+        return mMaxSize;
+    }
+
+    /**
+     * @return The number of bytes of bitmaps currently in the pool
+     */
+    public synchronized int size(){
+        return mSize;
+    }
+
+    private void trimToSizeLocked(int maxSize){
+        int evicted = 0;
+        while (mSize > maxSize && !mBitmaps.isEmpty()){
+            mSize -= getBitmapByteCount(mBitmaps.removeFirst());
+            evicted++;
+        }
+        if(mBitmaps.isEmpty()){
+            mSize = 0;
+        }
+        if(BuildConfig.DEBUG && evicted > 0){
+            Log.d(TAG, "Evicted " + evicted + " bitmaps, pool size = " + mSize);
+        }
+    }
+
+    /**
+     *
+     * @param candidate - Bitmap to check
+     * @param targetOptions Options that have the out* value populated
+     * @return ture if <code>candidate</code> can be used for inBitmap re-use with <code>targetOptions</code>
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options targetOptions){
+        if(!Utils.hasKitkat()){
+            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
+            return candidate.getWidth() == targetOptions.outWidth
+                    && candidate.getHeight() == targetOptions.outHeight
+                    && targetOptions.inSampleSize == 1;
+        }
+
+        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
+        // is smaller then the resuable bitmap candidate allocation byte count.
+        int width = targetOptions.outWidth / targetOptions.inSampleSize;
+        int height = targetOptions.outHeight / targetOptions.inSampleSize;
+        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
+        return byteCount <= candidate.getAllocationByteCount();
+    }
+
+    /**
+     * Return the bytes per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration
+     * @return The byte usage per pixel
+     */
+    static int getBytesPerPixel(Bitmap.Config config){
+        if(config == Bitmap.Config.ARGB_8888){
+            return 4;
+        }else if(config == Bitmap.Config.RGB_565){
+            return 2;
+        }else if(config == Bitmap.Config.ARGB_4444){
+            return 2;
+        }else if(config == Bitmap.Config.ALPHA_8){
+            return 1;
+        }
+        return 1;
+    }
+
+    /**
+     * Get the size in bytes of a bitmap. Note that from Android 4.4(KitKat) onward this returns
+     * the allocated memory size of the bitmap which can be larger than the actual bitmap data
+     * byte count ( in the case it was re-used).
+     * @param bitmap
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public static int getBitmapByteCount(Bitmap bitmap){
+        // From Kitkat onward use getAllocationByteCount() as allocated bytes can potentially be
+        // larger than bitmap byte count.
+        if(Utils.hasKitkat()){
+            return bitmap.getAllocationByteCount();
+        }
+        if(Utils.hasHoneycombMR1()){
+            return bitmap.getByteCount();
+        }
+        // Pre HC-MR1
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,272 @@
+package com.searover.photogallery.utils;
+
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stores the bodies of the HTTP disk cache once per content rather than once per URL, since the
+ * same image is often served under several URLs.
+ *
+ * Once a body is downloaded under its URL's entry, {@link #intern(String)} computes its SHA-1
+ * digest. The body then moves to an entry of its own named by the digest, the blob, and the URL's
+ * entry keeps only its metadata with the digest in it. The blob's second value is the number of
+ * URL entries that point to it. When another URL turns out to have the same content, its copy is
+ * dropped and the count goes up.
+ *
+ * Eviction stays least recently used over all entries. Reading a URL also reads its blob, so a
+ * blob is as recent as the most recent of its URLs. When a URL entry is evicted the count of its
+ * blob goes down, and the blob goes once no URL points to it. A blob that is evicted before its
+ * URLs leaves them dangling: {@link #openBody(DiskLruCache.Snapshot, HttpCacheMetadata)} returns
+ * null for them and they are downloaded again.
+ *
+ * The reference counts are only changed with the cache locked, which is also the lock the
+ * evictions happen under.
+ */
+public class ContentStore implements DiskLruCache.OnEvictListener {
+    private static final String TAG = "ContentStore";
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // Log the figures every this many interned bodies in debug builds
+    private static final int LOG_INTERVAL = 20;
+
+    private final DiskLruCache mCache;
+    private final int mBodyIndex;
+    private final int mReferencesIndex;
+
+    // Guarded by this
+    private long mInterned;
+    private long mShared;
+    private long mSavedBytes;
+
+    /**
+     * @param cache A cache with two values per entry
+     * @param bodyIndex The value that holds the body, the other one holds the metadata of URL
+     *                  entries and the reference count of blobs
+     */
+    public ContentStore(DiskLruCache cache, int bodyIndex){
+        mCache = cache;
+        mBodyIndex = bodyIndex;
+        mReferencesIndex = 1 - bodyIndex;
+        cache.setOnEvictListener(this);
+    }
+
+    /**
+     * Move the body of a URL entry that was just committed to the blob of its content. The
+     * caller makes sure no one else edits the entry meanwhile.
+     * @param key The key of the URL entry
+     * @return The digest of the body, null if it couldn't be moved and stays where it is
+     * @throws IOException
+     */
+    public String intern(String key) throws IOException{
+        final DiskLruCache.Snapshot snapshot = mCache.get(key);
+        if(snapshot == null){
+            return null;
+        }
+        final HttpCacheMetadata metadata;
+        final String digest;
+        final DiskLruCache.Editor editor;
+        try {
+            metadata = HttpCacheMetadata.parse(snapshot.getString(mReferencesIndex));
+            if(metadata.getContentDigest() != null){
+                return metadata.getContentDigest();
+            }
+            digest = digest(snapshot.getInputStream(mBodyIndex));
+            if(digest == null){
+                return null;
+            }
+            editor = snapshot.edit();
+        } finally {
+            snapshot.close();
+        }
+        if(editor == null){
+            return null;
+        }
+
+        final boolean shared = addReference(digest, 1);
+        if(!shared && !createBlob(digest, key)){
+            editor.abort();
+            return null;
+        }
+        try {
+            metadata.setContentDigest(digest);
+            // An empty body, the blob has it now
+            editor.newOutputStream(mBodyIndex).close();
+            editor.set(mReferencesIndex, metadata.toString());
+            editor.commit();
+        } catch (IOException e) {
+            editor.abort();
+            addReference(digest, -1);
+            throw e;
+        }
+
+        synchronized (this){
+            mInterned++;
+            if(shared){
+                mShared++;
+                mSavedBytes += metadata.getContentLength() > 0 ? metadata.getContentLength() : 0;
+            }
+            if(BuildConfig.DEBUG && mInterned % LOG_INTERVAL == 0){
+                Log.d(TAG, "interned = " + mInterned + ", shared = " + mShared
+                        + ", saved = " + mSavedBytes / 1024 + "KB");
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Open the body of a URL entry.
+     * @param snapshot A snapshot of the URL entry, which is closed if the body is in a blob
+     * @param metadata The metadata of the entry
+     * @return The body, null if it was in a blob that has been evicted since
+     * @throws IOException
+     */
+    public InputStream openBody(DiskLruCache.Snapshot snapshot, HttpCacheMetadata metadata)
+            throws IOException{
+        final String digest = metadata.getContentDigest();
+        if(digest == null){
+            return snapshot.getInputStream(mBodyIndex);
+        }
+        snapshot.close();
+        final DiskLruCache.Snapshot blob = mCache.get(digest);
+        if(blob == null){
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Blob " + digest + " is gone");
+            }
+            return null;
+        }
+        DiskLruCache.closeQuietly(blob.getInputStream(mReferencesIndex));
+        return blob.getInputStream(mBodyIndex);
+    }
+
+    /**
+     * Drop the reference of a URL entry whose body was replaced, or that is about to be removed.
+     * @param digest The content digest from the entry's old metadata, may be null
+     * @throws IOException
+     */
+    public void release(String digest) throws IOException{
+        if(digest != null){
+            addReference(digest, -1);
+        }
+    }
+
+    @Override
+    public void onEvict(String key) throws IOException{
+        // Called with the cache locked. Blobs have no digest in their second value. Not a get,
+        // an eviction isn't a hit
+        final String value = mCache.peekString(key, mReferencesIndex);
+        if(value != null){
+            release(HttpCacheMetadata.parse(value).getContentDigest());
+        }
+    }
+
+    /**
+     * @return How many URLs turned out to have the same content as one already stored
+     */
+    public synchronized long getShared(){
+        return mShared;
+    }
+
+    /**
+     * @return The bytes not stored a second time because of that
+     */
+    public synchronized long getSavedBytes(){
+        return mSavedBytes;
+    }
+
+    /**
+     * Change the reference count of a blob, removing it when no URL entry points to it anymore.
+     * @param digest
+     * @param delta
+     * @return False if there is no such blob, or it is being written and the count couldn't be
+     * changed
+     * @throws IOException
+     */
+    private boolean addReference(String digest, int delta) throws IOException{
+        synchronized (mCache){
+            // Not a get, the count is bookkeeping and no hit, also when an eviction changes it
+            final String value = mCache.peekString(digest, mReferencesIndex);
+            if(value == null){
+                return false;
+            }
+            final long references = HttpCacheMetadata.parseLong(value, 0) + delta;
+            if(references <= 0){
+                return mCache.remove(digest);
+            }
+            final DiskLruCache.Editor editor = mCache.edit(digest);
+            if(editor == null){
+                // Someone is writing the blob, the count stays as it was
+                return false;
+            }
+            editor.set(mReferencesIndex, Long.toString(references));
+            editor.commit();
+            return true;
+        }
+    }
+
+    /**
+     * Copy the body of a URL entry to a new blob with one reference.
+     * @param digest
+     * @param key
+     * @return False if the blob is being created by someone else or the copy failed
+     */
+    private boolean createBlob(String digest, String key) throws IOException{
+        final DiskLruCache.Editor editor = mCache.edit(digest);
+        if(editor == null){
+            return false;
+        }
+        final DiskLruCache.Snapshot snapshot = mCache.get(key);
+        if(snapshot == null){
+            editor.abort();
+            return false;
+        }
+        final InputStream in = snapshot.getInputStream(mBodyIndex);
+        OutputStream out = null;
+        try {
+            out = editor.newOutputStream(mBodyIndex);
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1){
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            out = null;
+            editor.set(mReferencesIndex, "1");
+            editor.commit();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "createBlob - " + e);
+            editor.abort();
+            return false;
+        } finally {
+            DiskLruCache.closeQuietly(out);
+            snapshot.close();
+        }
+    }
+
+    /**
+     * @param in Closed when done
+     * @return The SHA-1 digest of the stream in hex, null if the platform can't compute it
+     * @throws IOException
+     */
+    private static String digest(InputStream in) throws IOException{
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1){
+                digest.update(buffer, 0, count);
+            }
+            return ImageCache.bytesToHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread state for the decode* methods in {@link com.searover.photogallery.utils.ImageResizer}.
+ * Every decoding thread gets one {@link android.graphics.BitmapFactory.Options} and one
+ * inTempStorage buffer which are reset and handed out again for each decode, so decoding a stream
+ * of thumbnails doesn't leave a trail of Options objects and 16K scratch arrays for the GC.
+ *
+ * The counters can be used to check that a scroll through the grid settles at zero allocations
+ * per decode once every decoding thread has created its context.
+ */
+public final class DecodeContext {
+    private static final String TAG = "DecodeContext";
+    // Log the allocations per decode every this many decodes in debug builds
+    private static final int LOG_INTERVAL = 100;
+
+    // Same size the framework allocates for itself when inTempStorage is not set
+    private static final int TEMP_STORAGE_SIZE = 16 * 1024;
+
+    private static final AtomicLong sDecodeCount = new AtomicLong();
+    private static final AtomicLong sAllocationCount = new AtomicLong();
+
+    private static final ThreadLocal<DecodeContext> sContext = new ThreadLocal<DecodeContext>(){
+        @Override
+        protected DecodeContext initialValue(){
+            return new DecodeContext();
+        }
+    };
+
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final byte[] mTempStorage = new byte[TEMP_STORAGE_SIZE];
+    private boolean mInUse;
+
+    private DecodeContext(){
+        // One Options and one temp storage buffer
+        sAllocationCount.addAndGet(2);
+    }
+
+    /**
+     * Returns the calling thread's Options, reset to the defaults and with the pooled
+     * inTempStorage attached. Must be given back with {@link #release(BitmapFactory.Options)}.
+     * If the thread's Options are already in use (a decode nested inside another) a fresh set
+     * is returned instead.
+     * @return
+     */
+    public static BitmapFactory.Options obtainOptions(){
+        final long decodes = sDecodeCount.incrementAndGet();
+        if(BuildConfig.DEBUG && decodes % LOG_INTERVAL == 0){
+            Log.d(TAG, "decodes = " + decodes + ", allocations per decode = "
+                    + getAllocationsPerDecode());
+        }
+        final DecodeContext context = sContext.get();
+        if(context.mInUse){
+            sAllocationCount.incrementAndGet();
+            return new BitmapFactory.Options();
+        }
+        context.mInUse = true;
+        final BitmapFactory.Options options = context.mOptions;
+        reset(options);
+        options.inTempStorage = context.mTempStorage;
+        return options;
+    }
+
+    /**
+     * Give Options obtained from {@link #obtainOptions()} back to the calling thread's context.
+     * Any inBitmap reference is cleared so the pooled Options don't keep a bitmap alive.
+     * @param options
+     */
+    public static void release(BitmapFactory.Options options){
+        final DecodeContext context = sContext.get();
+        if(options == context.mOptions){
+            options.inBitmap = null;
+            context.mInUse = false;
+        }
+    }
+
+    /**
+     * @return Number of decodes that asked for Options
+     */
+    public static long getDecodeCount(){
+        return sDecodeCount.get();
+    }
+
+    /**
+     * @return Number of Options and temp storage buffers allocated for those decodes
+     */
+    public static long getAllocationCount(){
+        return sAllocationCount.get();
+    }
+
+    /**
+     * @return Average allocations per decode so far
+     */
+    public static float getAllocationsPerDecode(){
+        final long decodes = sDecodeCount.get();
+        return decodes == 0 ? 0f : (float) sAllocationCount.get() / decodes;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void reset(BitmapFactory.Options options){
+        // BitmapFactory.Options has no reset(), so put back the values a new instance has
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        options.inMutable = false;
+        options.inBitmap = null;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inDither = false;
+        options.inScaled = true;
+        options.inDensity = 0;
+        options.inTargetDensity = 0;
+        options.inScreenDensity = 0;
+        if(!Utils.hasLollipop()){
+            // Ignored from Lollipop on
+            options.inPurgeable = false;
+            options.inInputShareable = false;
+        }
+        options.inPreferQualityOverSpeed = false;
+        options.outWidth = 0;
+        options.outHeight = 0;
+        options.outMimeType = null;
+        options.mCancel = false;
+    }
+}
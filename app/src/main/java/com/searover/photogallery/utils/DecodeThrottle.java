@@ -0,0 +1,283 @@
+package com.searover.photogallery.utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Paces background decoding against the UI frame rate. Rather than the all or nothing of
+ * {@link ImageWorker#setPauseWork(boolean)} it keeps two budgets that follow the measured frame
+ * intervals:
+ *  o the number of decodes allowed to run at once, which bounds the background CPU used, and
+ *  o the number of finished decodes that may be bound to their views in a single frame.
+ * A janky frame halves the per-frame budget and drops a decode slot, smooth frames grow them
+ * back a little at a time (faster once scrolling has stopped) so the grid fills in without a
+ * sudden burst of work.
+ *
+ * Finished decodes are handed over from the worker threads through a lock-free queue and bound
+ * in one batch per frame, so a burst of results after a fling wakes the UI thread once per frame
+ * rather than once per result.
+ *
+ * Jank and fill latency (time from request to bind) are counted so the trade-off can be checked.
+ */
+public class DecodeThrottle {
+    private static final String TAG = "DecodeThrottle";
+
+    private static final long FRAME_INTERVAL_NANOS = 16666667L;
+    // A frame that took longer than this is counted as jank
+    private static final long JANK_THRESHOLD_NANOS = FRAME_INTERVAL_NANOS * 3 / 2;
+    // Stop watching frames after this many frames with nothing to do
+    private static final int IDLE_FRAMES_BEFORE_STOP = 30;
+    // Smooth frames needed before another concurrent decode is allowed
+    private static final int SMOOTH_FRAMES_PER_SLOT = 8;
+
+    private final Object mLock;
+    private final int mMaxConcurrent;
+    private final int mMaxCompletionsPerFrame;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by mLock, used from the worker threads
+    private int mAllowedConcurrent;
+    private int mActive;
+
+    // Filled from any thread, drained on the UI thread once per frame
+    private final ConcurrentLinkedQueue<Runnable> mCompletions = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private volatile boolean mMonitoring;
+
+    // Only touched on the UI thread
+    private float mCompletionBudget;
+    private boolean mScrolling;
+    private long mLastFrameNanos;
+    private int mIdleFrames;
+    private int mSmoothFrames;
+    private FrameCallbackCompat mFrameCallback;
+
+    private long mFrames;
+    private long mJankFrames;
+    private long mFills;
+    private long mFillLatencyTotal;
+    private long mFillLatencyMax;
+
+    /**
+     * @param lock The lock the decoding threads wait on, notified when a decode slot frees up
+     * @param maxConcurrent Upper bound of decodes running at once
+     * @param maxCompletionsPerFrame Upper bound of results bound to views per frame
+     */
+    public DecodeThrottle(Object lock, int maxConcurrent, int maxCompletionsPerFrame){
+        mLock = lock;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mMaxCompletionsPerFrame = Math.max(1, maxCompletionsPerFrame);
+        mAllowedConcurrent = mMaxConcurrent;
+        mCompletionBudget = mMaxCompletionsPerFrame;
+    }
+
+    /**
+     * Try to take a decode slot. Must be called with the lock passed to the constructor held;
+     * wait on that lock and try again if this returns false. Every successful call has to be
+     * matched by {@link #releaseDecode()}.
+     * @return
+     */
+    public boolean tryAcquireDecode(){
+        if(mActive < mAllowedConcurrent){
+            mActive++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Give back a slot taken with {@link #tryAcquireDecode()}.
+     */
+    public void releaseDecode(){
+        synchronized (mLock){
+            mActive--;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Queue a completion (binding a result to its view) to be run on the UI thread in the next
+     * frame that has budget left. May be called from any thread.
+     * @param completion
+     */
+    public void postCompletion(Runnable completion){
+        mCompletions.offer(completion);
+        // Only wake the UI thread if the frame callback isn't already running
+        if(!mMonitoring && !mWakeupPending.getAndSet(true)){
+            mHandler.post(mWakeup);
+        }
+    }
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            mWakeupPending.set(false);
+            startMonitoring();
+        }
+    };
+
+    /**
+     * Tell the throttle whether the user is scrolling. While scrolling the budgets only grow
+     * slowly, and once scrolling stops they ramp back up to the maximum. Must be called on the
+     * UI thread.
+     * @param scrolling
+     */
+    public void setScrolling(boolean scrolling){
+        mScrolling = scrolling;
+        if(scrolling){
+            startMonitoring();
+        }
+    }
+
+    /**
+     * Record the time it took to fill a view.
+     * @param requestTime {@link SystemClock#uptimeMillis()} when the image was requested
+     */
+    public void recordFill(long requestTime){
+        final long latency = SystemClock.uptimeMillis() - requestTime;
+        mFills++;
+        mFillLatencyTotal += latency;
+        if(latency > mFillLatencyMax){
+            mFillLatencyMax = latency;
+        }
+    }
+
+    /**
+     * @return Fraction of observed frames that took longer than 1.5 frame intervals
+     */
+    public float getJankRate(){
+        return mFrames == 0 ? 0f : (float) mJankFrames / mFrames;
+    }
+
+    /**
+     * @return Average time in milliseconds from request to bind
+     */
+    public long getAverageFillLatency(){
+        return mFills == 0 ? 0 : mFillLatencyTotal / mFills;
+    }
+
+    /**
+     * @return Longest time in milliseconds from request to bind
+     */
+    public long getMaxFillLatency(){
+        return mFillLatencyMax;
+    }
+
+    private void startMonitoring(){
+        mIdleFrames = 0;
+        if(mMonitoring){
+            return;
+        }
+        mMonitoring = true;
+        mLastFrameNanos = 0;
+        if(mFrameCallback == null){
+            mFrameCallback = Utils.hasJellyBean() ? new ChoreographerCallback() : new HandlerCallback();
+        }
+        mFrameCallback.post();
+    }
+
+    private void onFrame(long frameTimeNanos){
+        if(mLastFrameNanos != 0){
+            final long interval = frameTimeNanos - mLastFrameNanos;
+            mFrames++;
+            if(interval > JANK_THRESHOLD_NANOS){
+                mJankFrames++;
+                mSmoothFrames = 0;
+                mCompletionBudget = Math.max(1f, mCompletionBudget / 2);
+                synchronized (mLock){
+                    mAllowedConcurrent = Math.max(1, mAllowedConcurrent - 1);
+                }
+            }else {
+                mSmoothFrames++;
+                mCompletionBudget = Math.min(mMaxCompletionsPerFrame,
+                        mCompletionBudget + (mScrolling ? 0.25f : 1f));
+                final int framesPerSlot = mScrolling ? SMOOTH_FRAMES_PER_SLOT * 2 : SMOOTH_FRAMES_PER_SLOT;
+                if(mSmoothFrames >= framesPerSlot){
+                    mSmoothFrames = 0;
+                    synchronized (mLock){
+                        if(mAllowedConcurrent < mMaxConcurrent){
+                            mAllowedConcurrent++;
+                            mLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        }
+        mLastFrameNanos = frameTimeNanos;
+
+        // Bind this frame's share of the finished work in one go
+        final int budget = (int) mCompletionBudget;
+        Runnable completion;
+        for (int run = 0; run < budget && (completion = mCompletions.poll()) != null; run++){
+            completion.run();
+        }
+
+        final boolean busy;
+        synchronized (mLock){
+            busy = mActive > 0 || mAllowedConcurrent < mMaxConcurrent;
+        }
+        if(busy || mScrolling || !mCompletions.isEmpty()
+                || mCompletionBudget < mMaxCompletionsPerFrame){
+            mIdleFrames = 0;
+        }else {
+            mIdleFrames++;
+        }
+        if(mIdleFrames >= IDLE_FRAMES_BEFORE_STOP){
+            mMonitoring = false;
+            // A worker may have queued a result after the check above but before it could see
+            // that monitoring stopped, in which case it didn't post a wakeup
+            if(!mCompletions.isEmpty()){
+                startMonitoring();
+                return;
+            }
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "jank rate = " + getJankRate() + ", fill latency avg = "
+                        + getAverageFillLatency() + "ms max = " + getMaxFillLatency() + "ms");
+            }
+            return;
+        }
+        mFrameCallback.post();
+    }
+
+    private interface FrameCallbackCompat{
+        void post();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class ChoreographerCallback implements FrameCallbackCompat, Choreographer.FrameCallback{
+        @Override
+        public void post(){
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos){
+            onFrame(frameTimeNanos);
+        }
+    }
+
+    /**
+     * Before JellyBean there is no Choreographer, so approximate frames with a Handler.
+     */
+    private class HandlerCallback implements FrameCallbackCompat, Runnable{
+        @Override
+        public void post(){
+            mHandler.postDelayed(this, FRAME_INTERVAL_NANOS / 1000000L);
+        }
+
+        @Override
+        public void run(){
+            onFrame(SystemClock.uptimeMillis() * 1000000L);
+        }
+    }
+}
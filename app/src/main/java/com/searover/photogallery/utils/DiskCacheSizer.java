@@ -0,0 +1,200 @@
+package com.searover.photogallery.utils;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.File;
+
+/**
+ * Sizes a {@link DiskLruCache} from the storage of the device and from how it is used.
+ *
+ * The size is bounded by the device class, a small device gets a smaller upper bound, and by a
+ * share of the storage that is free (counting what the cache itself takes). Within those bounds
+ * the cache starts at the size asked for. Every {@link #EVALUATE_INTERVAL} lookups the sizer
+ * looks at the ghost hits of the cache, the misses on entries it evicted lately: if enough of
+ * the lookups were those, a larger cache would have had them and the cache grows. When the free
+ * storage runs low, or the bound from it drops below the size, the cache shrinks.
+ *
+ * Each evaluation is logged with the figures that led to it in debug builds, and changes of size
+ * always.
+ */
+public class DiskCacheSizer {
+    private static final String TAG = "DiskCacheSizer";
+
+    /** The smallest size worth having a disk cache for */
+    public static final long MIN_SIZE = 2 * 1024 * 1024; // 2MB
+
+    // Upper bounds of the device classes
+    private static final long SMALL_DEVICE_MAX_SIZE = 16 * 1024 * 1024; // 16MB
+    private static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024; // 32MB
+    private static final long LARGE_DEVICE_MAX_SIZE = 64 * 1024 * 1024; // 64MB
+    // Memory classes in MB that set the device class apart
+    private static final int SMALL_MEMORY_CLASS = 32;
+    private static final int LARGE_MEMORY_CLASS = 128;
+
+    // Share of the free storage the cache may take
+    private static final float FREE_SPACE_SHARE = 0.05f;
+    // Free storage below which the cache gives space back, in bytes and as a share of the total
+    private static final long LOW_STORAGE_BYTES = 64 * 1024 * 1024;
+    private static final float LOW_STORAGE_SHARE = 0.05f;
+    // Share of the lookups that missed evicted entries above which the cache grows, as long as
+    // it is that full
+    private static final float GROW_GHOST_RATE = 0.02f;
+    private static final float GROW_FULLNESS = 0.9f;
+    private static final float GROW_FACTOR = 1.25f;
+    private static final float SHRINK_FACTOR = 0.5f;
+    // Lookups between two evaluations
+    private static final int EVALUATE_INTERVAL = 200;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // Guarded by this
+    private long mLastHits;
+    private long mLastMisses;
+    private long mLastGhostHits;
+    private long mEvaluations;
+    private long mGrowths;
+    private long mShrinks;
+
+    /**
+     * @param directory The directory of the cache, to look at the storage it is on
+     * @param maxSize The upper bound, see {@link #getMaxSize(Context)}
+     */
+    public DiskCacheSizer(File directory, long maxSize){
+        mDirectory = directory;
+        mMaxSize = Math.max(MIN_SIZE, maxSize);
+    }
+
+    /**
+     * @param context
+     * @return The most a disk cache of this kind of device should take
+     */
+    public static long getMaxSize(Context context){
+        final ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if(activityManager == null){
+            return DEFAULT_MAX_SIZE;
+        }
+        final int memoryClass = activityManager.getMemoryClass();
+        if(isLowRamDevice(activityManager) || memoryClass <= SMALL_MEMORY_CLASS){
+            return SMALL_DEVICE_MAX_SIZE;
+        }
+        return memoryClass >= LARGE_MEMORY_CLASS ? LARGE_DEVICE_MAX_SIZE : DEFAULT_MAX_SIZE;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDevice(ActivityManager activityManager){
+        return Utils.hasKitkat() && activityManager.isLowRamDevice();
+    }
+
+    /**
+     * Set the size of a cache that was just opened.
+     * @param cache
+     * @param requestedSize The size asked for, used if the storage allows
+     */
+    public synchronized void initialize(DiskLruCache cache, long requestedSize){
+        final long bound = getBound(cache.size());
+        final long size = Math.max(MIN_SIZE, Math.min(requestedSize, bound));
+        cache.setMaxSize(size);
+        mLastHits = cache.getHitCount();
+        mLastMisses = cache.getMissCount();
+        mLastGhostHits = cache.getGhostHitCount();
+        Log.i(TAG, "Disk cache " + mDirectory.getName() + " sized to " + size / 1024
+                + "KB (asked for " + requestedSize / 1024 + "KB, bound " + bound / 1024 + "KB)");
+    }
+
+    /**
+     * Count a lookup in the cache, evaluating its size every {@link #EVALUATE_INTERVAL} lookups.
+     * @param cache
+     */
+    public void onLookup(DiskLruCache cache){
+        final long lookups = cache.getHitCount() + cache.getMissCount();
+        synchronized (this){
+            if(lookups - mLastHits - mLastMisses < EVALUATE_INTERVAL){
+                return;
+            }
+        }
+        evaluate(cache);
+    }
+
+    /**
+     * Grow or shrink the cache if the lookups since the last evaluation or the storage call for it.
+     * @param cache
+     */
+    public synchronized void evaluate(DiskLruCache cache){
+        final long hits = cache.getHitCount() - mLastHits;
+        final long misses = cache.getMissCount() - mLastMisses;
+        final long ghostHits = cache.getGhostHitCount() - mLastGhostHits;
+        mLastHits += hits;
+        mLastMisses += misses;
+        mLastGhostHits += ghostHits;
+        mEvaluations++;
+
+        final long size = cache.size();
+        final long maxSize = cache.getMaxSize();
+        final long usable = ImageCache.getUsableSpace(mDirectory);
+        final long bound = getBound(size);
+        final long lookups = hits + misses;
+        final float ghostRate = lookups > 0 ? (float) ghostHits / lookups : 0;
+
+        long newMaxSize = maxSize;
+        String decision = "keep";
+        if(usable < Math.max(LOW_STORAGE_BYTES, (long) (mDirectory.getTotalSpace() * LOW_STORAGE_SHARE))){
+            newMaxSize = Math.max(MIN_SIZE, (long) (maxSize * SHRINK_FACTOR));
+            decision = "shrink, storage low";
+        }else if(maxSize > bound){
+            newMaxSize = Math.max(MIN_SIZE, bound);
+            decision = "shrink, over the storage share";
+        }else if(ghostRate >= GROW_GHOST_RATE && size >= maxSize * GROW_FULLNESS){
+            newMaxSize = Math.min(bound, (long) (maxSize * GROW_FACTOR));
+            decision = "grow";
+        }
+
+        final String figures = "lookups = " + lookups + ", miss rate = "
+                + (lookups > 0 ? (float) misses / lookups : 0) + ", ghost hit rate = " + ghostRate
+                + ", size = " + size / 1024 + "KB, usable = " + usable / 1024 / 1024 + "MB";
+        if(newMaxSize != maxSize){
+            cache.setMaxSize(newMaxSize);
+            if(newMaxSize > maxSize){
+                mGrowths++;
+            }else {
+                mShrinks++;
+            }
+            Log.i(TAG, "Disk cache " + mDirectory.getName() + ": " + decision + " from "
+                    + maxSize / 1024 + "KB to " + newMaxSize / 1024 + "KB (" + figures + ")");
+        }else if(BuildConfig.DEBUG){
+            Log.d(TAG, "Disk cache " + mDirectory.getName() + ": keep " + maxSize / 1024
+                    + "KB (" + figures + ", evaluations = " + mEvaluations + ", growths = "
+                    + mGrowths + ", shrinks = " + mShrinks + ")");
+        }
+    }
+
+    /**
+     * @return How often the cache grew
+     */
+    public synchronized long getGrowths(){
+        return mGrowths;
+    }
+
+    /**
+     * @return How often the cache shrank
+     */
+    public synchronized long getShrinks(){
+        return mShrinks;
+    }
+
+    /**
+     * @param cacheBytes What the cache takes now, which would be free without it
+     * @return The largest size the storage and the device class allow
+     */
+    private long getBound(long cacheBytes){
+        final long available = ImageCache.getUsableSpace(mDirectory) + cacheBytes;
+        return Math.min(mMaxSize, (long) (available * FREE_SPACE_SHARE));
+    }
+}
@@ -124,7 +124,9 @@ public class DiskLruCache implements Closeable {
      *      o DIRTY lines track that an entry is actively being created or updated. Every
      *        successful DIRTY action should be followed by a CLEAN or REMOVE action.
      *        DIRTY line without a matching CLEAN or REMOVE indicate that temporary files
-     *        may need to be deleted.
+     *        may need to be deleted, unless the entry was never published and all of its
+     *        temporary files are there: then it is kept as a partial entry that a later
+     *        edit can resume (see {@link Editor#abortKeepingPartial()}).
      *      o CLEAN lines track a cache entry that has been successfully published and may
      *        be read. A publish line is followed by the length of each of its values.
      *      o READ lines track access for LRU.
@@ -141,13 +143,25 @@ public class DiskLruCache implements Closeable {
     private final File journalFile;
     private final File journalFileTmp;
     private final int appVersion;
-    private final long maxSize;
+    private long maxSize;
     private final int valueCount;
     private long size = 0;
     private Writer journalWriter;
     private final LinkedHashMap<String,Entry> lruEntries =
             new LinkedHashMap<>(0,0.75f,true);
     private int redundantOpCount;
+    private OnEvictListener onEvictListener;
+    private String hotKeyPrefix;
+    private float maxHotShare;
+    // The part of size taken by the entries whose keys start with hotKeyPrefix
+    private long hotSize;
+    // Keys evicted lately and their sizes, eldest first, up to half of maxSize. A miss on one of
+    // them would have been a hit in a larger cache
+    private final LinkedHashMap<String,Long> ghosts = new LinkedHashMap<>();
+    private long ghostSize;
+    private long hitCount;
+    private long missCount;
+    private long ghostHitCount;
 
     /**
      * To differentiate between old and current snapshots, each entry is given a
@@ -236,7 +250,7 @@ public class DiskLruCache implements Closeable {
             result.append((char)c);
         }
         int length = result.length();
-        if(length > 0 && result.charAt(length - 1) == '\n'){
+        if(length > 0 && result.charAt(length - 1) == '\r'){
             result.setLength(length - 1);
         }
         return result.toString();
@@ -258,6 +272,19 @@ public class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * The file a value of an entry is kept in once it is committed, for reading it without
+     * opening the cache, such as while the journal is still being read. The file may be missing,
+     * or be removed or replaced at any time by a cache that is open.
+     * @param directory
+     * @param key
+     * @param index
+     * @return
+     */
+    public static File getCleanFile(File directory, String key, int index){
+        return new File(directory, key + "." + index);
+    }
+
     /**
      * Recursively delete everything in {@code dir}
      * @param dir
@@ -378,7 +405,15 @@ public class DiskLruCache implements Closeable {
             Entry entry = i.next();
             if(entry.currentEditor == null){
                 for (int t = 0; t < valueCount; t++){
-                    size += entry.lengths[t];
+                    addSize(entry, entry.lengths[t]);
+                }
+            }else if(!entry.readable && entry.hasAllDirtyFiles()){
+                // An interrupted first edit, keep what was written so it can be resumed
+                entry.currentEditor = null;
+                entry.partial = true;
+                for (int t = 0; t < valueCount; t++){
+                    entry.lengths[t] = entry.getDirtyFile(t).length();
+                    addSize(entry, entry.lengths[t]);
                 }
             }else {
                 entry.currentEditor = null;
@@ -407,7 +442,7 @@ public class DiskLruCache implements Closeable {
         writer.write('\n');
 
         for (Entry entry : lruEntries.values()){
-            if(entry.currentEditor != null){
+            if(entry.currentEditor != null || entry.partial){
                 writer.write(DIRTY + ' ' + entry.key + '\n');
             }else {
                 writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
@@ -437,10 +472,13 @@ public class DiskLruCache implements Closeable {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
-        if(entry == null){
-            return null;
-        }
-        if(!entry.readable){
+        if(entry == null || !entry.readable){
+            missCount++;
+            final Long ghost = ghosts.remove(key);
+            if(ghost != null){
+                ghostHitCount++;
+                ghostSize -= ghost;
+            }
             return null;
         }
 
@@ -455,8 +493,10 @@ public class DiskLruCache implements Closeable {
             }
         }catch (FileNotFoundException e){
             // a file must have been deleted manually!
+            missCount++;
             return null;
         }
+        hitCount++;
         redundantOpCount ++;
         journalWriter.append(READ + ' ' + key + '\n');
         if(journalRebuildRequired()){
@@ -482,7 +522,7 @@ public class DiskLruCache implements Closeable {
         Editor editor = new Editor(entry);
         entry.currentEditor = editor;
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\r');
+        journalWriter.write(DIRTY + ' ' + key + '\n');
         journalWriter.flush();
         return editor;
     }
@@ -498,6 +538,81 @@ public class DiskLruCache implements Closeable {
         return edit(key,ANY_SEQUENCE_NUMBER);
     }
 
+    /**
+     * Sets the listener told about the entries evicted to keep the cache within its size.
+     * @param listener May be null
+     */
+    public synchronized void setOnEvictListener(OnEvictListener listener){
+        onEvictListener = listener;
+    }
+
+    /**
+     * Keep the entries whose keys start with {@code prefix} longer than the others: the cache
+     * evicts the least recently used of the other entries first, and only evicts hot entries
+     * once there are no others left or the hot ones take up more than {@code maxHotShare} of
+     * the maximum size. Good for small values derived from large ones that can be had again.
+     * @param prefix
+     * @param maxHotShare
+     */
+    public synchronized void setHotKeys(String prefix, float maxHotShare){
+        this.hotKeyPrefix = prefix;
+        this.maxHotShare = maxHotShare;
+        // Kept up to date from now on, see addSize
+        hotSize = 0;
+        if(prefix != null){
+            for (Entry entry : lruEntries.values()){
+                if(entry.key.startsWith(prefix)){
+                    for (long length : entry.lengths){
+                        hotSize += length;
+                    }
+                }
+            }
+        }
+        if(size > maxSize){
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Changes the maximum number of bytes the cache should use. When it shrinks, entries are
+     * evicted in the background.
+     * @param maxSize
+     */
+    public synchronized void setMaxSize(long maxSize){
+        if(maxSize <= 0){
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        if(size > maxSize){
+            executorService.submit(cleanupCallable);
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #get(String)} returned a value.
+     * @return
+     */
+    public synchronized long getHitCount(){
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #get(String)} returned null.
+     * @return
+     */
+    public synchronized long getMissCount(){
+        return missCount;
+    }
+
+    /**
+     * Returns the number of misses on entries that were evicted lately, the ones a cache half
+     * as large again would have had.
+     * @return
+     */
+    public synchronized long getGhostHitCount(){
+        return ghostHitCount;
+    }
+
     /**
      * Returns the directory where this cache stores its data.
      * @return
@@ -510,7 +625,7 @@ public class DiskLruCache implements Closeable {
      * Returns the maximum number of bytes that this cache should use to stare its data
      * @return
      */
-    public long getMaxSize(){
+    public synchronized long getMaxSize(){
         return maxSize;
     }
 
@@ -569,15 +684,20 @@ public class DiskLruCache implements Closeable {
                     long oldlength = entry.lengths[i];
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
-                    size = size - oldlength + newLength;
+                    addSize(entry, newLength - oldlength);
                 }
             }else{
                 deleteIfExists(dirty);
+                if(entry.partial){
+                    addSize(entry, -entry.lengths[i]);
+                    entry.lengths[i] = 0;
+                }
             }
         }
 
         redundantOpCount++;
         entry.currentEditor = null;
+        entry.partial = false;
         if(entry.readable | success){
             entry.readable = true;
             journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
@@ -620,12 +740,12 @@ public class DiskLruCache implements Closeable {
         }
 
         for (int i = 0; i < valueCount; i++){
-            File file = entry.getCleanFile(i);
+            File file = entry.partial ? entry.getDirtyFile(i) : entry.getCleanFile(i);
             if(!file.delete()){
                 throw new IOException("failed to delete " + file);
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = i;
+            addSize(entry, -entry.lengths[i]);
+            entry.lengths[i] = 0;
         }
         redundantOpCount++;
         journalWriter.append(REMOVE + ' ' + key + '\n');
@@ -661,10 +781,66 @@ public class DiskLruCache implements Closeable {
         journalWriter.flush();
     }
 
+    private void addSize(Entry entry, long delta){
+        size += delta;
+        if(isHot(entry.key)){
+            hotSize += delta;
+        }
+    }
+
+    private boolean isHot(String key){
+        return hotKeyPrefix != null && key.startsWith(hotKeyPrefix);
+    }
+
     private void trimToSize() throws IOException{
         while (size > maxSize){
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            // Entries being edited can't be removed, evict the eldest one that isn't. Hot
+            // entries go last, unless they are over their share, and the others are evicted
+            // when there is nothing else left
+            final boolean evictHot = hotKeyPrefix != null && hotSize > maxSize * maxHotShare;
+            String toEvict = null;
+            String otherwise = null;
+            for (Entry entry : lruEntries.values()){
+                if(entry.currentEditor != null){
+                    continue;
+                }
+                if(isHot(entry.key) == evictHot){
+                    toEvict = entry.key;
+                    break;
+                }
+                if(otherwise == null){
+                    otherwise = entry.key;
+                }
+            }
+            if(toEvict == null){
+                toEvict = otherwise;
+            }
+            if(toEvict == null){
+                return;
+            }
+            if(onEvictListener != null){
+                onEvictListener.onEvict(toEvict);
+            }
+            long evicted = 0;
+            final Entry entry = lruEntries.get(toEvict);
+            if(entry != null){
+                for (long length : entry.lengths){
+                    evicted += length;
+                }
+            }
+            if(remove(toEvict)){
+                addGhost(toEvict, evicted);
+            }
+        }
+    }
+
+    private void addGhost(String key, long length){
+        final Long previous = ghosts.put(key, length);
+        ghostSize += length - (previous != null ? previous : 0);
+        final Iterator<Map.Entry<String,Long>> i = ghosts.entrySet().iterator();
+        while (ghostSize > maxSize / 2 && i.hasNext()){
+            ghostSize -= i.next().getValue();
+            i.remove();
         }
     }
 
@@ -685,6 +861,29 @@ public class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Read one value of an entry without counting a hit or a miss and without a line in the
+     * journal, for an {@link OnEvictListener} looking at the entry that is about to go, which
+     * shouldn't skew the statistics the cache is sized by.
+     * @param key
+     * @param index
+     * @return The value, null if there is no readable entry
+     * @throws IOException
+     */
+    public synchronized String peekString(String key, int index) throws IOException{
+        checkNotClosed();
+        validateKey(key);
+        final Entry entry = lruEntries.get(key);
+        if(entry == null || !entry.readable){
+            return null;
+        }
+        try {
+            return inputStreamToString(new FileInputStream(entry.getCleanFile(index)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Returns an InputStream as String value
      * @param in
@@ -695,6 +894,15 @@ public class DiskLruCache implements Closeable {
         return readFully(new InputStreamReader(in,UTF_8));
     }
 
+    /**
+     * Told about an entry before it is evicted, not when it is removed with
+     * {@link #remove(String)}. Called with the cache locked, so the listener can use the cache
+     * but must not wait for locks of its own that are held around calls into the cache.
+     */
+    public interface OnEvictListener{
+        void onEvict(String key) throws IOException;
+    }
+
     public final class Editor{
         private final Entry entry;
         private boolean hasErrors;
@@ -702,6 +910,37 @@ public class DiskLruCache implements Closeable {
             this.entry = entry;
         }
 
+        /**
+         * @param index
+         * @return The number of bytes of the value at {@code index} kept from an interrupted
+         * earlier edit of this entry, 0 if there is none. Writing can be resumed there with
+         * {@link #newOutputStream(int, boolean)}.
+         */
+        public long getPartialLength(int index){
+            synchronized (DiskLruCache.this){
+                if(entry.currentEditor != this){
+                    throw new IllegalStateException();
+                }
+                return entry.partial ? entry.getDirtyFile(index).length() : 0;
+            }
+        }
+
+        /**
+         * Returns the value at {@code index} kept from an interrupted earlier edit as a string,
+         * or null if there is none.
+         */
+        public String getPartialString(int index) throws IOException{
+            synchronized (DiskLruCache.this){
+                if(entry.currentEditor != this){
+                    throw new IllegalStateException();
+                }
+                if(!entry.partial){
+                    return null;
+                }
+            }
+            return inputStreamToString(new FileInputStream(entry.getDirtyFile(index)));
+        }
+
         /**
          * Returns an unbuffered input stream to read the last committed value,
          * or null if no value has been committed.
@@ -733,11 +972,20 @@ public class DiskLruCache implements Closeable {
          * {@link #commit} is called. The returned output stream does not throw IOException.
          */
         public OutputStream newOutputStream(int index) throws IOException{
+            return newOutputStream(index, false);
+        }
+
+        /**
+         * Like {@link #newOutputStream(int)}, with {@code append} set the stream continues after
+         * the {@link #getPartialLength(int)} bytes kept from an interrupted edit.
+         */
+        public OutputStream newOutputStream(int index, boolean append) throws IOException{
             synchronized (DiskLruCache.this){
                 if(entry.currentEditor != this){
                     throw new IllegalStateException();
                 }
-                return new FaultHiddingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
+                return new FaultHiddingOutputStream(
+                        new FileOutputStream(entry.getDirtyFile(index), append));
             }
         }
 
@@ -780,6 +1028,37 @@ public class DiskLruCache implements Closeable {
             completeEdit(this,false);
         }
 
+        /**
+         * Abort this edit but keep what was written so far, so that a later edit can resume it.
+         * Only possible for an entry that has never been published and if every value was
+         * written to, otherwise this is the same as {@link #abort()}. The partial entry can't be
+         * read, counts towards the cache size and is evicted like any other entry.
+         * @throws IOException
+         */
+        public void abortKeepingPartial() throws IOException{
+            synchronized (DiskLruCache.this){
+                if(entry.currentEditor != this){
+                    throw new IllegalStateException();
+                }
+                if(entry.readable || hasErrors || !entry.hasAllDirtyFiles()){
+                    completeEdit(this,false);
+                    return;
+                }
+                // The DIRTY line written by edit() stays the last word on this entry, which is
+                // how it is recognised as partial when the journal is read again
+                entry.currentEditor = null;
+                entry.partial = true;
+                for (int i = 0; i < valueCount; i++){
+                    final long length = entry.getDirtyFile(i).length();
+                    addSize(entry, length - entry.lengths[i]);
+                    entry.lengths[i] = length;
+                }
+                if(size > maxSize){
+                    executorService.submit(cleanupCallable);
+                }
+            }
+        }
+
         private class FaultHiddingOutputStream extends FilterOutputStream{
             private FaultHiddingOutputStream(OutputStream out){
                 super(out);
@@ -834,6 +1113,9 @@ public class DiskLruCache implements Closeable {
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
+        /** True if this entry was never published but keeps the files of an interrupted edit */
+        private boolean partial;
+
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
@@ -871,12 +1153,21 @@ public class DiskLruCache implements Closeable {
         }
 
         public File getCleanFile(int i){
-            return new File(directory, key + "." + i);
+            return DiskLruCache.getCleanFile(directory, key, i);
         }
 
         public File getDirtyFile(int i){
             return new File(directory,key + "." + i + ".tmp");
         }
+
+        private boolean hasAllDirtyFiles(){
+            for (int i = 0; i < valueCount; i++){
+                if(!getDirtyFile(i).exists()){
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     public final class Snapshot implements Closeable{
@@ -0,0 +1,248 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Sets how many downloads run at once from what the finished downloads measured, the way TCP
+ * sizes its congestion window: additive increase, multiplicative decrease (AIMD).
+ *
+ * Every finished download reports its size, the time to its response headers and its total
+ * time. From these the throttle keeps
+ *  o the goodput of one download on its own, the best recently seen,
+ *  o the goodput of all downloads together, the goodput of each scaled by how many ran beside it,
+ *  o the shortest recent time to the response headers.
+ * If the combined goodput is about what the downloads would give each on its own, the link isn't
+ * saturated and the window grows by one per window's worth of downloads. If it falls short by
+ * more than a download's worth they are queueing behind each other, and if
+ * the response times grow to several times the shortest, the server or the network is queueing.
+ * Either of those, or a failed download, halves the window, at most once per window's worth of
+ * downloads so that one congestion episode only counts once.
+ */
+public class DownloadThrottle {
+    private static final String TAG = "DownloadThrottle";
+
+    // Downloads short of the expected goodput before it counts as queueing, and growth below it
+    private static final float QUEUED_DECREASE = 1.5f;
+    private static final float QUEUED_INCREASE = 0.5f;
+    // Response time over the shortest one that counts as queueing
+    private static final float LATENCY_FACTOR = 3f;
+    // Weight of a new sample in the moving averages
+    private static final float EWMA_WEIGHT = 0.25f;
+    // The best goodput and the shortest latency slowly forget, so a changed network is picked up
+    private static final float BEST_DECAY = 0.995f;
+    // Downloads smaller than this are mostly latency and say nothing about goodput
+    private static final long MIN_GOODPUT_BYTES = 4 * 1024;
+    // Log the figures every this many downloads in debug builds
+    private static final int LOG_INTERVAL = 20;
+
+    private final int mMinWindow;
+    private final int mMaxWindow;
+
+    // Guarded by this
+    private float mWindow;
+    private int mInFlight;
+    private float mBestGoodput;
+    private float mGoodput;
+    private float mQueued;
+    private float mMinLatency;
+    private int mSinceDecrease;
+    private long mDownloads;
+    private long mIncreases;
+    private long mDecreases;
+    private long mFailures;
+    private long mCancels;
+
+    /**
+     * A download that has been let through. The downloader fills in what it measured and hands
+     * it back with {@link DownloadThrottle#release(Permit)}.
+     */
+    public static class Permit{
+        private final long mStart = SystemClock.uptimeMillis();
+        private final int mInFlightAtStart;
+        private long mLatency;
+        private long mBytes;
+        private boolean mSuccess;
+
+        private Permit(int inFlight){
+            mInFlightAtStart = inFlight;
+        }
+
+        /**
+         * Call when the response headers came in.
+         */
+        public void onResponse(){
+            mLatency = SystemClock.uptimeMillis() - mStart;
+        }
+
+        /**
+         * Call for every chunk of the body received.
+         * @param count
+         */
+        public void onBytes(long count){
+            mBytes += count;
+        }
+
+        /**
+         * @param success True if the server answered in full, even if with an error such as a
+         *                404, false if the download failed or timed out
+         */
+        public void setSuccess(boolean success){
+            mSuccess = success;
+        }
+    }
+
+    /**
+     * @param initialWindow Downloads at once to start with
+     * @param minWindow
+     * @param maxWindow
+     */
+    public DownloadThrottle(int initialWindow, int minWindow, int maxWindow){
+        mMinWindow = Math.max(1, minWindow);
+        mMaxWindow = Math.max(mMinWindow, maxWindow);
+        mWindow = Math.max(mMinWindow, Math.min(mMaxWindow, initialWindow));
+    }
+
+    /**
+     * Wait until the window lets another download through.
+     * @return
+     * @throws InterruptedIOException If the thread was interrupted while waiting
+     */
+    public synchronized Permit acquire() throws InterruptedIOException{
+        while (mInFlight >= (int) mWindow){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a download slot");
+            }
+        }
+        mInFlight++;
+        return new Permit(mInFlight);
+    }
+
+    /**
+     * Report a finished download and let the next one through. Must be called on the thread
+     * that made the download: a failure on an interrupted thread is a cancelled download, which
+     * says nothing about the link and only gives back its slot.
+     * @param permit
+     */
+    public synchronized void release(Permit permit){
+        if(!permit.mSuccess && Thread.currentThread().isInterrupted()){
+            mInFlight--;
+            mCancels++;
+            notifyAll();
+            return;
+        }
+        final long bytes = permit.mBytes;
+        final long latency = permit.mLatency;
+        final boolean success = permit.mSuccess;
+        final long duration = Math.max(1, SystemClock.uptimeMillis() - permit.mStart);
+        // Roughly how many downloads shared the link with this one
+        final float concurrent = Math.max(1f, (permit.mInFlightAtStart + mInFlight) / 2f);
+        mInFlight--;
+        mDownloads++;
+        mSinceDecrease++;
+
+        boolean congested = !success;
+        if(!success){
+            mFailures++;
+        }
+        if(success && latency > 0){
+            mMinLatency = mMinLatency == 0 ? latency : Math.min(latency, mMinLatency / BEST_DECAY);
+            congested = latency > LATENCY_FACTOR * mMinLatency;
+        }
+        float queued = 0;
+        if(success && bytes >= MIN_GOODPUT_BYTES){
+            // Bytes per millisecond is kilobytes per second
+            final float goodput = (float) bytes / duration;
+            mBestGoodput = Math.max(goodput, mBestGoodput * BEST_DECAY);
+            final float combined = goodput * concurrent;
+            mGoodput = mGoodput == 0 ? combined : mGoodput + EWMA_WEIGHT * (combined - mGoodput);
+            // How many downloads' worth the combined goodput falls short of what the downloads
+            // that ran together would give on their own
+            final float sample = concurrent * (1f - goodput / mBestGoodput);
+            mQueued = mQueued + EWMA_WEIGHT * (sample - mQueued);
+            queued = mQueued;
+            congested = congested || queued > QUEUED_DECREASE;
+        }
+
+        if(congested){
+            // Only once per window's worth of downloads
+            if(mSinceDecrease >= (int) mWindow){
+                mWindow = Math.max(mMinWindow, mWindow / 2);
+                mSinceDecrease = 0;
+                mDecreases++;
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Window down to " + (int) mWindow + " (success = " + success
+                            + ", latency = " + latency + "ms, queued = " + queued + ")");
+                }
+            }
+        }else if(queued < QUEUED_INCREASE && mInFlight + 1 >= (int) mWindow){
+            // Only grow while the window is actually used
+            final int before = (int) mWindow;
+            mWindow = Math.min(mMaxWindow, mWindow + 1f / mWindow);
+            if((int) mWindow > before){
+                mIncreases++;
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Window up to " + (int) mWindow);
+                }
+            }
+        }
+
+        if(BuildConfig.DEBUG && mDownloads % LOG_INTERVAL == 0){
+            Log.d(TAG, "downloads = " + mDownloads + ", window = " + mWindow
+                    + ", goodput = " + (int) mGoodput + "KB/s (best single " + (int) mBestGoodput
+                    + "KB/s), min latency = " + (int) mMinLatency + "ms, increases = " + mIncreases
+                    + ", decreases = " + mDecreases + ", failures = " + mFailures
+                    + ", cancels = " + mCancels);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return The number of downloads currently allowed at once
+     */
+    public synchronized int getWindow(){
+        return (int) mWindow;
+    }
+
+    /**
+     * @return The number of downloads running
+     */
+    public synchronized int getInFlight(){
+        return mInFlight;
+    }
+
+    /**
+     * @return The combined goodput of the downloads in KB/s
+     */
+    public synchronized float getGoodput(){
+        return mGoodput;
+    }
+
+    /**
+     * @return How often the window grew by one download
+     */
+    public synchronized long getIncreases(){
+        return mIncreases;
+    }
+
+    /**
+     * @return How many downloads were cancelled, which don't count towards the window
+     */
+    public synchronized long getCancels(){
+        return mCancels;
+    }
+
+    /**
+     * @return How often the window was halved
+     */
+    public synchronized long getDecreases(){
+        return mDecreases;
+    }
+}
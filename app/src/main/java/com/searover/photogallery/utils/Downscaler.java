@@ -0,0 +1,350 @@
+package com.searover.photogallery.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * A separable resampler that works on packed ARGB <code>int[]</code> buffers. It is used by
+ * {@link com.searover.photogallery.utils.ImageResizer} to get from the power-of-two size that
+ * inSampleSize gives us down to the exact thumbnail size without the aliasing of a nearest
+ * neighbour scale. The class has no Android dependencies so it can be run and profiled on a
+ * plain JVM.
+ *
+ * The image is resized in two passes (horizontal then vertical). Each pass is split into bands
+ * of rows which are run in parallel on the supplied executor. Filter tables and the intermediate
+ * buffer are kept between calls and only grown when a larger image comes along, so resizing a
+ * stream of same sized thumbnails does not allocate.
+ *
+ * An instance is not safe for concurrent use, give each decoding thread its own instance (they
+ * can share the executor).
+ */
+public class Downscaler {
+
+    /**
+     * The resampling kernel.
+     */
+    public enum Filter{
+        /** Area averaging, every source pixel is weighted by how much of it the target covers. */
+        BOX,
+        /** Windowed sinc with three lobes, sharper than BOX at a higher cost per pixel. */
+        LANCZOS3
+    }
+
+    private final Executor mExecutor;
+    private final int mParallelism;
+    private final Band[] mBands;
+
+    private final Contributions mHorizontal = new Contributions();
+    private final Contributions mVertical = new Contributions();
+    private int[] mTemp = new int[0];
+    private int[] mSource = new int[0];
+    private int[] mDestination = new int[0];
+
+    /**
+     * @param executor Executor that runs the bands, may be null to run everything on the caller
+     * @param parallelism Number of bands each pass is split into
+     */
+    public Downscaler(Executor executor, int parallelism){
+        if(parallelism < 1){
+            throw new IllegalArgumentException("parallelism < 1");
+        }
+        mExecutor = executor;
+        mParallelism = executor == null ? 1 : parallelism;
+        mBands = new Band[mParallelism];
+        for (int i = 0; i < mParallelism; i++){
+            mBands[i] = new Band();
+        }
+    }
+
+    /**
+     * Returns a scratch buffer of at least <code>size</code> pixels that the caller can fill with
+     * the source image before calling {@link #resize}. The same array is handed out again on the
+     * next call unless a bigger one is needed.
+     * @param size
+     * @return
+     */
+    public int[] obtainSourceBuffer(int size){
+        if(mSource.length < size){
+            mSource = new int[size];
+        }
+        return mSource;
+    }
+
+    /**
+     * Returns a scratch buffer of at least <code>size</code> pixels for {@link #resize} to write
+     * the target image into, handed out again on the next call like
+     * {@link #obtainSourceBuffer(int)}.
+     * @param size
+     * @return
+     */
+    public int[] obtainDestinationBuffer(int size){
+        if(mDestination.length < size){
+            mDestination = new int[size];
+        }
+        return mDestination;
+    }
+
+    /**
+     * Resample <code>src</code> into <code>dst</code>. Both buffers are packed with a stride equal
+     * to their width.
+     * @param src
+     * @param srcWidth
+     * @param srcHeight
+     * @param dst
+     * @param dstWidth
+     * @param dstHeight
+     * @param filter
+     */
+    public void resize(int[] src, int srcWidth, int srcHeight,
+                       int[] dst, int dstWidth, int dstHeight, Filter filter){
+        if(srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0){
+            throw new IllegalArgumentException("Image dimensions must be positive");
+        }
+        if(src.length < srcWidth * srcHeight || dst.length < dstWidth * dstHeight){
+            throw new IllegalArgumentException("Buffer too small for the given dimensions");
+        }
+        mHorizontal.prepare(srcWidth, dstWidth, filter);
+        mVertical.prepare(srcHeight, dstHeight, filter);
+
+        final int tempSize = dstWidth * srcHeight;
+        if(mTemp.length < tempSize){
+            mTemp = new int[tempSize];
+        }
+
+        // First pass: every source row is shrunk horizontally into the temp buffer
+        runPass(true, src, srcWidth, mTemp, dstWidth, srcHeight);
+        // Second pass: every temp column is shrunk vertically into the destination
+        runPass(false, mTemp, dstWidth, dst, dstWidth, dstHeight);
+    }
+
+    private void runPass(boolean horizontal, int[] in, int inStride, int[] out, int outStride,
+                         int rows){
+        final int bands = Math.min(mParallelism, rows);
+        final int rowsPerBand = (rows + bands - 1) / bands;
+        final CountDownLatch latch = bands > 1 ? new CountDownLatch(bands - 1) : null;
+        for (int i = 0; i < bands; i++){
+            final Band band = mBands[i];
+            band.set(horizontal, in, inStride, out, outStride,
+                    i * rowsPerBand, Math.min(rows, (i + 1) * rowsPerBand),
+                    i < bands - 1 ? latch : null);
+            // Keep the last band for the calling thread, it would only be waiting otherwise
+            if(i < bands - 1){
+                mExecutor.execute(band);
+            }
+        }
+        mBands[bands - 1].run();
+        if(latch != null){
+            boolean interrupted = false;
+            while (true){
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void resampleRows(int[] in, int inStride, int[] out, int outStride,
+                                     int fromRow, int toRow, Contributions c){
+        final int[] starts = c.starts;
+        final int[] counts = c.counts;
+        final float[] weights = c.weights;
+        final int taps = c.maxTaps;
+        for (int y = fromRow; y < toRow; y++){
+            final int inRow = y * inStride;
+            final int outRow = y * outStride;
+            for (int x = 0; x < c.dstLength; x++){
+                float a = 0, r = 0, g = 0, b = 0;
+                int src = inRow + starts[x];
+                int w = x * taps;
+                for (int t = counts[x]; t > 0; t--, src++, w++){
+                    final int p = in[src];
+                    final float weight = weights[w];
+                    a += (p >>> 24) * weight;
+                    r += ((p >> 16) & 0xFF) * weight;
+                    g += ((p >> 8) & 0xFF) * weight;
+                    b += (p & 0xFF) * weight;
+                }
+                out[outRow + x] = pack(a, r, g, b);
+            }
+        }
+    }
+
+    private static void resampleColumns(int[] in, int stride, int[] out,
+                                        int fromRow, int toRow, Contributions c){
+        final int[] starts = c.starts;
+        final int[] counts = c.counts;
+        final float[] weights = c.weights;
+        final int taps = c.maxTaps;
+        for (int y = fromRow; y < toRow; y++){
+            final int outRow = y * stride;
+            final int firstRow = starts[y] * stride;
+            final int count = counts[y];
+            final int w0 = y * taps;
+            for (int x = 0; x < stride; x++){
+                float a = 0, r = 0, g = 0, b = 0;
+                int src = firstRow + x;
+                for (int t = 0; t < count; t++, src += stride){
+                    final int p = in[src];
+                    final float weight = weights[w0 + t];
+                    a += (p >>> 24) * weight;
+                    r += ((p >> 16) & 0xFF) * weight;
+                    g += ((p >> 8) & 0xFF) * weight;
+                    b += (p & 0xFF) * weight;
+                }
+                out[outRow + x] = pack(a, r, g, b);
+            }
+        }
+    }
+
+    private static int pack(float a, float r, float g, float b){
+        return clamp(a) << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(float value){
+        // Lanczos has negative lobes, so the sum can over or undershoot the channel range
+        final int v = (int) (value + 0.5f);
+        return v < 0 ? 0 : (v > 255 ? 255 : v);
+    }
+
+    private static double lanczos3(double x){
+        if(x < 0){
+            x = -x;
+        }
+        if(x < 1e-8){
+            return 1.0;
+        }
+        if(x >= 3.0){
+            return 0.0;
+        }
+        final double pix = Math.PI * x;
+        return 3.0 * Math.sin(pix) * Math.sin(pix / 3.0) / (pix * pix);
+    }
+
+    /**
+     * The source pixels and their normalized weights that make up each target pixel along one
+     * axis. Rebuilt only when the lengths or the filter change.
+     */
+    private static class Contributions{
+        int srcLength = -1;
+        int dstLength = -1;
+        Filter filter;
+        int maxTaps;
+        int[] starts = new int[0];
+        int[] counts = new int[0];
+        float[] weights = new float[0];
+
+        void prepare(int srcLength, int dstLength, Filter filter){
+            if(this.srcLength == srcLength && this.dstLength == dstLength && this.filter == filter){
+                return;
+            }
+            final double scale = (double) srcLength / dstLength;
+            // When shrinking, the kernel is stretched to cover the whole footprint of the target
+            final double filterScale = Math.max(1.0, scale);
+            final double support = (filter == Filter.BOX ? 0.5 : 3.0) * filterScale;
+            final int taps = (int) Math.ceil(support * 2) + 1;
+
+            if(starts.length < dstLength){
+                starts = new int[dstLength];
+                counts = new int[dstLength];
+            }
+            if(weights.length < dstLength * taps){
+                weights = new float[dstLength * taps];
+            }
+
+            for (int i = 0; i < dstLength; i++){
+                final double center = (i + 0.5) * scale;
+                int left = (int) Math.floor(center - support);
+                int right = (int) Math.ceil(center + support);
+                if(left < 0){
+                    left = 0;
+                }
+                if(right > srcLength){
+                    right = srcLength;
+                }
+                if(right - left > taps){
+                    right = left + taps;
+                }
+                double total = 0;
+                final int base = i * taps;
+                for (int j = left; j < right; j++){
+                    final double w;
+                    if(filter == Filter.BOX){
+                        // Overlap of source pixel [j, j + 1) with the target footprint
+                        final double lo = Math.max(j, center - support);
+                        final double hi = Math.min(j + 1, center + support);
+                        w = Math.max(0.0, hi - lo);
+                    }else {
+                        w = lanczos3((j + 0.5 - center) / filterScale);
+                    }
+                    weights[base + j - left] = (float) w;
+                    total += w;
+                }
+                if(total != 0){
+                    for (int j = left; j < right; j++){
+                        weights[base + j - left] /= total;
+                    }
+                }
+                starts[i] = left;
+                counts[i] = right - left;
+            }
+
+            this.srcLength = srcLength;
+            this.dstLength = dstLength;
+            this.filter = filter;
+            this.maxTaps = taps;
+        }
+    }
+
+    /**
+     * A range of rows for one pass. The same objects are re-used for every call.
+     */
+    private class Band implements Runnable{
+        private boolean mHorizontal;
+        private int[] mIn;
+        private int mInStride;
+        private int[] mOut;
+        private int mOutStride;
+        private int mFrom;
+        private int mTo;
+        private CountDownLatch mLatch;
+
+        void set(boolean horizontal, int[] in, int inStride, int[] out, int outStride,
+                 int from, int to, CountDownLatch latch){
+            mHorizontal = horizontal;
+            mIn = in;
+            mInStride = inStride;
+            mOut = out;
+            mOutStride = outStride;
+            mFrom = from;
+            mTo = to;
+            mLatch = latch;
+        }
+
+        @Override
+        public void run(){
+            try {
+                if(mHorizontal){
+                    resampleRows(mIn, mInStride, mOut, mOutStride, mFrom, mTo,
+                            Downscaler.this.mHorizontal);
+                }else {
+                    resampleColumns(mIn, mOutStride, mOut, mFrom, mTo,
+                            Downscaler.this.mVertical);
+                }
+            } finally {
+                mIn = null;
+                mOut = null;
+                final CountDownLatch latch = mLatch;
+                mLatch = null;
+                if(latch != null){
+                    latch.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.searover.photogallery.utils;
+
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The response headers kept with a body in the HTTP disk cache, stored as the entry's second
+ * value in the same "Name: value" lines as on the wire, plus the time the response was received.
+ *
+ * The validators (ETag and Last-Modified) let an interrupted download be resumed with a Range
+ * request, and a stale entry be revalidated with a conditional request. Freshness follows
+ * Cache-Control max-age, then Expires, then the usual heuristic of a tenth of the time since
+ * Last-Modified. A response that says none of these stays fresh for {@link #DEFAULT_LIFETIME_MS}.
+ */
+public class HttpCacheMetadata {
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String CONTENT_LENGTH = "Content-Length";
+    private static final String CACHE_CONTROL = "Cache-Control";
+    private static final String EXPIRES = "Expires";
+    private static final String DATE = "Date";
+    // Not a real header, when the response was received on this device
+    private static final String RECEIVED_MILLIS = "X-Received-Millis";
+    // Not a real header either, the digest of the body when it is stored by ContentStore
+    private static final String CONTENT_DIGEST = "X-Content-Digest";
+
+    // Lifetime of a response without any freshness information
+    private static final long DEFAULT_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+    // Upper bound of the heuristic lifetime from Last-Modified
+    private static final long MAX_HEURISTIC_LIFETIME_MS = 7 * DEFAULT_LIFETIME_MS;
+
+    private String mETag;
+    private String mLastModified;
+    private long mContentLength = -1;
+    private String mCacheControl;
+    private String mExpires;
+    private String mDate;
+    private long mReceivedMillis;
+    private String mContentDigest;
+
+    /**
+     * Read the metadata of a fresh (200) response.
+     * @param connection
+     * @return
+     */
+    public static HttpCacheMetadata fromResponse(HttpURLConnection connection){
+        final HttpCacheMetadata metadata = new HttpCacheMetadata();
+        metadata.update(connection);
+        final String length = connection.getHeaderField(CONTENT_LENGTH);
+        metadata.mContentLength = parseLong(length, -1);
+        return metadata;
+    }
+
+    /**
+     * Take the headers of a 304 (Not Modified) response into the stored ones, which makes the
+     * entry fresh again. The body and its length stay as they are.
+     * @param connection
+     */
+    public void update(HttpURLConnection connection){
+        mETag = headerOrDefault(connection, ETAG, mETag);
+        mLastModified = headerOrDefault(connection, LAST_MODIFIED, mLastModified);
+        mCacheControl = headerOrDefault(connection, CACHE_CONTROL, mCacheControl);
+        mExpires = headerOrDefault(connection, EXPIRES, mExpires);
+        mDate = headerOrDefault(connection, DATE, mDate);
+        mReceivedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @param value The string written by {@link #toString()}, may be null
+     * @return The metadata, empty if there was none
+     */
+    public static HttpCacheMetadata parse(String value){
+        final HttpCacheMetadata metadata = new HttpCacheMetadata();
+        if(value == null){
+            return metadata;
+        }
+        for (String line : value.split("\n")){
+            final int colon = line.indexOf(':');
+            if(colon <= 0){
+                continue;
+            }
+            final String name = line.substring(0, colon).trim();
+            final String field = line.substring(colon + 1).trim();
+            if(ETAG.equalsIgnoreCase(name)){
+                metadata.mETag = field;
+            }else if(LAST_MODIFIED.equalsIgnoreCase(name)){
+                metadata.mLastModified = field;
+            }else if(CONTENT_LENGTH.equalsIgnoreCase(name)){
+                metadata.mContentLength = parseLong(field, -1);
+            }else if(CACHE_CONTROL.equalsIgnoreCase(name)){
+                metadata.mCacheControl = field;
+            }else if(EXPIRES.equalsIgnoreCase(name)){
+                metadata.mExpires = field;
+            }else if(DATE.equalsIgnoreCase(name)){
+                metadata.mDate = field;
+            }else if(RECEIVED_MILLIS.equalsIgnoreCase(name)){
+                metadata.mReceivedMillis = parseLong(field, 0);
+            }else if(CONTENT_DIGEST.equalsIgnoreCase(name)){
+                metadata.mContentDigest = field;
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * @return The strong ETag, or failing that the Last-Modified date, to send as If-Range.
+     * Null if the response had neither, or only a weak ETag which can't be used for ranges.
+     */
+    public String getRangeValidator(){
+        if(mETag != null && !mETag.startsWith("W/")){
+            return mETag;
+        }
+        return mLastModified;
+    }
+
+    /**
+     * @return The ETag to send as If-None-Match, may be null
+     */
+    public String getETag(){
+        return mETag;
+    }
+
+    /**
+     * @return The Last-Modified date to send as If-Modified-Since, may be null
+     */
+    public String getLastModified(){
+        return mLastModified;
+    }
+
+    /**
+     * @return The full length of the body, -1 if the server didn't say
+     */
+    public long getContentLength(){
+        return mContentLength;
+    }
+
+    /**
+     * @return The digest of the body if it is stored once for all URLs with the same content
+     * (see {@link ContentStore}), null if the entry holds the body itself
+     */
+    public String getContentDigest(){
+        return mContentDigest;
+    }
+
+    /**
+     * @param contentDigest
+     */
+    public void setContentDigest(String contentDigest){
+        mContentDigest = contentDigest;
+    }
+
+    /**
+     * @param now The current time in milliseconds
+     * @return Whether the entry can be used without asking the server. An entry without a
+     * receive time predates the freshness metadata and is stale.
+     */
+    public boolean isFresh(long now){
+        // The gallery needs the body in the cache to decode it, so no-store is treated like
+        // no-cache: stored, but revalidated every time
+        if(mReceivedMillis <= 0 || hasDirective("no-cache") || hasDirective("no-store")){
+            return false;
+        }
+        final long age = now - mReceivedMillis;
+        return age >= 0 && age < getLifetime();
+    }
+
+    private long getLifetime(){
+        final long maxAge = getDirectiveValue("max-age");
+        if(maxAge >= 0){
+            return maxAge * 1000;
+        }
+        final Date date = parseDate(mDate);
+        final long served = date != null ? date.getTime() : mReceivedMillis;
+        if(mExpires != null){
+            // A malformed Expires, like the common "0", means already expired
+            final Date expires = parseDate(mExpires);
+            return expires != null ? expires.getTime() - served : 0;
+        }
+        final Date lastModified = parseDate(mLastModified);
+        if(lastModified != null && lastModified.getTime() < served){
+            return Math.min(MAX_HEURISTIC_LIFETIME_MS, (served - lastModified.getTime()) / 10);
+        }
+        return DEFAULT_LIFETIME_MS;
+    }
+
+    private boolean hasDirective(String directive){
+        if(mCacheControl == null){
+            return false;
+        }
+        for (String part : mCacheControl.split(",")){
+            final String name = part.trim().toLowerCase(Locale.US);
+            if(name.equals(directive) || name.startsWith(directive + "=")){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long getDirectiveValue(String directive){
+        if(mCacheControl == null){
+            return -1;
+        }
+        for (String part : mCacheControl.split(",")){
+            final String name = part.trim().toLowerCase(Locale.US);
+            if(name.startsWith(directive + "=")){
+                String value = name.substring(directive.length() + 1).trim();
+                if(value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")){
+                    value = value.substring(1, value.length() - 1);
+                }
+                return parseLong(value, -1);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString(){
+        final StringBuilder builder = new StringBuilder();
+        append(builder, ETAG, mETag);
+        append(builder, LAST_MODIFIED, mLastModified);
+        if(mContentLength >= 0){
+            append(builder, CONTENT_LENGTH, Long.toString(mContentLength));
+        }
+        append(builder, CACHE_CONTROL, mCacheControl);
+        append(builder, EXPIRES, mExpires);
+        append(builder, DATE, mDate);
+        if(mReceivedMillis > 0){
+            append(builder, RECEIVED_MILLIS, Long.toString(mReceivedMillis));
+        }
+        append(builder, CONTENT_DIGEST, mContentDigest);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, String name, String value){
+        if(value != null){
+            builder.append(name).append(": ").append(value).append('\n');
+        }
+    }
+
+    private static String headerOrDefault(HttpURLConnection connection, String name,
+                                          String defaultValue){
+        final String value = connection.getHeaderField(name);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * @param value A date in the RFC 1123 format HTTP uses
+     * @return The date, or null if it is missing or malformed
+     */
+    static Date parseDate(String value){
+        if(value == null){
+            return null;
+        }
+        // SimpleDateFormat isn't thread safe, and this is rare enough to not keep one around
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param contentRange The Content-Range header of a 206 response, "bytes first-last/length"
+     * @return The first byte position, -1 if the header is missing or malformed
+     */
+    public static long parseRangeStart(String contentRange){
+        if(contentRange == null || !contentRange.startsWith("bytes ")){
+            return -1;
+        }
+        final int dash = contentRange.indexOf('-');
+        if(dash < 0){
+            return -1;
+        }
+        return parseLong(contentRange.substring("bytes ".length(), dash), -1);
+    }
+
+    static long parseLong(String value, long defaultValue){
+        if(value == null){
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Opens the HTTP connections of the image fetchers. It limits how many requests go to one host at
+ * the same time and keeps connections alive between requests.
+ *
+ * HttpURLConnection already pools keep-alive connections, as long as a response body is read to
+ * the end and its stream closed. Calling disconnect() instead closes the socket, so every request
+ * would pay for DNS, TCP and TLS again. {@link #release(HttpURLConnection, InputStream, boolean)}
+ * only disconnects if the body wasn't read completely. The size of the pool and how long idle
+ * connections are kept are set through the system properties the platform reads.
+ *
+ * The platform doesn't say whether a connection was reused. The transport counts a connect as
+ * reused when a connection to the same host was returned idle within the keep-alive time, which
+ * is what the pool does.
+ */
+public class HttpTransport {
+    private static final String TAG = "HttpTransport";
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 20 * 1000;
+    // Idle connections in the pool, over all hosts, and how long they are kept
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long KEEP_ALIVE_MS = 60 * 1000;
+    // Log the figures every this many connects in debug builds
+    private static final int LOG_INTERVAL = 50;
+
+    private static HttpTransport sInstance;
+
+    private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT_MS;
+    private int mReadTimeout = DEFAULT_READ_TIMEOUT_MS;
+
+    // Guarded by this
+    private final Map<String, Semaphore> mHostPermits = new HashMap<String, Semaphore>();
+    // When connections to each host were returned to the pool, most recent first
+    private final Map<String, Deque<Long>> mIdleSince = new HashMap<String, Deque<Long>>();
+    private int mIdleCount;
+    private long mConnects;
+    private long mReused;
+    private long mConnectNanos;
+
+    /**
+     * @return The transport shared by all image fetchers, so the limits apply to the app
+     */
+    public static synchronized HttpTransport getInstance(){
+        if(sInstance == null){
+            sInstance = new HttpTransport();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Use {@link #getInstance()}, a transport of its own is only for tests, which need the limits
+     * and figures of one host to start over.
+     */
+    HttpTransport(){
+        // Read by the connection pool when it is first used
+        ImageFetcher.disableConnectionReuseIfNecessary();
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_MS));
+    }
+
+    /**
+     * @param maxConnectionsPerHost How many requests may be open to one host at the same time.
+     *                              Only applies to hosts not connected to yet.
+     */
+    public synchronized void setMaxConnectionsPerHost(int maxConnectionsPerHost){
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * @param connectTimeout In milliseconds
+     * @param readTimeout In milliseconds, for each read rather than the whole body
+     */
+    public synchronized void setTimeouts(int connectTimeout, int readTimeout){
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    /**
+     * Open a connection, waiting while the host already has the maximum number of requests
+     * open. Set request headers on the connection, then call
+     * {@link #connect(HttpURLConnection)}, and always hand it back to
+     * {@link #release(HttpURLConnection, InputStream, boolean)}.
+     * @param url
+     * @return
+     * @throws IOException Also if the thread is interrupted while waiting
+     */
+    public HttpURLConnection open(URL url) throws IOException{
+        final Semaphore permits;
+        final int connectTimeout;
+        final int readTimeout;
+        synchronized (this){
+            permits = getPermits(url.getHost());
+            connectTimeout = mConnectTimeout;
+            readTimeout = mReadTimeout;
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url.getHost());
+        }
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            return connection;
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect, or take a connection to the host from the pool, and count how long it took.
+     * @param connection
+     * @throws IOException
+     */
+    public void connect(HttpURLConnection connection) throws IOException{
+        final long start = System.nanoTime();
+        connection.connect();
+        final long elapsed = System.nanoTime() - start;
+        synchronized (this){
+            mConnects++;
+            mConnectNanos += elapsed;
+            if(takeIdle(connection.getURL().getHost())){
+                mReused++;
+            }
+            if(BuildConfig.DEBUG && mConnects % LOG_INTERVAL == 0){
+                Log.d(TAG, "connects = " + mConnects + ", reused = " + getReuseRate()
+                        + ", connect time avg = " + getAverageConnectMicros() + "us");
+            }
+        }
+    }
+
+    /**
+     * Finish with a connection. If the whole body was read the connection goes back to the pool
+     * for the next request to the host, otherwise it is closed.
+     * @param connection
+     * @param in The response body stream, may be null if it was never opened
+     * @param complete Whether the body was read to the end
+     */
+    public void release(HttpURLConnection connection, InputStream in, boolean complete){
+        final String host = connection.getURL().getHost();
+        if(complete){
+            try {
+                if(in != null){
+                    in.close();
+                }
+                synchronized (this){
+                    addIdle(host);
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+            }
+        }else {
+            connection.disconnect();
+        }
+        synchronized (this){
+            getPermits(host).release();
+        }
+    }
+
+    /**
+     * @return The share of connects that reused a pooled connection, from 0 to 1
+     */
+    public synchronized float getReuseRate(){
+        return mConnects == 0 ? 0 : (float) mReused / mConnects;
+    }
+
+    /**
+     * @return Average connect time in microseconds, including the reused connections
+     */
+    public synchronized long getAverageConnectMicros(){
+        return mConnects == 0 ? 0 : mConnectNanos / mConnects / 1000;
+    }
+
+    private Semaphore getPermits(String host){
+        Semaphore permits = mHostPermits.get(host);
+        if(permits == null){
+            permits = new Semaphore(mMaxConnectionsPerHost, true);
+            mHostPermits.put(host, permits);
+        }
+        return permits;
+    }
+
+    private void addIdle(String host){
+        Deque<Long> idle = mIdleSince.get(host);
+        if(idle == null){
+            idle = new ArrayDeque<Long>();
+            mIdleSince.put(host, idle);
+        }
+        idle.addFirst(SystemClock.uptimeMillis());
+        mIdleCount++;
+        if(mIdleCount > MAX_IDLE_CONNECTIONS){
+            // The pool is full and closes one, the oldest of this host is a good enough guess
+            idle.removeLast();
+            mIdleCount--;
+        }
+    }
+
+    /**
+     * @param host
+     * @return Whether the pool likely had an idle connection to the host, which is then taken
+     */
+    private boolean takeIdle(String host){
+        final Deque<Long> idle = mIdleSince.get(host);
+        if(idle == null){
+            return false;
+        }
+        // Evict what the pool has closed by now
+        final long now = SystemClock.uptimeMillis();
+        while (!idle.isEmpty() && now - idle.peekLast() > KEEP_ALIVE_MS){
+            idle.removeLast();
+            mIdleCount--;
+        }
+        if(idle.isEmpty()){
+            return false;
+        }
+        idle.removeFirst();
+        mIdleCount--;
+        return true;
+    }
+}
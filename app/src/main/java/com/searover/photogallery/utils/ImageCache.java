@@ -1,14 +1,19 @@
 package com.searover.photogallery.utils;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.util.LruCache;
@@ -16,19 +21,28 @@ import android.util.Log;
 
 import com.searover.photogallery.BuildConfig;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by searover on 3/14/15.
@@ -45,28 +59,96 @@ public class ImageCache {
     // Default memory cache size in kilobytes
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
 
-    // Default disk cache size in bytes
-    private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+    // Default disk cache size in bytes, for the bitmaps and the originals of an ImageFetcher
+    private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 20; // 20MB
+
+    // Default share of the disk cache the bitmaps keep, however old the originals are
+    private static final float DEFAULT_DERIVED_SHARE = 0.7f;
+
+    // URLs whose content is known, see setContentKey
+    private static final int MAX_CONTENT_KEYS = 2048;
+
+    // Default size of the pool of bitmaps kept for inBitmap re-use in bytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 4; // 4MB
+
+    // The most recently used bitmaps are listed in this file of the disk cache directory on
+    // flush and close, and decoded into the memory cache on the next start, see preloadHotSet.
+    // At most this many of them, taking at most this share of the memory cache
+    private static final String HOT_SET_FILE = "hotset";
+    private static final int HOT_SET_MAX_ENTRIES = 48;
+    private static final float HOT_SET_MAX_SHARE = 0.5f;
+    // Lines of the hot set file, a bitmap: key, data if it is a size variant, and a URL whose
+    // content is the data: URL, digest
+    private static final String HOT_SET_BITMAP = "b";
+    private static final String HOT_SET_CONTENT_KEY = "c";
+
+    // Time without memory trims after which the memory cache and the pool get their full size back
+    private static final long TRIM_RESTORE_DELAY_MS = 30 * 1000;
 
     // Compression settings when writing images to disk cache
     private static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.JPEG;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
     private static final int DISK_CACHE_INDEX = 0;
+    // The data a bitmap was made from, the disk cache has the two values of an ImageFetcher's
+    private static final int SOURCE_INDEX = 1;
+    // Keys of the bitmaps in the disk cache start with this, see DiskLruCache#setHotKeys. Not a
+    // hex digit, so it can't be the start of an ImageFetcher's key
+    private static final String DERIVED_KEY_PREFIX = "t";
 
     // Contants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    private static final boolean DEFAULT_DISK_CACHE_AUTO_SIZE = true;
 
     private DiskLruCache mDiskLruCache;
+    private DiskCacheSizer mDiskCacheSizer;
     private LruCache<String, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
-    private boolean mDiskCacheStarting = true;
+    // Read without the lock by the lookups, which miss rather than wait while it is set
+    private volatile boolean mDiskCacheStarting = true;
+    // Workers that added the cache and haven't closed it yet, guarded by mDiskCacheLock
+    private int mUsers;
+
+    private BitmapPool mBitmapPool;
+
+    // What the memory cache may hold while memory is short, in kilobytes, see trimMemory. The
+    // bitmaps a trim takes out are collected in mDemoted to be written to the disk cache before
+    // they go to the pool. Guarded by this
+    private int mMemCacheLimit;
+    private Map<String, BitmapDrawable> mDemoted;
+    private long mTrims;
+    private long mDemotions;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRestoreMemory = new Runnable() {
+        @Override
+        public void run() {
+            restoreMemory();
+        }
+    };
+
+    // Bitmaps added to the memory cache while the disk cache was opening, to be written to it
+    // once it is open. They are not pooled until then. Guarded by this
+    private final Map<String, BitmapDrawable> mPendingDiskWrites =
+            new LinkedHashMap<String, BitmapDrawable>();
+
+    // Sizes of the variants of each image in the memory cache, data -> size -> cache key, and
+    // the reverse cache key -> data so evictions can be taken out. Guarded by itself.
+    private final Map<String, SortedMap<Integer, String>> mVariants =
+            new HashMap<String, SortedMap<Integer, String>>();
+    private final Map<String, String> mVariantData = new HashMap<String, String>();
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    // URL -> digest of its content, for the URLs that share their content with others
+    private final LruCache<String, String> mContentKeys =
+            new LruCache<String, String>(MAX_CONTENT_KEYS);
 
-    private ImageCache(ImageCacheParams cacheParams){
+    /**
+     * Use {@link #getInstance(FragmentManager, ImageCacheParams)}, a cache of its own outside a
+     * RetainFragment is only for tests.
+     * @param cacheParams
+     */
+    ImageCache(ImageCacheParams cacheParams){
         init(cacheParams);
     }
 
@@ -100,19 +182,17 @@ public class ImageCache {
                 Log.d(TAG,"Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can
-            // be populated into the inBitmap field of BitmapFactory.Options. Ntte that the set
-            // is of SoftReferences which will actually not be very effective due to the gerbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach would
-            // be to use a strongly references bitmaps, however this would require some balancing
-            // of memory usage between this set and the bitmap LruCache. It would also require
-            // knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean the
-            // size would need to be precise, from Kitkat onward the size would just need to be
-            // the upper bound (due to changes in how inBitmap can re-use bitmap).
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. The pool holds
+            // strong references so the garbage collector doesn't empty it, and is given its own
+            // byte budget (ImageCacheParams.bitmapPoolSize) next to the bitmap LruCache. From
+            // Honeycomb to JellyBean the size of a pooled bitmap must match the decode exactly,
+            // from Kitkat onward it just needs to be the upper bound.
             if(Utils.hasHoneycomb()){
-                mReusableBitmaps = Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize);
             }
 
+            mMemCacheLimit = mCacheParams.memCacheSize;
             mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize){
 
                 /**
@@ -124,16 +204,26 @@ public class ImageCache {
                  */
                 protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue,
                                             BitmapDrawable newValue){
+                    if(newValue == null){
+                        removeVariant(key);
+                    }
                     if(RecylingBitmapDrawable.class.isInstance(oldValue)){
                         // The removed entry is a recycling drawable, so notify it that it has
                         // been removed from the memory cache.
                         ((RecylingBitmapDrawable)oldValue).setIsCached(false);
+                    }else if(isPendingDiskWrite(key)){
+                        // Still to be written to disk, left to the garbage collector afterwards
+                    }else if(evicted && demote(key, oldValue)){
+                        // Written to disk, then left to the garbage collector
+                    }else if(evicted && isMemCacheLimited()){
+                        // Taken out by a trim limit rather than replaced by newer bitmaps, so
+                        // it may well be on screen still and must not be decoded into
                     }else {
                         // The removed entry is a standard BitmapDrawable
                         if(Utils.hasHoneycomb()){
                             // We're running an Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the pool for possible use with inBitmap later
+                            mBitmapPool.put(oldValue.getBitmap());
                         }
                     }
                 }
@@ -165,34 +255,100 @@ public class ImageCache {
      * executed on the Main/UI thread. By default an ImageCache does not initialize the disk
      * cache when it is created, instead you should call initDiskCache() to initialize it on
      * a background thread.
+     *
+     * Opening reads the journal, which takes a while for a large cache, so it happens without
+     * holding the lock of the disk cache: lookups meanwhile miss rather than wait (see
+     * {@link #isDiskCacheReady()}), and the bitmaps added meanwhile are written once it is open.
      */
     public void initDiskCache(){
-        // Set up disk cache
         synchronized (mDiskCacheLock){
-            if(mDiskLruCache == null || mDiskLruCache.isClosed()){
-                File diskCacheDir = mCacheParams.diskCacheDir;
-                if(mCacheParams.diskCacheEnabled && diskCacheDir != null){
-                    if(!diskCacheDir.exists()){
-                        diskCacheDir.mkdirs();
+            if(mDiskLruCache != null && !mDiskLruCache.isClosed()){
+                finishDiskCacheStartup(mDiskLruCache, mDiskCacheSizer);
+                return;
+            }
+        }
+
+        // Set up disk cache
+        DiskLruCache diskLruCache = null;
+        DiskCacheSizer sizer = null;
+        File diskCacheDir = mCacheParams.diskCacheDir;
+        if(mCacheParams.diskCacheEnabled && diskCacheDir != null){
+            if(!diskCacheDir.exists()){
+                diskCacheDir.mkdirs();
+            }
+            // The sizer fits the size to the storage, without it the cache needs the room
+            // for the whole size
+            sizer = mCacheParams.diskCacheAutoSize ? new DiskCacheSizer(
+                    diskCacheDir, mCacheParams.maxDiskCacheSize) : null;
+            if(sizer != null || getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize){
+                try {
+                    diskLruCache = DiskLruCache.open(
+                            diskCacheDir,2,2,mCacheParams.diskCacheSize
+                    );
+                    if(sizer != null){
+                        sizer.initialize(diskLruCache, mCacheParams.diskCacheSize);
                     }
-                    if(getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize){
-                        try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir,1,1,mCacheParams.diskCacheSize
-                            );
-                            if(BuildConfig.DEBUG){
-                                Log.d(TAG,"Disk cache initialized");
-                            }
-                        } catch (IOException e) {
-                            mCacheParams.diskCacheDir = null;
-                            Log.e(TAG,"initDiskCache - " + e);
-                        }
+                    // Originals that share the cache age out before the bitmaps
+                    diskLruCache.setHotKeys(DERIVED_KEY_PREFIX, mCacheParams.derivedShare);
+                    if(BuildConfig.DEBUG){
+                        Log.d(TAG,"Disk cache initialized");
                     }
+                    StartupTrace.mark(StartupTrace.DISK_CACHE_OPEN);
+                } catch (IOException e) {
+                    mCacheParams.diskCacheDir = null;
+                    Log.e(TAG,"initDiskCache - " + e);
                 }
+            }else {
+                Log.w(TAG, "initDiskCache - not enough space for the disk cache");
             }
         }
-        mDiskCacheStarting = false;
-//        mDiskCacheLock.notifyAll();
+        finishDiskCacheStartup(diskLruCache, sizer);
+    }
+
+    /**
+     * Make the disk cache available and write the bitmaps added while it was opening to it.
+     * @param diskLruCache Null if there is no disk cache
+     * @param sizer
+     */
+    private void finishDiskCacheStartup(DiskLruCache diskLruCache, DiskCacheSizer sizer){
+        synchronized (mDiskCacheLock){
+            mDiskLruCache = diskLruCache;
+            mDiskCacheSizer = diskLruCache != null ? sizer : null;
+            // Inside the lock, the threads waiting for the disk cache need the notify
+            mDiskCacheStarting = false;
+            mDiskCacheLock.notifyAll();
+        }
+
+        // Adds from now on go straight to disk, see addBitmapToCache
+        final Map<String, BitmapDrawable> pending;
+        synchronized (this){
+            if(mPendingDiskWrites.isEmpty()){
+                return;
+            }
+            pending = new LinkedHashMap<String, BitmapDrawable>(mPendingDiskWrites);
+        }
+        int written = 0;
+        for (Map.Entry<String, BitmapDrawable> entry : pending.entrySet()){
+            if(diskLruCache != null
+                    && addBitmapToDiskCache(entry.getKey(), entry.getValue().getBitmap())){
+                written++;
+            }
+            synchronized (this){
+                mPendingDiskWrites.remove(entry.getKey());
+            }
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, written + " of " + pending.size()
+                    + " bitmaps added while the disk cache was opening written to it");
+        }
+    }
+
+    /**
+     * @return False while the disk cache is being opened or cleared, when disk lookups miss
+     * without looking
+     */
+    public boolean isDiskCacheReady(){
+        return !mDiskCacheStarting;
     }
 
     /**
@@ -206,18 +362,49 @@ public class ImageCache {
         }
         // Add to memory cache
         if(mMemoryCache != null){
-            if(RecylingBitmapDrawable.class.isInstance(value)){
-                // The added entry is a recycling drawable, so notify it
-                // that it has been added into the memory cache
-                ((RecylingBitmapDrawable)value).setIsCached(true);
+            addBitmapToMemCache(data, value);
+            synchronized (this){
+                if(mDiskCacheStarting){
+                    // Written once the disk cache is open, see finishDiskCacheStartup
+                    mPendingDiskWrites.put(data, value);
+                    return;
+                }
             }
-            mMemoryCache.put(data,value);
         }
 
+        addBitmapToDiskCache(data, value.getBitmap());
+    }
+
+    /**
+     * Adds a bitmap to the memory cache only, for one that is stored somewhere else already,
+     * such as a {@link ThumbnailAtlas}
+     * @param data
+     * @param value
+     */
+    public void addBitmapToMemCache(String data, BitmapDrawable value){
+        if(data == null || value == null || mMemoryCache == null){
+            return;
+        }
+        if(RecylingBitmapDrawable.class.isInstance(value)){
+            // The added entry is a recycling drawable, so notify it
+            // that it has been added into the memory cache
+            ((RecylingBitmapDrawable)value).setIsCached(true);
+        }
+        mMemoryCache.put(data,value);
+        applyMemCacheLimit();
+    }
+
+    /**
+     * Adds a bitmap to the disk cache unless it is there already
+     * @param data
+     * @param bitmap
+     * @return True if the bitmap was written
+     */
+    private boolean addBitmapToDiskCache(String data, Bitmap bitmap){
         synchronized (mDiskCacheLock){
             // Add to disk cache
             if(mDiskLruCache != null){
-                final String key = hasKeyForDisk(data);
+                final String key = getDiskKey(data);
                 OutputStream out = null;
                 try {
                     DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
@@ -225,11 +412,15 @@ public class ImageCache {
                         final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
                         if(editor != null){
                             out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(mCacheParams.compressFormat,
+                            bitmap.compress(mCacheParams.compressFormat,
                                     mCacheParams.compressQuality,out);
+                            editor.set(SOURCE_INDEX, data);
                             editor.commit();
                             out.close();
+                            return true;
                         }
+                    }else {
+                        snapshot.close();
                     }
                 } catch (IOException e) {
                     Log.e(TAG,"addBitmapToCache - " + e);
@@ -246,6 +437,145 @@ public class ImageCache {
                 }
             }
         }
+        return false;
+    }
+
+    /**
+     * Adds one size variant of an image to both memory and disk cache. Variants of the same data
+     * are cached under related keys (see {@link #getVariantKey(String, int)}), so a smaller one
+     * that is already in memory can be shown while a larger one loads.
+     * @param data
+     * @param size The size the variant was decoded for, the larger of its target width and height
+     * @param value
+     */
+    public void addBitmapToCache(String data, int size, BitmapDrawable value){
+        if(data == null || value == null){
+            return;
+        }
+        final String key = getVariantKey(data, size);
+        if(mMemoryCache != null && size > 0){
+            addVariant(data, size, key);
+        }
+        addBitmapToCache(key, value);
+    }
+
+    private void addVariant(String data, int size, String key){
+        synchronized (mVariants){
+            SortedMap<Integer, String> sizes = mVariants.get(data);
+            if(sizes == null){
+                sizes = new TreeMap<Integer, String>();
+                mVariants.put(data, sizes);
+            }
+            sizes.put(size, key);
+            mVariantData.put(key, data);
+        }
+    }
+
+    /**
+     * Get the largest variant of an image from the memory cache that is smaller than the given
+     * size, to be shown while the variant of that size loads.
+     * @param data
+     * @param size
+     * @return The variant or null if no smaller variant is in memory
+     */
+    public BitmapDrawable getBestVariantFromMemCache(String data, int size){
+        if(data == null || mMemoryCache == null){
+            return null;
+        }
+        final String[] keys;
+        synchronized (mVariants){
+            final SortedMap<Integer, String> sizes = mVariants.get(data);
+            if(sizes == null){
+                return null;
+            }
+            final SortedMap<Integer, String> smaller = sizes.headMap(size);
+            keys = smaller.values().toArray(new String[smaller.size()]);
+        }
+        // Largest first
+        for (int i = keys.length - 1; i >= 0; i--){
+            final BitmapDrawable value = mMemoryCache.get(keys[i]);
+            if(value != null){
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove the variants of an image that are in the memory cache from both memory and disk
+     * cache, for example because the original changed.
+     * @param data
+     */
+    public void removeVariants(String data){
+        if(data == null){
+            return;
+        }
+        final String[] keys;
+        synchronized (mVariants){
+            final SortedMap<Integer, String> sizes = mVariants.get(data);
+            if(sizes == null){
+                return;
+            }
+            keys = sizes.values().toArray(new String[sizes.size()]);
+        }
+        for (String key : keys){
+            if(mMemoryCache != null){
+                // Calls removeVariant through entryRemoved
+                mMemoryCache.remove(key);
+            }
+            synchronized (mDiskCacheLock){
+                if(mDiskLruCache != null){
+                    try {
+                        mDiskLruCache.remove(getDiskKey(key));
+                    } catch (IOException e) {
+                        Log.e(TAG, "removeVariants - " + e);
+                    }
+                }
+            }
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Removed " + keys.length + " variants of " + data);
+        }
+    }
+
+    private void removeVariant(String key){
+        synchronized (mVariants){
+            final String data = mVariantData.remove(key);
+            if(data == null){
+                return;
+            }
+            final SortedMap<Integer, String> sizes = mVariants.get(data);
+            if(sizes != null){
+                sizes.values().remove(key);
+                if(sizes.isEmpty()){
+                    mVariants.remove(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remember the content of a URL, so that the bitmaps decoded from the same content under
+     * another URL are cached, in memory and on disk, under the same key.
+     * @param data The URL
+     * @param digest The digest of its content, null if it isn't known or not deduplicated
+     */
+    public void setContentKey(String data, String digest){
+        if(digest != null){
+            mContentKeys.put(data, digest);
+        }else {
+            mContentKeys.remove(data);
+        }
+    }
+
+    /**
+     * @param data
+     * @return What the bitmaps of the data are cached under, the digest of its content if
+     * known, otherwise the data itself
+     */
+    public String getContentKey(String data){
+        final String digest = mContentKeys.get(data);
+        return digest != null ? digest : data;
     }
 
     /**
@@ -265,32 +595,57 @@ public class ImageCache {
         return memValue;
     }
 
+    /**
+     * Check the disk cache without decoding anything.
+     * @param data
+     * @return True if the disk cache has a bitmap for the data, false while it is opening
+     */
+    public boolean isInDiskCache(String data){
+        if(mDiskCacheStarting){
+            StartupTrace.countLookupFallenThrough();
+            return false;
+        }
+        synchronized (mDiskCacheLock){
+            if(mDiskLruCache != null){
+                try {
+                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(getDiskKey(data));
+                    if(snapshot != null){
+                        snapshot.close();
+                        return true;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG,"isInDiskCache - " + e);
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Get from disk cache
      * @param data
-     * @return
+     * @return The bitmap, null if it isn't there or the disk cache is still opening
      */
     public Bitmap getBitmapFromDiskCache(String data){
-        final String key = hasKeyForDisk(data);
+        final String key = getDiskKey(data);
         Bitmap bitmap = null;
+        if(mDiskCacheStarting){
+            // Rather than hold up the caller until the disk cache is open
+            StartupTrace.countLookupFallenThrough();
+            return null;
+        }
 
         synchronized (mDiskCacheLock){
-            while (mDiskCacheStarting){
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-
-                }
-            }
             if(mDiskLruCache != null){
                 InputStream inputStream = null;
                 try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(data);
+                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
                     if(snapshot != null){
                         if(BuildConfig.DEBUG){
                             Log.d(TAG,"Disk cache hit");
                         }
                         inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                        DiskLruCache.closeQuietly(snapshot.getInputStream(SOURCE_INDEX));
                         if(inputStream != null){
                             FileDescriptor fd = ((FileInputStream)inputStream).getFD();
                             // Decode bitmap, but we don't want to sample so give
@@ -299,6 +654,9 @@ public class ImageCache {
                                     fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
                         }
                     }
+                    if(mDiskCacheSizer != null){
+                        mDiskCacheSizer.onLookup(mDiskLruCache);
+                    }
                 } catch (IOException e) {
                     Log.e(TAG,"getBitmapFromDiskCache - " + e);
                 } finally {
@@ -321,29 +679,218 @@ public class ImageCache {
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromResuableSet(BitmapFactory.Options options){
-        Bitmap bitmap = null;
-        if(mReusableBitmaps != null && !mReusableBitmaps.isEmpty()){
-            synchronized (mReusableBitmaps){
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-                while (iterator.hasNext()){
-                    item = iterator.next().get();
-                    if(null != item && item.isMutable()){
-                        // Check to see it the item can be used for inBitmap
-                        if(canUseForInBitmap(item,options)){
-                            bitmap = item;
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    }else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
+        if(mBitmapPool == null){
+            return null;
+        }
+        return mBitmapPool.get(options);
+    }
+
+    /**
+     * Offer a bitmap that is no longer needed for re-use with inBitmap.
+     * @param bitmap A mutable bitmap that nothing else holds on to
+     */
+    protected void addBitmapToReusableSet(Bitmap bitmap){
+        if(mBitmapPool != null){
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    /**
+     * @return The pool of bitmaps kept for inBitmap re-use, null before Honeycomb or if the
+     * memory cache is disabled
+     */
+    public BitmapPool getBitmapPool(){
+        return mBitmapPool;
+    }
+
+    /**
+     * Release memory as the system asks with {@link ComponentCallbacks2#onTrimMemory(int)}, in
+     * stages by the level: the pool goes first, then the least recently used part of the memory
+     * cache, all of it once the process is about to be killed. The memory cache stays limited to
+     * what is left, so it doesn't fill up again straight away, until {@link #restoreMemory()} is
+     * called or {@link #TRIM_RESTORE_DELAY_MS} passed without trims. The bitmaps taken out are
+     * written to the disk cache if they aren't there yet, in the background, so that they are a
+     * disk hit rather than a download when they are needed again. They are not pooled, a view
+     * may still show them.
+     * @param level One of the ComponentCallbacks2 TRIM_MEMORY_ levels
+     */
+    public void trimMemory(int level){
+        if(mMemoryCache == null){
+            return;
+        }
+        final int limit;
+        synchronized (this){
+            mMemCacheLimit = Math.min(mMemCacheLimit,
+                    (int) (mCacheParams.memCacheSize * getMemCacheShare(level)));
+            limit = mMemCacheLimit;
+            mTrims++;
+            mDemoted = new LinkedHashMap<String, BitmapDrawable>();
+        }
+        if(mBitmapPool != null){
+            mBitmapPool.setMaxSize(Math.min(mBitmapPool.getMaxSize(),
+                    (int) (mCacheParams.bitmapPoolSize * getBitmapPoolShare(level))));
+        }
+        // Every trim pushes the restore back
+        mHandler.removeCallbacks(mRestoreMemory);
+        mHandler.postDelayed(mRestoreMemory, TRIM_RESTORE_DELAY_MS);
+        final int before = mMemoryCache.size();
+        // Calls demote through entryRemoved
+        mMemoryCache.trimToSize(limit);
+        final Map<String, BitmapDrawable> demoted;
+        synchronized (this){
+            demoted = mDemoted;
+            mDemoted = null;
+            mDemotions += demoted.size();
+        }
+        if(!demoted.isEmpty()){
+            AsyncTask.execute(new Runnable() {
+                @Override
+                public void run() {
+                    demoteToDisk(demoted);
                 }
+            });
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Trim level " + level + ": memory cache " + before + "KB -> "
+                    + mMemoryCache.size() + "KB (limit " + limit + "KB), pool limit "
+                    + (mBitmapPool != null ? mBitmapPool.getMaxSize() / 1024 : 0) + "KB, "
+                    + demoted.size() + " bitmaps demoted");
+        }
+    }
+
+    /**
+     * Give the memory cache and the pool their full size back after {@link #trimMemory(int)},
+     * once memory isn't short anymore: when the app comes back to the foreground, or
+     * {@link #TRIM_RESTORE_DELAY_MS} after the last trim.
+     */
+    public void restoreMemory(){
+        if(mMemoryCache == null){
+            return;
+        }
+        mHandler.removeCallbacks(mRestoreMemory);
+        synchronized (this){
+            if(mMemCacheLimit == mCacheParams.memCacheSize){
+                return;
             }
+            mMemCacheLimit = mCacheParams.memCacheSize;
+        }
+        if(mBitmapPool != null){
+            mBitmapPool.setMaxSize(mCacheParams.bitmapPoolSize);
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Memory cache limit back up to " + mCacheParams.memCacheSize + "KB");
+        }
+    }
+
+    /**
+     * @return What the memory cache may hold now in kilobytes, less than its size after a
+     * memory trim
+     */
+    public synchronized int getMemCacheLimit(){
+        return mMemCacheLimit;
+    }
+
+    /**
+     * @return How many times memory was trimmed
+     */
+    public synchronized long getTrims(){
+        return mTrims;
+    }
+
+    /**
+     * @return How many bitmaps memory trims took out of the memory cache
+     */
+    public synchronized long getDemotions(){
+        return mDemotions;
+    }
+
+    /**
+     * @param level
+     * @return The share of the memory cache size to keep at a trim level
+     */
+    private static float getMemCacheShare(int level){
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE){
+            // In the middle of the background list or about to be killed
+            return 0f;
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND){
+            return 0.25f;
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN){
+            return 0.5f;
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL){
+            return 0.25f;
+        }else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW){
+            return 0.5f;
+        }
+        return 0.75f;
+    }
+
+    /**
+     * @param level
+     * @return The share of the pool size to keep at a trim level
+     */
+    private static float getBitmapPoolShare(int level){
+        return level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ? 0f : 0.5f;
+    }
+
+    /**
+     * @return True while a memory trim keeps the memory cache below its size
+     */
+    private synchronized boolean isMemCacheLimited(){
+        return mMemCacheLimit < mCacheParams.memCacheSize;
+    }
+
+    /**
+     * @param key
+     * @return True if the bitmap of the key is still to be written to the disk cache
+     */
+    private synchronized boolean isPendingDiskWrite(String key){
+        return mPendingDiskWrites.containsKey(key);
+    }
+
+    /**
+     * Take a bitmap that a memory trim evicts, rather than pool it right away.
+     * @param key
+     * @param value
+     * @return False if no trim is running
+     */
+    private synchronized boolean demote(String key, BitmapDrawable value){
+        if(mDemoted == null){
+            return false;
+        }
+        mDemoted.put(key, value);
+        return true;
+    }
+
+    /**
+     * Write the bitmaps a memory trim took out to the disk cache where they aren't yet. They are
+     * left to the garbage collector afterwards rather than pooled, as a view may still show them.
+     * @param demoted
+     */
+    private void demoteToDisk(Map<String, BitmapDrawable> demoted){
+        int written = 0;
+        for (Map.Entry<String, BitmapDrawable> entry : demoted.entrySet()){
+            final Bitmap bitmap = entry.getValue().getBitmap();
+            if(addBitmapToDiskCache(entry.getKey(), bitmap)){
+                written++;
+            }
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Demoted " + demoted.size() + " bitmaps, " + written
+                    + " written to the disk cache");
+        }
+    }
+
+    /**
+     * Keep the memory cache within its limit after a trim.
+     */
+    private void applyMemCacheLimit(){
+        final int limit;
+        synchronized (this){
+            limit = mMemCacheLimit;
+        }
+        if(mMemoryCache.size() > limit){
+            mMemoryCache.trimToSize(limit);
         }
-        return bitmap;
     }
 
     /**
@@ -351,6 +898,7 @@ public class ImageCache {
      * this includes disk access so this should not be executed on the Main/UI thread.
      */
     public void clearCache(){
+        mContentKeys.evictAll();
         if(mMemoryCache != null){
             mMemoryCache.evictAll();
             if(BuildConfig.DEBUG){
@@ -358,8 +906,9 @@ public class ImageCache {
             }
         }
         synchronized (mDiskCacheLock){
-            mDiskCacheStarting = true;
             if(mDiskLruCache != null && !mDiskLruCache.isClosed()){
+                // Callers wait until it is open again
+                mDiskCacheStarting = true;
                 try {
                     mDiskLruCache.delete();
                     if(BuildConfig.DEBUG){
@@ -374,6 +923,197 @@ public class ImageCache {
         }
     }
 
+    /**
+     * The disk cache, for an {@link ImageFetcher} to keep its originals in, so that bitmaps and
+     * originals share one budget. Its entries have two values, and the keys starting with
+     * {@link #DERIVED_KEY_PREFIX} are taken. Waits for the disk cache to be initialized.
+     * @return The disk cache, null if it is disabled or couldn't be opened
+     */
+    public DiskLruCache getDiskCache(){
+        synchronized (mDiskCacheLock){
+            while (mDiskCacheStarting){
+                try {
+                    mDiskCacheLock.wait();
+                } catch (InterruptedException e) {
+
+                }
+            }
+            return mDiskLruCache;
+        }
+    }
+
+    /**
+     * Decode the bitmaps that were used most recently when the cache was last flushed or closed
+     * into the empty memory cache, so that the first screen shows from memory. The decodes run on
+     * {@link AsyncTask#DUAL_THREAD_EXECUTOR} and read the files of the disk cache directly,
+     * so they go on while the disk cache is still opening. Reads the list of them, so this
+     * should not be executed on the Main/UI thread.
+     * @param resources For the drawables
+     */
+    public void preloadHotSet(final Resources resources){
+        final File diskCacheDir = mCacheParams.diskCacheDir;
+        // Before Honeycomb the memory cache holds recycling drawables, which the worker makes
+        if(mMemoryCache == null || mMemoryCache.size() > 0 || !mCacheParams.diskCacheEnabled
+                || diskCacheDir == null || !Utils.hasHoneycomb()){
+            return;
+        }
+        final File file = new File(diskCacheDir, HOT_SET_FILE);
+        if(!file.exists()){
+            return;
+        }
+        final List<String[]> bitmaps = new ArrayList<String[]>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null){
+                final String[] fields = line.split("\t", -1);
+                if(fields.length == 3 && HOT_SET_BITMAP.equals(fields[0])){
+                    bitmaps.add(fields);
+                }else if(fields.length == 3 && HOT_SET_CONTENT_KEY.equals(fields[0])){
+                    setContentKey(fields[1], fields[2]);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "preloadHotSet - " + e);
+            return;
+        } finally {
+            DiskLruCache.closeQuietly(reader);
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        final AtomicInteger remaining = new AtomicInteger(bitmaps.size());
+        final AtomicInteger loaded = new AtomicInteger();
+        for (final String[] fields : bitmaps){
+            AsyncTask.DUAL_THREAD_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(preloadBitmap(resources, diskCacheDir, fields[1], fields[2])){
+                        loaded.incrementAndGet();
+                    }
+                    if(remaining.decrementAndGet() == 0){
+                        StartupTrace.mark(StartupTrace.HOT_SET_LOADED);
+                        if(BuildConfig.DEBUG){
+                            Log.d(TAG, "Preloaded " + loaded.get() + " of " + bitmaps.size()
+                                    + " hot bitmaps in " + (SystemClock.uptimeMillis() - start)
+                                    + "ms");
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Decode one bitmap of the hot set into the memory cache, unless it is there already.
+     * @param resources
+     * @param diskCacheDir
+     * @param key The memory cache key
+     * @param data The data of the key if it is a size variant, empty otherwise
+     * @return True if it was loaded
+     */
+    private boolean preloadBitmap(Resources resources, File diskCacheDir, String key, String data){
+        if(mMemoryCache.get(key) != null){
+            return false;
+        }
+        final File file = DiskLruCache.getCleanFile(diskCacheDir, getDiskKey(key), DISK_CACHE_INDEX);
+        Bitmap bitmap = null;
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            bitmap = ImageResizer.decodeSampleBitmapFromDescriptor(
+                    inputStream.getFD(), Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+        } catch (IOException e) {
+            // Evicted since
+        } finally {
+            DiskLruCache.closeQuietly(inputStream);
+        }
+        if(bitmap == null || mMemoryCache.get(key) != null){
+            return false;
+        }
+        if(data.length() > 0){
+            try {
+                addVariant(data, Integer.parseInt(key.substring(data.length() + 1)), key);
+            } catch (RuntimeException e) {
+                // Not a variant key of the data after all
+            }
+        }
+        // On disk already
+        mMemoryCache.put(key, new BitmapDrawable(resources, bitmap));
+        applyMemCacheLimit();
+        return true;
+    }
+
+    /**
+     * List the most recently used bitmaps of the memory cache that are on disk for
+     * {@link #preloadHotSet(Resources)} to load on the next start. Called with the disk cache
+     * lock held.
+     */
+    private void saveHotSet(){
+        final File diskCacheDir = mCacheParams.diskCacheDir;
+        if(mMemoryCache == null || mDiskLruCache == null || diskCacheDir == null){
+            return;
+        }
+        // Least recently used first
+        final List<Map.Entry<String, BitmapDrawable>> entries =
+                new ArrayList<Map.Entry<String, BitmapDrawable>>(mMemoryCache.snapshot().entrySet());
+        if(entries.isEmpty()){
+            return;
+        }
+        final Map<String, List<String>> urls = new HashMap<String, List<String>>();
+        for (Map.Entry<String, String> entry : mContentKeys.snapshot().entrySet()){
+            List<String> list = urls.get(entry.getValue());
+            if(list == null){
+                list = new ArrayList<String>();
+                urls.put(entry.getValue(), list);
+            }
+            list.add(entry.getKey());
+        }
+
+        final File file = new File(diskCacheDir, HOT_SET_FILE);
+        final File tmp = new File(diskCacheDir, HOT_SET_FILE + ".tmp");
+        final int budget = (int) (mCacheParams.memCacheSize * HOT_SET_MAX_SHARE);
+        int size = 0;
+        int count = 0;
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+            for (int i = entries.size() - 1; i >= 0 && count < HOT_SET_MAX_ENTRIES; i--){
+                final String key = entries.get(i).getKey();
+                final int kilobytes = Math.max(1, getBitmapSize(entries.get(i).getValue()) / 1024);
+                if(size + kilobytes > budget){
+                    break;
+                }
+                final String data;
+                synchronized (mVariants){
+                    data = mVariantData.get(key);
+                }
+                final String content = data != null ? data : key;
+                writer.write(HOT_SET_BITMAP + "\t" + key + "\t" + (data != null ? data : "") + "\n");
+                final List<String> list = urls.remove(content);
+                if(list != null){
+                    for (String url : list){
+                        writer.write(HOT_SET_CONTENT_KEY + "\t" + url + "\t" + content + "\n");
+                    }
+                }
+                size += kilobytes;
+                count++;
+            }
+            writer.close();
+            writer = null;
+            if(!tmp.renameTo(file)){
+                throw new IOException("failed to rename " + tmp);
+            }
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Hot set saved, " + count + " bitmaps, " + size + "KB");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "saveHotSet - " + e);
+        } finally {
+            DiskLruCache.closeQuietly(writer);
+        }
+    }
+
     /**
      * Flushes the disk cache associated with this ImageCache object. Note that this includes
      * disk access so this should not be executed on the Main/UI thread.
@@ -386,6 +1126,7 @@ public class ImageCache {
                     if(BuildConfig.DEBUG){
                         Log.d(TAG,"Disk cache flushed");
                     }
+                    saveHotSet();
                 } catch (IOException e) {
                     Log.e(TAG,"flush - " + e);
                 }
@@ -394,14 +1135,34 @@ public class ImageCache {
     }
 
     /**
-     * Closes the disk cache associated with this ImageCache object. NOte that this includes
-     * disk access so this should not be executed on the Main/UI thread.
+     * Count one more user of the cache. The instance is shared by every worker added with the
+     * same FragmentManager, so each of them takes a reference which {@link #close()} gives back.
+     */
+    public void acquire(){
+        synchronized (mDiskCacheLock){
+            mUsers++;
+        }
+    }
+
+    /**
+     * Closes the disk cache associated with this ImageCache object once the last user that
+     * called {@link #acquire()} closes it, the others still have it open. NOte that this
+     * includes disk access so this should not be executed on the Main/UI thread.
      */
     public void close(){
         synchronized (mDiskCacheLock){
+            if(mUsers > 1){
+                mUsers--;
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Disk cache left open for " + mUsers + " more users");
+                }
+                return;
+            }
+            mUsers = 0;
             if(mDiskLruCache != null){
                 try {
                     if(!mDiskLruCache.isClosed()){
+                        saveHotSet();
                         mDiskLruCache.close();
                         mDiskLruCache = null;
                         if(BuildConfig.DEBUG){
@@ -415,47 +1176,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     *
-     * @param candidate - Bitmap to check
-     * @param targetOptions Options that have the out* value populated
-     * @return ture if <code>candidate</code> can be used for inBitmap re-use with <code>targetOptions</code>
-     */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options targetOptions){
-        if(!Utils.hasKitkat()){
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller then the resuable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-    }
-
-    /**
-     * Return the bytes per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration
-     * @return The byte usage per pixel
-     */
-    private static int getBytesPerPixel(Bitmap.Config config){
-        if(config == Bitmap.Config.ARGB_8888){
-            return 4;
-        }else if(config == Bitmap.Config.RGB_565){
-            return 2;
-        }else if(config == Bitmap.Config.ARGB_4444){
-            return 2;
-        }else if(config == Bitmap.Config.ALPHA_8){
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get the size in bytes of a bitmap in a BitmapDrawable. Note that from Android 4.4(KitKat)
      * onward this returns the allocated memory size of the bitmap which can be larger than the
@@ -463,20 +1183,8 @@ public class ImageCache {
      * @param value
      * @return
      */
-    @TargetApi(Build.VERSION_CODES.KITKAT)
     public static int getBitmapSize(BitmapDrawable value){
-        Bitmap bitmap = value.getBitmap();
-
-        // From Kitkat onward use getAllocationByteCount() as allocated bytes can potentially be
-        // larger than bitmap byte count.
-        if(Utils.hasKitkat()){
-            return bitmap.getAllocationByteCount();
-        }
-        if(Utils.hasHoneycombMR1()){
-            return bitmap.getByteCount();
-        }
-        // Pre HC-MR1
-        return bitmap.getRowBytes() * bitmap.getHeight();
+        return BitmapPool.getBitmapByteCount(value.getBitmap());
     }
 
     /**
@@ -521,6 +1229,20 @@ public class ImageCache {
         return new File(cachePath + File.separator + uniqueName);
     }
 
+    /**
+     * The cache key of one size variant of an image.
+     * @param data
+     * @param size The larger of the target width and height, or 0 for the plain key
+     * @return
+     */
+    public static String getVariantKey(String data, int size){
+        return size > 0 ? data + "#" + size : data;
+    }
+
+    private static String getDiskKey(String data){
+        return DERIVED_KEY_PREFIX + hasKeyForDisk(data);
+    }
+
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable for using as a
      * disk file
@@ -528,18 +1250,36 @@ public class ImageCache {
      * @return
      */
     public static String hasKeyForDisk(String key){
+        final byte[] bytes = key.getBytes();
+        return hasKeyForDisk(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Same as {@link #hasKeyForDisk(String)} for a key that is already available as bytes, for
+     * example from a {@link com.searover.photogallery.provider.FrontCodedStringTable.Cursor},
+     * which saves turning it into a String first.
+     * @param key
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static String hasKeyForDisk(byte[] key, int offset, int length){
         String cacheKey;
         try {
             final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
+            mDigest.update(key, offset, length);
             cacheKey = bytesToHexString(mDigest.digest());
         } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++){
+                hash = 31 * hash + key[i];
+            }
+            cacheKey = String.valueOf(hash);
         }
         return cacheKey;
     }
 
-    private static String bytesToHexString(byte[] bytes){
+    static String bytesToHexString(byte[] bytes){
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < bytes.length; i ++){
             String hex = Integer.toHexString(0xFF & bytes[i]);
@@ -584,6 +1324,12 @@ public class ImageCache {
     public static class ImageCacheParams{
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+        public float derivedShare = DEFAULT_DERIVED_SHARE;
+        // Let a DiskCacheSizer fit the disk cache size, starting from diskCacheSize, between
+        // DiskCacheSizer.MIN_SIZE and maxDiskCacheSize
+        public boolean diskCacheAutoSize = DEFAULT_DISK_CACHE_AUTO_SIZE;
+        public long maxDiskCacheSize;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public File diskCacheDir;
         public Bitmap.CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
         public int compressQuality = DEFAULT_COMPRESS_QUALITY;
@@ -600,6 +1346,7 @@ public class ImageCache {
          */
         public ImageCacheParams(Context context, String diskCacheDirectoryName){
             diskCacheDir = getDiskCacheDir(context,diskCacheDirectoryName);
+            maxDiskCacheSize = DiskCacheSizer.getMaxSize(context);
         }
 
         public void setMemCacheSizePercent(float percent){
@@ -607,6 +1354,7 @@ public class ImageCache {
                 throw new IllegalArgumentException("setMemCacheSizePercent - percent must be"
                 + "between 0.01 and 0.8(inclusive)");
             }
+            memCacheSize = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
         }
     }
 
@@ -5,6 +5,7 @@ import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -18,10 +19,16 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by searover on 3/17/15.
@@ -31,15 +38,55 @@ import java.net.URL;
 public class ImageFetcher extends ImageResizer {
 
     private static final String TAG = "ImageFetcher";
-    private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+    private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB, fitted by DiskCacheSizer
     private static final String HTTP_CACHE_DIR = "http";
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
-    private DiskLruCache mHttpDiskCache;
+    private final HttpTransport mTransport = HttpTransport.getInstance();
+    private final RequestPolicy mPolicy = RequestPolicy.getInstance();
+    private boolean mHedgeRequests;
+    // Shared by all fetchers, they share the network
+    private static final DownloadThrottle sDownloadThrottle = new DownloadThrottle(2, 1, 8);
+    // The store of the cache getHttpDiskCache returned last, and that cache
+    private ContentStore mContentStore;
+    private DiskLruCache mContentStoreCache;
+    // Whether the originals go to the image cache's disk cache, which is sized by the image cache
+    private boolean mHttpDiskCacheShared;
+    // Whether this fetcher counts as a user of sHttpDiskCache
+    private boolean mHttpDiskCacheAcquired;
+    private DiskCacheSizer mHttpDiskCacheSizer;
+    // The separate http cache used without an image disk cache. All fetchers share it, one
+    // journal has only one writer, and the last one to close it closes it. Guarded by
+    // mHttpDiskCacheLock
+    private static DiskLruCache sHttpDiskCache;
+    private static DiskCacheSizer sHttpDiskCacheSizer;
+    private static int sHttpDiskCacheUsers;
+    private boolean mDeduplicate;
     private File mHttpCacheDir;
     private boolean mHttpDiskCacheStarting = true;
     private static Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
+    // The response headers, see HttpCacheMetadata
+    private static final int METADATA_INDEX = 1;
+
+    private static final int DOWNLOAD_FAILED = 0;
+    private static final int DOWNLOAD_NEW_BODY = 1;
+    private static final int DOWNLOAD_NOT_MODIFIED = 2;
+    // The server answered that the image can't be had, trying again won't help for a while
+    private static final int DOWNLOAD_REJECTED = 3;
+
+    // Stale entries are revalidated one at a time, in the background while they are shown
+    private static final Executor REVALIDATE_EXECUTOR =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ImageFetcher revalidate");
+                }
+            });
+    // URLs queued for or being revalidated, guarded by itself
+    private static final Set<String> sRevalidating = new HashSet<String>();
+    // Keys of the entries being downloaded, guarded by mHttpDiskCacheLock
+    private static final Set<String> sDownloading = new HashSet<String>();
 
     /**
      * Initialize providing a target image width and height for the processing images.
@@ -62,9 +109,37 @@ public class ImageFetcher extends ImageResizer {
         init(context);
     }
 
+    /**
+     * If set, a download whose response is slower than most is sent a second time and the
+     * faster of the two is used, see {@link RequestPolicy}. Worth it for small images that the
+     * user is waiting for, like thumbnails.
+     * @param hedgeRequests
+     */
+    public void setHedgeRequests(boolean hedgeRequests){
+        mHedgeRequests = hedgeRequests;
+    }
+
+    /**
+     * If set, the bodies of downloaded images are stored once per content rather than once per
+     * URL (see {@link ContentStore}), and the image cache shares the bitmaps decoded from the
+     * same content between the URLs. Bodies stored that way are read either way.
+     * @param deduplicate
+     */
+    public void setDeduplicate(boolean deduplicate){
+        mDeduplicate = deduplicate;
+    }
+
+    /**
+     * @return The throttle that sets how many downloads run at once, for its metrics
+     */
+    public static DownloadThrottle getDownloadThrottle(){
+        return sDownloadThrottle;
+    }
+
     private void init(Context context){
         checkConnection(context);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context,HTTP_CACHE_DIR);
+        mHttpDiskCacheSizer = new DiskCacheSizer(mHttpCacheDir, DiskCacheSizer.getMaxSize(context));
     }
 
     @Override
@@ -74,21 +149,63 @@ public class ImageFetcher extends ImageResizer {
     }
 
     private void initHttpDiskCache(){
-        if(!mHttpCacheDir.exists()){
-            mHttpCacheDir.mkdirs();
+        // Keep the originals in the image cache's disk cache if there is one, so that they share
+        // its budget and age out before the bitmaps made from them
+        final ImageCache imageCache = getImageCache();
+        final DiskLruCache diskCache = imageCache != null ? imageCache.getDiskCache() : null;
+        if(diskCache != null){
+            synchronized (mHttpDiskCacheLock){
+                mHttpDiskCacheShared = true;
+                // The content store follows the evictions from now on
+                getHttpDiskCache();
+                mHttpDiskCacheStarting = false;
+                mHttpDiskCacheLock.notifyAll();
+            }
+            StartupTrace.mark(StartupTrace.HTTP_CACHE_OPEN);
+            if(mHttpCacheDir.exists()){
+                // The separate cache of earlier versions, deleted off the startup path
+                final File legacyDir = mHttpCacheDir;
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            DiskLruCache.deleteContents(legacyDir);
+                            legacyDir.delete();
+                        } catch (IOException e) {
+                            Log.e(TAG, "initHttpDiskCache - " + e);
+                        }
+                    }
+                });
+            }
+            if(BuildConfig.DEBUG){
+                Log.d(TAG,"Http cache shares the image cache");
+            }
+            return;
         }
+
         synchronized (mHttpDiskCacheLock){
-            long usable = ImageCache.getUsableSpace(mHttpCacheDir);
-            if(ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE){
+            mHttpDiskCacheShared = false;
+            if(sHttpDiskCache == null || sHttpDiskCache.isClosed()){
+                if(!mHttpCacheDir.exists()){
+                    mHttpCacheDir.mkdirs();
+                }
                 try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir,1,1,HTTP_CACHE_SIZE);
+                    sHttpDiskCache = DiskLruCache.open(mHttpCacheDir,1,2,HTTP_CACHE_SIZE);
+                    mHttpDiskCacheSizer.initialize(sHttpDiskCache, HTTP_CACHE_SIZE);
+                    sHttpDiskCacheSizer = mHttpDiskCacheSizer;
                     if(BuildConfig.DEBUG){
                         Log.d(TAG,"Http cache initialized");
                     }
+                    StartupTrace.mark(StartupTrace.HTTP_CACHE_OPEN);
                 } catch (IOException e) {
-                    mHttpDiskCache = null;
+                    sHttpDiskCache = null;
                 }
             }
+            if(sHttpDiskCache != null && !mHttpDiskCacheAcquired){
+                sHttpDiskCacheUsers++;
+                mHttpDiskCacheAcquired = true;
+            }
+            getHttpDiskCache();
             mHttpDiskCacheStarting = false;
             mHttpDiskCacheLock.notifyAll();
         }
@@ -98,16 +215,21 @@ public class ImageFetcher extends ImageResizer {
     protected void clearCacheInternal(){
         super.clearCacheInternal();
         synchronized (mHttpDiskCacheLock){
-            if(mHttpDiskCache != null && !mHttpDiskCache.isClosed()){
+            if(mHttpDiskCacheShared){
+                // Cleared along with the image cache, which has a new disk cache now
+                mHttpDiskCacheStarting = true;
+                initHttpDiskCache();
+            }else if(sHttpDiskCache != null && !sHttpDiskCache.isClosed()){
                 try {
-                    mHttpDiskCache.delete();
+                    sHttpDiskCache.delete();
                     if(BuildConfig.DEBUG){
                         Log.d(TAG," Http cache cleared");
                     }
                 } catch (IOException e) {
                     Log.e(TAG,"clearCacheInternal - " + e);
                 }
-                mHttpDiskCache = null;
+                // The users keep counting, they move to the new cache
+                sHttpDiskCache = null;
                 mHttpDiskCacheStarting = true;
                 initHttpDiskCache();
             }
@@ -118,14 +240,18 @@ public class ImageFetcher extends ImageResizer {
     protected void flushCacheInternal(){
         super.flushCacheInternal();
         synchronized (mHttpDiskCacheLock){
-            if(mHttpDiskCache != null){
+            final DiskLruCache diskCache = getHttpDiskCache();
+            if(diskCache != null){
                 try {
-                    mHttpDiskCache.flush();
+                    diskCache.flush();
                     if(BuildConfig.DEBUG){
                         Log.d(TAG,"Http cache flushed");
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "flush - " + e);
+                } catch (IllegalStateException e) {
+                    // Closed by the image cache since
+                    Log.e(TAG, "flush - " + e);
                 }
             }
         }
@@ -135,22 +261,54 @@ public class ImageFetcher extends ImageResizer {
     protected void closeCacheInternal(){
         super.closeCacheInternal();
         synchronized (mHttpDiskCacheLock){
-            if(mHttpDiskCache != null){
+            mContentStore = null;
+            mContentStoreCache = null;
+            // A shared disk cache is closed by the image cache
+            if(mHttpDiskCacheAcquired){
+                mHttpDiskCacheAcquired = false;
+                if(--sHttpDiskCacheUsers > 0){
+                    // Other fetchers still use it
+                    return;
+                }
                 try {
-                    if(!mHttpDiskCache.isClosed()){
-                        mHttpDiskCache.close();
-                        mHttpDiskCache = null;
+                    if(sHttpDiskCache != null && !sHttpDiskCache.isClosed()){
+                        sHttpDiskCache.close();
                         if(BuildConfig.DEBUG){
-                            Log.e(TAG,"Http cache closed");
+                            Log.d(TAG,"Http cache closed");
                         }
                     }
                 } catch (IOException e) {
                     Log.e(TAG,"closeCacheInternal - " + e);
                 }
+                sHttpDiskCache = null;
             }
         }
     }
 
+    /**
+     * The cache the originals go to, looked up on every use rather than kept, since the image
+     * cache closes its disk cache once all its users closed it and a clear replaces it. Must be
+     * called with mHttpDiskCacheLock held.
+     * @return The open cache, or null if there is none or it has been closed
+     */
+    private DiskLruCache getHttpDiskCache(){
+        final DiskLruCache diskCache;
+        if(mHttpDiskCacheShared){
+            final ImageCache imageCache = getImageCache();
+            diskCache = imageCache != null ? imageCache.getDiskCache() : null;
+        }else {
+            diskCache = mHttpDiskCacheAcquired ? sHttpDiskCache : null;
+        }
+        if(diskCache == null || diskCache.isClosed()){
+            return null;
+        }
+        if(mContentStoreCache != diskCache){
+            mContentStore = new ContentStore(diskCache, DISK_CACHE_INDEX);
+            mContentStoreCache = diskCache;
+        }
+        return diskCache;
+    }
+
     /**
      * Simple network connection check
      * @param context
@@ -165,66 +323,253 @@ public class ImageFetcher extends ImageResizer {
     }
 
     /**
-     * The main process method, which will be called by the ImageWorker in the AsyncTask background thread.
-     * @param data
+     * Open the original (full size) image for a URL from the HTTP cache, downloading it first if
+     * it isn't cached yet. Must not be called on the UI thread.
+     * @param data The URL of the image
+     * @return A stream over the cached file, the caller has to close it, or null if the image
+     * could not be fetched
+     */
+    public FileInputStream getOriginalStream(String data){
+        return getOriginalStream(data, 0, null);
+    }
+
+    /**
+     * Like {@link #getOriginalStream(String)}, and if the image has to be downloaded, decode
+     * previews of it from the partial data while it comes in.
+     * @param data The URL of the image
+     * @param previewSize The largest width or height of a preview
+     * @param listener Receives the previews on the calling thread, may be null
      * @return
      */
-    private Bitmap processBitmap(String data){
-        if(BuildConfig.DEBUG){
-            Log.d(TAG,"processBitmap - " + data);
-        }
+    public FileInputStream getOriginalStream(String data, int previewSize,
+                                             ProgressiveDecoder.OnPartialImageListener listener){
         final String key = ImageCache.hasKeyForDisk(data);
-        FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
+        HttpCacheMetadata metadata = null;
+        DiskLruCache.Editor editor = null;
+        ContentStore contentStore = null;
+        // Wait for disk cache to initialize
+        waitForHttpDiskCache();
         synchronized (mHttpDiskCacheLock){
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting){
-                try {
-                    mHttpDiskCacheLock.wait();
-                }catch (InterruptedException e) {
+            try {
+                DiskLruCache diskCache;
+                while ((diskCache = getHttpDiskCache()) != null){
+                    final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                    if(snapshot != null){
+                        metadata = HttpCacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+                        fileInputStream = (FileInputStream) mContentStore.openBody(snapshot, metadata);
+                        if(fileInputStream != null){
+                            break;
+                        }
+                        // The body was stored with its content, which has been evicted since
+                        diskCache.remove(key);
+                    }
+                    if(!sDownloading.contains(key)){
+                        break;
+                    }
+                    // Another thread is downloading it, wait for that instead
+                    try {
+                        mHttpDiskCacheLock.wait();
+                    } catch (InterruptedException e) {
 
+                    }
+                }
+                if(diskCache != null && !mHttpDiskCacheShared){
+                    sHttpDiskCacheSizer.onLookup(diskCache);
                 }
+                if(diskCache != null && fileInputStream == null){
+                    editor = diskCache.edit(key);
+                    if(editor != null){
+                        sDownloading.add(key);
+                        contentStore = mContentStore;
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG,"processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                // Closed by the image cache since, same as no cache
+                Log.e(TAG,"processBitmap - " + e);
             }
+        }
 
-            if(mHttpDiskCache != null){
+        boolean downloaded = false;
+        int result = DOWNLOAD_FAILED;
+        if(editor != null){
+            // Download without holding the lock, so that downloads can run in parallel
+            if(BuildConfig.DEBUG){
+                Log.d(TAG,"processBitmap, not found in http cache, downloading...");
+            }
+            try {
+                result = downloadUrlToCache(data, editor, null, previewSize, listener);
+                if(result == DOWNLOAD_NEW_BODY && mDeduplicate){
+                    // Still marked as downloading, so no one else touches the entry
+                    contentStore.intern(key);
+                }
+            } catch (IOException e) {
+                Log.e(TAG,"processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                // The cache was closed or cleared while downloading
+                Log.e(TAG,"processBitmap - " + e);
+            }
+            synchronized (mHttpDiskCacheLock){
+                sDownloading.remove(key);
+                mHttpDiskCacheLock.notifyAll();
                 try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if(snapshot == null){
-                        if(BuildConfig.DEBUG){
-                            Log.e(TAG,"processBitmap, not found in http cache, downloading...");
+                    final DiskLruCache diskCache = getHttpDiskCache();
+                    if(diskCache != null){
+                        final DiskLruCache.Snapshot snapshot = diskCache.get(key);
+                        if(snapshot != null){
+                            metadata = HttpCacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+                            fileInputStream =
+                                    (FileInputStream) mContentStore.openBody(snapshot, metadata);
                         }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if(editor != null){
-                            if(downloadUrlToStream(data,editor.newOutputStream(DISK_CACHE_INDEX))){
-                                editor.commit();;
-                            }else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if(snapshot != null){
-                        fileInputStream = (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
                     }
                 } catch (IOException e) {
                     Log.e(TAG,"processBitmap - " + e);
-                }finally {
-                    if(fileDescriptor == null && fileInputStream != null){
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {
+                } catch (IllegalStateException e) {
+                    Log.e(TAG,"processBitmap - " + e);
+                }
+            }
+            downloaded = true;
+            // A cancelled load interrupts the thread, that doesn't say anything about the image
+            if(result == DOWNLOAD_REJECTED){
+                reportFailure(data, NegativeCache.FAILURE_NOT_FOUND);
+            }else if(result == DOWNLOAD_FAILED && !Thread.currentThread().isInterrupted()){
+                reportFailure(data, NegativeCache.FAILURE_NETWORK);
+            }
+        }
 
+        if(fileInputStream != null){
+            final ImageCache imageCache = getImageCache();
+            if(imageCache != null){
+                imageCache.setContentKey(data, metadata.getContentDigest());
+            }
+            if(!downloaded && !metadata.isFresh(System.currentTimeMillis())){
+                // Use what we have now and ask the server in the background
+                revalidateInBackground(data);
+            }
+        }
+        return fileInputStream;
+    }
+
+    /**
+     * Revalidate a stale HTTP cache entry with a conditional request on
+     * {@link #REVALIDATE_EXECUTOR}, unless that is already happening. A 304 only rewrites the
+     * metadata of the entry, a new body replaces it and drops the bitmaps decoded from the old
+     * one from the image cache. Bitmaps decoded from deduplicated content stay, other URLs may
+     * share them, the URL just maps to its new content.
+     * @param data The URL of the image
+     */
+    private void revalidateInBackground(final String data){
+        synchronized (sRevalidating){
+            if(!sRevalidating.add(data)){
+                return;
+            }
+        }
+        REVALIDATE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(revalidate(data) == DOWNLOAD_NEW_BODY){
+                        final ImageCache imageCache = getImageCache();
+                        if(imageCache != null){
+                            imageCache.removeVariants(data);
                         }
                     }
+                } finally {
+                    synchronized (sRevalidating){
+                        sRevalidating.remove(data);
+                    }
+                }
+            }
+        });
+    }
+
+    private int revalidate(String data){
+        final String key = ImageCache.hasKeyForDisk(data);
+        final HttpCacheMetadata metadata;
+        final DiskLruCache.Editor editor;
+        final ContentStore contentStore;
+        synchronized (mHttpDiskCacheLock){
+            final DiskLruCache diskCache = getHttpDiskCache();
+            if(diskCache == null){
+                return DOWNLOAD_FAILED;
+            }
+            contentStore = mContentStore;
+            DiskLruCache.Snapshot snapshot = null;
+            try {
+                snapshot = diskCache.get(key);
+                if(snapshot == null){
+                    return DOWNLOAD_FAILED;
                 }
+                metadata = HttpCacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+                if(metadata.isFresh(System.currentTimeMillis())){
+                    // Someone else got here first
+                    return DOWNLOAD_NOT_MODIFIED;
+                }
+                // Null if the entry changed since the snapshot or is being written
+                editor = snapshot.edit();
+                if(editor == null){
+                    return DOWNLOAD_FAILED;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "revalidate - " + e);
+                return DOWNLOAD_FAILED;
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "revalidate - " + e);
+                return DOWNLOAD_FAILED;
+            } finally {
+                if(snapshot != null){
+                    snapshot.close();
+                }
+            }
+        }
+        try {
+            final int result = downloadUrlToCache(data, editor, metadata, 0, null);
+            if(result == DOWNLOAD_NEW_BODY){
+                final String digest = mDeduplicate ? contentStore.intern(key) : null;
+                // The old content may still be stored for other URLs
+                contentStore.release(metadata.getContentDigest());
+                final ImageCache imageCache = getImageCache();
+                if(imageCache != null){
+                    imageCache.setContentKey(data, digest);
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "revalidate - " + e);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "revalidate - " + e);
+        }
+        return DOWNLOAD_FAILED;
+    }
+
+    /**
+     * The main process method, which will be called by the ImageWorker in the AsyncTask background thread.
+     * @param data
+     * @return
+     */
+    private Bitmap processBitmap(String data){
+        if(BuildConfig.DEBUG){
+            Log.d(TAG,"processBitmap - " + data);
+        }
+        final FileInputStream fileInputStream = getOriginalStream(data);
+        FileDescriptor fileDescriptor = null;
+        if(fileInputStream != null){
+            try {
+                fileDescriptor = fileInputStream.getFD();
+            } catch (IOException e) {
+                Log.e(TAG,"processBitmap - " + e);
             }
         }
 
         Bitmap bitmap = null;
         if(fileDescriptor != null){
             bitmap = decodeSampleBitmapFromDescriptor(fileDescriptor,mImageWidth,mImageHeight,getImageCache());
+            bitmap = downscaleToTarget(bitmap);
+            if(bitmap == null){
+                reportFailure(data, NegativeCache.FAILURE_UNDECODABLE);
+            }
         }
         if(fileInputStream != null){
             try {
@@ -235,19 +580,76 @@ public class ImageFetcher extends ImageResizer {
         return bitmap;
     }
 
+    /**
+     * Download the image, if needed, before the worker takes a decode slot, so that downloads
+     * run as many at once as the {@link DownloadThrottle} allows rather than as many as there
+     * are decode slots.
+     * @param data
+     */
+    @Override
+    protected void prepareBitmap(Object data){
+        final String dataString = String.valueOf(data);
+        final ImageCache imageCache = getImageCache();
+        if(imageCache != null){
+            if(isInAtlas(getDiskCacheKey(imageCache, dataString))){
+                return;
+            }
+            final boolean ready = imageCache.isDiskCacheReady();
+            if(imageCache.isInDiskCache(getDiskCacheKey(imageCache, dataString))){
+                return;
+            }
+            if(!ready){
+                // The lookup missed because the disk cache was opening. The download has to wait
+                // for it anyway, look again once it is open rather than download a bitmap that
+                // is on disk
+                waitForHttpDiskCache();
+                if(imageCache.isInDiskCache(getDiskCacheKey(imageCache, dataString))){
+                    return;
+                }
+            }
+        }
+        final FileInputStream fileInputStream = getOriginalStream(dataString);
+        if(fileInputStream != null){
+            try {
+                fileInputStream.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private String getDiskCacheKey(ImageCache imageCache, String data){
+        return ImageCache.getVariantKey(imageCache.getContentKey(data), getVariantSize());
+    }
+
+    /**
+     * Wait until the HTTP cache has been opened, or found to be unavailable. When it shares the
+     * disk cache of the image cache, that is open then too.
+     */
+    private void waitForHttpDiskCache(){
+        synchronized (mHttpDiskCacheLock){
+            while (mHttpDiskCacheStarting){
+                try {
+                    mHttpDiskCacheLock.wait();
+                }catch (InterruptedException e) {
+
+                }
+            }
+        }
+    }
+
     @Override
     protected Bitmap processBitmap(Object data){
         return processBitmap(String.valueOf(data));
     }
 
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream){
-        disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
         BufferedOutputStream out = null;
         BufferedInputStream in = null;
+        boolean finished = false;
         try {
             final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection = mPolicy.execute(url, null, false);
             in = new BufferedInputStream(urlConnection.getInputStream(),IO_BUFFER_SIZE);
             out = new BufferedOutputStream(outputStream,IO_BUFFER_SIZE);
 
@@ -255,6 +657,7 @@ public class ImageFetcher extends ImageResizer {
             while ((b = in.read()) != -1){
                 out.write(b);
             }
+            finished = true;
             return true;
         } catch (MalformedURLException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
@@ -262,7 +665,7 @@ public class ImageFetcher extends ImageResizer {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
             if(urlConnection != null){
-                urlConnection.disconnect();
+                mTransport.release(urlConnection, in, finished);
             }
             try {
                 if(out != null){
@@ -278,6 +681,187 @@ public class ImageFetcher extends ImageResizer {
         return false;
     }
 
+    /**
+     * Download a URL into a HTTP cache entry and commit or abort the edit. If an earlier download
+     * of the entry was interrupted, only the missing bytes are requested with a Range request,
+     * made conditional on the validator of the kept part with If-Range so that a changed
+     * resource is downloaded in full again. If this download is interrupted in turn, what came
+     * in is kept for the next attempt as long as the response had a validator.
+     *
+     * With the metadata of a stale entry the request is conditional instead, and a 304 (Not
+     * Modified) response only refreshes the stored metadata without any body being transferred.
+     *
+     * Previews of the partial data are decoded with a {@link ProgressiveDecoder} if a listener is
+     * given and the download starts from the beginning.
+     * @param urlString
+     * @param editor
+     * @param cached The metadata of the entry to revalidate, null to download it
+     * @param previewSize
+     * @param listener May be null
+     * @return {@link #DOWNLOAD_NEW_BODY} or {@link #DOWNLOAD_NOT_MODIFIED} if the entry was
+     * committed, {@link #DOWNLOAD_REJECTED} if the server refused it with a 4xx response,
+     * {@link #DOWNLOAD_FAILED} otherwise
+     */
+    private int downloadUrlToCache(String urlString, DiskLruCache.Editor editor,
+                                   HttpCacheMetadata cached, int previewSize,
+                                   ProgressiveDecoder.OnPartialImageListener listener)
+            throws IOException{
+        final DownloadThrottle.Permit permit;
+        try {
+            permit = sDownloadThrottle.acquire();
+        } catch (InterruptedIOException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+            editor.abortKeepingPartial();
+            return DOWNLOAD_FAILED;
+        }
+        try {
+            return downloadUrlToCache(urlString, editor, cached, previewSize, listener, permit);
+        } finally {
+            // On this thread, a cancel interrupted it and only gives back the slot
+            sDownloadThrottle.release(permit);
+        }
+    }
+
+    private int downloadUrlToCache(String urlString, DiskLruCache.Editor editor,
+                                   final HttpCacheMetadata cached, int previewSize,
+                                   ProgressiveDecoder.OnPartialImageListener listener,
+                                   DownloadThrottle.Permit permit)
+            throws IOException{
+        HttpURLConnection urlConnection = null;
+        BufferedOutputStream out = null;
+        BufferedInputStream in = null;
+        HttpCacheMetadata metadata = null;
+        long offset = 0;
+        long received = 0;
+        boolean finished = false;
+        final long start = SystemClock.uptimeMillis();
+        try {
+            final long partialLength = editor.getPartialLength(DISK_CACHE_INDEX);
+            final HttpCacheMetadata partialMetadata =
+                    HttpCacheMetadata.parse(editor.getPartialString(METADATA_INDEX));
+            final String validator = partialMetadata.getRangeValidator();
+
+            final URL url = new URL(urlString);
+            urlConnection = mPolicy.execute(url, new RequestPolicy.RequestSetup() {
+                @Override
+                public void onSetup(HttpURLConnection connection) {
+                    if(cached != null){
+                        if(cached.getETag() != null){
+                            connection.setRequestProperty("If-None-Match", cached.getETag());
+                        }
+                        if(cached.getLastModified() != null){
+                            connection.setRequestProperty("If-Modified-Since", cached.getLastModified());
+                        }
+                    }else if(partialLength > 0 && validator != null){
+                        connection.setRequestProperty("Range", "bytes=" + partialLength + "-");
+                        connection.setRequestProperty("If-Range", validator);
+                    }
+                }
+            }, mHedgeRequests);
+            final int responseCode = urlConnection.getResponseCode();
+            permit.onResponse();
+            if(cached != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED){
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Not modified: " + urlString);
+                }
+                cached.update(urlConnection);
+                editor.set(METADATA_INDEX, cached.toString());
+                editor.commit();
+                // No body, so the connection can go straight back to the pool
+                finished = true;
+                permit.setSuccess(true);
+                return DOWNLOAD_NOT_MODIFIED;
+            }else if(responseCode == HttpURLConnection.HTTP_PARTIAL && validator != null
+                    && HttpCacheMetadata.parseRangeStart(
+                    urlConnection.getHeaderField("Content-Range")) == partialLength){
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Resuming download of " + urlString + " at " + partialLength);
+                }
+                metadata = partialMetadata;
+                offset = partialLength;
+            }else if(responseCode == HttpURLConnection.HTTP_OK){
+                metadata = HttpCacheMetadata.fromResponse(urlConnection);
+                editor.set(METADATA_INDEX, metadata.toString());
+            }else {
+                Log.e(TAG, "Error in downloadBitmap - response " + responseCode);
+                // The server did answer, that's not congestion
+                permit.setSuccess(true);
+                editor.abort();
+                return isRejected(responseCode) ? DOWNLOAD_REJECTED : DOWNLOAD_FAILED;
+            }
+
+            in = new BufferedInputStream(urlConnection.getInputStream(),IO_BUFFER_SIZE);
+            out = new BufferedOutputStream(editor.newOutputStream(DISK_CACHE_INDEX, offset > 0),
+                    IO_BUFFER_SIZE);
+            final ProgressiveDecoder previews = listener == null || offset > 0 ? null
+                    : new ProgressiveDecoder(previewSize, urlConnection.getContentLength(), listener);
+
+            final byte[] buffer = new byte[IO_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1){
+                out.write(buffer, 0, count);
+                received += count;
+                permit.onBytes(count);
+                if(previews != null){
+                    previews.write(buffer, 0, count);
+                }
+            }
+            if(previews != null){
+                previews.release();
+            }
+            out.flush();
+            finished = true;
+            permit.setSuccess(true);
+            mPolicy.recordFetch(SystemClock.uptimeMillis() - start);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+        } catch (IOException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+        } finally {
+            if(urlConnection != null){
+                // Back to the pool if the body was read to the end
+                mTransport.release(urlConnection, in, finished);
+            }
+            try {
+                if(out != null){
+                    out.close();;
+                }
+                if(in != null){
+                    in.close();
+                }
+            } catch (IOException e) {
+
+            }
+        }
+
+        // A connection that closes early doesn't always throw, so also check the length
+        final long expected = metadata != null ? metadata.getContentLength() : -1;
+        final boolean complete = finished && (expected < 0 || offset + received == expected);
+        if(complete){
+            editor.commit();
+            return DOWNLOAD_NEW_BODY;
+        }
+        if(metadata != null && metadata.getRangeValidator() != null && offset + received > 0){
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Keeping " + (offset + received) + " bytes of " + urlString);
+            }
+            editor.abortKeepingPartial();
+        }else {
+            editor.abort();
+        }
+        return DOWNLOAD_FAILED;
+    }
+
+    /**
+     * @param responseCode
+     * @return True for the client errors that mean the image can't be had, such as 404 or 403,
+     * but not the ones that only ask to come back later
+     */
+    private static boolean isRejected(int responseCode){
+        return responseCode >= 400 && responseCode < 500
+                && responseCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT && responseCode != 429;
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
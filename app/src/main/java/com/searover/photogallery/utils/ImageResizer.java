@@ -11,7 +11,11 @@ import android.util.Log;
 
 import com.searover.photogallery.BuildConfig;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by searover on 3/16/15.
@@ -24,6 +28,29 @@ public class ImageResizer extends ImageWorker {
     private static final String TAG = "ImageResizer";
     protected int mImageWidth;
     protected int mImageHeight;
+    private Downscaler.Filter mDownscaleFilter = null;
+
+    // Size of the thumbnail atlas file, see setThumbnailAtlas
+    private static final int ATLAS_SIZE = 8 * 1024 * 1024; // 8MB
+    private static final String ATLAS_SUFFIX = ".atlas";
+    private boolean mAtlasEnabled = false;
+    private final Object mAtlasLock = new Object();
+    // Guarded by mAtlasLock
+    private ThumbnailAtlas mAtlas;
+
+    // Pool shared by the per-thread Downscalers to split rows of a single resize across cores
+    private static final int DOWNSCALE_PARALLELISM =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService sDownscaleExecutor = DOWNSCALE_PARALLELISM > 1 ?
+            Executors.newFixedThreadPool(DOWNSCALE_PARALLELISM - 1) : null;
+
+    // Each decoding thread keeps its own Downscaler so the scratch buffers are never shared
+    private static final ThreadLocal<Downscaler> sDownscaler = new ThreadLocal<Downscaler>(){
+        @Override
+        protected Downscaler initialValue(){
+            return new Downscaler(sDownscaleExecutor, DOWNSCALE_PARALLELISM);
+        }
+    };
 
     /**
      * Initialize providing a single target image size (used for both width and height)
@@ -62,11 +89,152 @@ public class ImageResizer extends ImageWorker {
         setImageSize(size,size);
     }
 
+    /**
+     * If a filter is set, decoded bitmaps that are still larger than the target size after
+     * inSampleSize are resampled down to the exact target size with it. Pass null (the default)
+     * to keep the power of 2 sampled bitmap as it is.
+     * @param filter
+     */
+    public void setDownscaleFilter(Downscaler.Filter filter){
+        mDownscaleFilter = filter;
+    }
+
+    /**
+     * If set to true, the bitmaps this worker loads are also kept in a {@link ThumbnailAtlas}
+     * next to the disk cache, center cropped to the target size, and a bitmap that isn't in
+     * memory anymore is copied back from there before the disk cache is read. Only worth it for
+     * grids that show the bitmaps center cropped at the target size. Call before
+     * {@link #addImageCache(android.support.v4.app.FragmentManager, ImageCache.ImageCacheParams)}.
+     * @param enabled
+     */
+    public void setThumbnailAtlas(boolean enabled){
+        mAtlasEnabled = enabled;
+    }
+
+    @Override
+    protected Bitmap getBitmapFromAtlas(String key){
+        final ThumbnailAtlas atlas = getAtlas();
+        if(atlas == null){
+            return null;
+        }
+        final ImageCache imageCache = getImageCache();
+        return atlas.get(key, imageCache != null ? imageCache.getBitmapPool() : null);
+    }
+
+    @Override
+    protected void addBitmapToAtlas(String key, Bitmap bitmap){
+        final ThumbnailAtlas atlas = getAtlas();
+        if(atlas != null){
+            atlas.put(key, bitmap);
+        }
+    }
+
+    /**
+     * @param key
+     * @return True if the bitmap of the key is in the atlas
+     */
+    protected boolean isInAtlas(String key){
+        final ThumbnailAtlas atlas = getAtlas();
+        return atlas != null && atlas.contains(key);
+    }
+
+    /**
+     * @return The open atlas, opened again if the target size changed since, or null
+     */
+    private ThumbnailAtlas getAtlas(){
+        synchronized (mAtlasLock){
+            if(mAtlas != null && (mAtlas.getWidth() != mImageWidth
+                    || mAtlas.getHeight() != mImageHeight)){
+                mAtlas.close();
+                mAtlas = null;
+                openAtlas();
+            }
+            return mAtlas;
+        }
+    }
+
+    private void openAtlas(){
+        final ImageCache.ImageCacheParams cacheParams = getImageCacheParams();
+        if(!mAtlasEnabled || cacheParams == null || cacheParams.diskCacheDir == null
+                || mImageWidth <= 0 || mImageHeight <= 0){
+            return;
+        }
+        // Next to the disk cache rather than in it, where it would be taken for a stray file
+        final File diskCacheDir = cacheParams.diskCacheDir;
+        final File file = new File(diskCacheDir.getParentFile(),
+                diskCacheDir.getName() + ATLAS_SUFFIX);
+        synchronized (mAtlasLock){
+            try {
+                mAtlas = ThumbnailAtlas.open(file, mImageWidth, mImageHeight, ATLAS_SIZE);
+            } catch (IOException e) {
+                Log.e(TAG, "openAtlas - " + e);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "openAtlas - " + e);
+            }
+        }
+    }
+
+    @Override
+    protected void initDiskCacheInternal(){
+        // Mapping the atlas is quick, it serves hits while the disk cache opens
+        openAtlas();
+        super.initDiskCacheInternal();
+    }
+
+    @Override
+    protected void clearCacheInternal(){
+        super.clearCacheInternal();
+        synchronized (mAtlasLock){
+            if(mAtlas != null){
+                mAtlas.clear();
+            }
+        }
+    }
+
+    @Override
+    protected void flushCacheInternal(){
+        super.flushCacheInternal();
+        synchronized (mAtlasLock){
+            if(mAtlas != null){
+                mAtlas.flush();
+            }
+        }
+    }
+
+    @Override
+    protected void closeCacheInternal(){
+        super.closeCacheInternal();
+        synchronized (mAtlasLock){
+            if(mAtlas != null){
+                mAtlas.close();
+                mAtlas = null;
+            }
+        }
+    }
+
+    @Override
+    protected int getVariantSize(){
+        return Math.max(mImageWidth, mImageHeight);
+    }
+
+    /**
+     * Apply the downscale filter (if any) to a freshly decoded bitmap.
+     * @param bitmap
+     * @return
+     */
+    protected Bitmap downscaleToTarget(Bitmap bitmap){
+        if(mDownscaleFilter == null){
+            return bitmap;
+        }
+        return downscaleBitmap(bitmap, mImageWidth, mImageHeight, mDownscaleFilter, getImageCache());
+    }
+
     private Bitmap processBitmap(int resId){
         if(BuildConfig.DEBUG){
             Log.d(TAG,"processBitmap - " + resId);
         }
-        return decodeSampleBitmapFromResource(mResources,resId,mImageWidth,mImageHeight,getImageCache());
+        return downscaleToTarget(decodeSampleBitmapFromResource(mResources, resId, mImageWidth,
+                mImageHeight, getImageCache()));
     }
 
     @Override
@@ -86,19 +254,23 @@ public class ImageResizer extends ImageWorker {
     public static Bitmap decodeSampleBitmapFromResource(Resources res, int resId,
                                         int reqWidth, int reqHeight, ImageCache cache){
         // First deoode with inJustDecodeBounds = true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeResource(res,resId,options);
+        final BitmapFactory.Options options = DecodeContext.obtainOptions();
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(res,resId,options);
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
+            // Calculate inSampleSize
+            options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
 
-        // If we're running on Honeycomb or newer, try to use inBitmap
-        if(Utils.hasHoneycomb()){
-            addInBitmapOptions(options,cache);
+            // If we're running on Honeycomb or newer, try to use inBitmap
+            if(Utils.hasHoneycomb()){
+                addInBitmapOptions(options,cache);
+            }
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeResource(res,resId,options);
+        } finally {
+            DecodeContext.release(options);
         }
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeResource(res,resId,options);
     }
 
     /**
@@ -112,21 +284,25 @@ public class ImageResizer extends ImageWorker {
     public static Bitmap decodeSampleBitmapFromFile(String filename, int reqWidth, int reqHeight,
                                                     ImageCache cache){
         // First decode with inJustDecodeBounds = true too check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(filename);
+        final BitmapFactory.Options options = DecodeContext.obtainOptions();
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(filename,options);
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
+            // Calculate inSampleSize
+            options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
 
-        // If we're running on Honeycomb or newer, try to use inBitmap
-        if(Utils.hasHoneycomb()){
-            addInBitmapOptions(options,cache);
-        }
+            // If we're running on Honeycomb or newer, try to use inBitmap
+            if(Utils.hasHoneycomb()){
+                addInBitmapOptions(options,cache);
+            }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename,options);
+            // Decode bitmap with inSampleSize set
+            options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFile(filename,options);
+        } finally {
+            DecodeContext.release(options);
+        }
     }
 
     /**
@@ -140,21 +316,73 @@ public class ImageResizer extends ImageWorker {
     public static Bitmap decodeSampleBitmapFromDescriptor(
             FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache){
         // First decode with inJustDecodeBounds = true too check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor,null,options);
+        final BitmapFactory.Options options = DecodeContext.obtainOptions();
+        try {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor,null,options);
+
+            // Calculate inSampleSize
+            options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
+
+            // Decode bitmap with inSampleSize set
+            options.inJustDecodeBounds = false;
 
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options,reqWidth,reqHeight);
+            if(Utils.hasHoneycomb()){
+                addInBitmapOptions(options,cache);
+            }
 
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor,null,options);
+        } finally {
+            DecodeContext.release(options);
+        }
+    }
 
-        if(Utils.hasHoneycomb()){
-            addInBitmapOptions(options,cache);
+    /**
+     * Resample a bitmap so that it just covers the requested width and height (the smaller side
+     * matches, like {@link #calculateInSampleSize} the result is never smaller than requested).
+     * Bitmaps that are already small enough are returned as they are. The source bitmap is handed
+     * to the cache's reusable set so it can serve as inBitmap for the next decode.
+     * @param bitmap
+     * @param reqWidth
+     * @param reqHeight
+     * @param filter
+     * @param cache
+     * @return
+     */
+    public static Bitmap downscaleBitmap(Bitmap bitmap, int reqWidth, int reqHeight,
+                                         Downscaler.Filter filter, ImageCache cache){
+        if(bitmap == null){
+            return null;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final float scale = Math.max((float) reqWidth / width, (float) reqHeight / height);
+        if(scale >= 1f){
+            return bitmap;
         }
+        final int dstWidth = Math.max(1, Math.round(width * scale));
+        final int dstHeight = Math.max(1, Math.round(height * scale));
 
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor,null,options);
+        final Downscaler downscaler = sDownscaler.get();
+        final int[] src = downscaler.obtainSourceBuffer(width * height);
+        bitmap.getPixels(src, 0, width, 0, 0, width, height);
+        final int[] dst = downscaler.obtainDestinationBuffer(dstWidth * dstHeight);
+        downscaler.resize(src, width, height, dst, dstWidth, dstHeight, filter);
+
+        final BitmapPool pool = cache != null ? cache.getBitmapPool() : null;
+        Bitmap result = pool != null ? pool.get(dstWidth, dstHeight, Bitmap.Config.ARGB_8888) : null;
+        if(result == null){
+            result = Bitmap.createBitmap(dstWidth, dstHeight, Bitmap.Config.ARGB_8888);
+        }
+        result.setPixels(dst, 0, dstWidth, 0, 0, dstWidth, dstHeight);
+        if(cache != null && Utils.hasHoneycomb() && bitmap.isMutable()){
+            cache.addBitmapToReusableSet(bitmap);
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "downscaleBitmap - " + width + "x" + height + " -> "
+                    + dstWidth + "x" + dstHeight + " (" + filter + ")");
+        }
+        return result;
     }
 
     /**
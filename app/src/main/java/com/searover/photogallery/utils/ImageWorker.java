@@ -1,6 +1,8 @@
 package com.searover.photogallery.utils;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -10,6 +12,8 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.media.Image;
 import com.searover.photogallery.utils.AsyncTask;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentManager;
 import android.util.Log;
 import android.widget.ImageView;
@@ -17,6 +21,10 @@ import android.widget.ImageView;
 import com.searover.photogallery.BuildConfig;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by searover on 3/14/15.
@@ -31,20 +39,67 @@ public abstract class ImageWorker {
     private ImageCache mImageCache;
     private ImageCache.ImageCacheParams mImageCacheParams;
     private Bitmap mLoadingBitmap;
+    private Bitmap mErrorBitmap;
     private boolean mFadeInBitmap = true;
     private boolean mExitTaskEarly = false;
     protected boolean mPauseWork = false;
     private final Object mPauseworkLock = new Object();
+    // Two decodes at once, and up to 4 binds per frame
+    private final DecodeThrottle mThrottle = new DecodeThrottle(mPauseworkLock, 2, 4);
 
     protected Resources mResources;
+    private final Context mContext;
+    private boolean mMemoryCallbacksRegistered;
+
+    // Passes the memory trims of the system on to the cache while it is open
+    private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            trimMemory(TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    // Images that failed to load lately, shared by all workers since they load the same URLs
+    private static final NegativeCache sNegativeCache = new NegativeCache(256);
 
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
     private static final int MESSAGE_FLUSH = 2;
     private static final int MESSAGE_CLOSE = 3;
 
+    // Workers for the visible images. More threads than decode slots, so that downloads (see
+    // prepareBitmap) can run beside the decodes as far as the subclass lets them
+    private static final Executor WORKER_EXECUTOR =
+            Executors.newFixedThreadPool(8, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ImageWorker #" + mCount.getAndIncrement());
+                }
+            });
+
+    // Prefetches run one at a time on their own thread so they never hold up visible work
+    private static final Executor PREFETCH_EXECUTOR =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "ImageWorker prefetch");
+                }
+            });
+
     protected ImageWorker(Context context){
         mResources = context.getResources();
+        mContext = context.getApplicationContext();
     }
 
     /**
@@ -58,27 +113,121 @@ public abstract class ImageWorker {
      * @param imageView The Image to bind the download image to.
      */
     public void loadImage(Object data, ImageView imageView){
+        loadImage(data, imageView, false);
+    }
+
+    /**
+     * Load an image like {@link #loadImage(Object, ImageView)}. With <code>thumbnailFirst</code>
+     * set, the largest smaller variant of the same image that is in the memory cache (for
+     * example the thumbnail the grid showed) is used as the placeholder instead of the loading
+     * image, and cross-faded into the full decode once that is done.
+     * @param data The URL of the image to download
+     * @param imageView The Image to bind the download image to.
+     * @param thumbnailFirst
+     */
+    public void loadImage(Object data, ImageView imageView, boolean thumbnailFirst){
         if(data == null){
             return;
         }
         BitmapDrawable value = null;
         if(mImageCache != null){
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(getCacheKey(String.valueOf(data)));
         }
         if(value != null){
             Log.w(TAG,"Bitmap found in memory cache");
             // Bitmap found in memory cache
             imageView.setImageDrawable(value);
+            StartupTrace.mark(StartupTrace.FIRST_IMAGE);
+        }else if(sNegativeCache.suppress(String.valueOf(data))){
+            // Failed lately, show the error image rather than trying again right away
+            if(cancelPotentialWork(data, imageView)){
+                showErrorImage(imageView);
+            }
         }else if(cancelPotentialWork(data,imageView)){
             Log.w(TAG,"Bitmap not found in memory cache");
-            final BitmapWorkerTask task = new BitmapWorkerTask(data,imageView);
-            final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources,mLoadingBitmap,task);
+            // Before Honeycomb a cached bitmap may be recycled once nothing displays it, and
+            // the AsyncDrawable doesn't count as a display, so only use the thumbnail after
+            final BitmapDrawable thumbnail = thumbnailFirst && Utils.hasHoneycomb()
+                    ? getBestCachedVariant(data) : null;
+            final Bitmap placeholder = thumbnail != null ? thumbnail.getBitmap() : mLoadingBitmap;
+            final BitmapWorkerTask task = new BitmapWorkerTask(data,imageView,thumbnail);
+            final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources,placeholder,task);
             imageView.setImageDrawable(asyncDrawable);
             // NOTE: This uses a custom version of AsyncTask that has been pulled from the
             // framework and slightly modified. Refer to the docs at the top of the class
             // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR);
+            task.executeOnExecutor(WORKER_EXECUTOR);
+        }
+    }
+
+    /**
+     * @param data
+     * @return The largest variant of the image in the memory cache that is smaller than the
+     * size this worker loads, or null if there is none
+     */
+    public BitmapDrawable getBestCachedVariant(Object data){
+        if(data == null || mImageCache == null){
+            return null;
+        }
+        return mImageCache.getBestVariantFromMemCache(getContentKey(String.valueOf(data)),
+                getVariantSize());
+    }
+
+    /**
+     * The size of the images this worker produces, so that the variants of one image loaded at
+     * different sizes are cached under separate, related keys. 0 if the worker doesn't resize.
+     * @return
+     */
+    protected int getVariantSize(){
+        return 0;
+    }
+
+    private String getCacheKey(String data){
+        return ImageCache.getVariantKey(getContentKey(data), getVariantSize());
+    }
+
+    /**
+     * @param data
+     * @return What the bitmaps of the data are cached under, the same for URLs whose content
+     * is known to be the same (see {@link ImageCache#setContentKey(String, String)})
+     */
+    private String getContentKey(String data){
+        return mImageCache != null ? mImageCache.getContentKey(data) : data;
+    }
+
+    /**
+     * Show the loading placeholder in an ImageView whose data isn't known yet, cancelling any
+     * work still bound to it.
+     * @param imageView
+     */
+    public void showLoadingImage(ImageView imageView){
+        cancelWork(imageView);
+        imageView.setImageDrawable(new BitmapDrawable(mResources, mLoadingBitmap));
+    }
+
+    /**
+     * Load the image specified by the data parameter into the memory and disk caches without
+     * binding it to an ImageView, so a later {@link #loadImage(Object, ImageView)} for the same
+     * data is served from memory. The work runs at the lowest thread priority.
+     * @param data The URL of the image to download
+     * @param listener Notified on the UI thread when the prefetch finishes, may be null
+     * @return The task doing the work, which can be cancelled, or null if nothing needs to be
+     * done because the bitmap is already in the memory cache, it failed to load lately (or
+     * there is no cache to warm)
+     */
+    public AsyncTask<Void, Void, Boolean> prefetch(Object data, OnPrefetchListener listener){
+        if(data == null || mImageCache == null){
+            return null;
         }
+        if(mImageCache.getBitmapFromMemCache(getCacheKey(String.valueOf(data))) != null){
+            return null;
+        }
+        if(sNegativeCache.suppress(String.valueOf(data))){
+            return null;
+        }
+        final PrefetchTask task = new PrefetchTask(data, listener);
+        task.executeOnExecutor(PREFETCH_EXECUTOR);
+        return task;
     }
 
     /**
@@ -97,15 +246,61 @@ public abstract class ImageWorker {
         this.mLoadingBitmap = BitmapFactory.decodeResource(mResources,resId);
     }
 
+    /**
+     * Set the bitmap that shows when the image couldn't be loaded. The loading image is used if
+     * none is set.
+     * @param resId
+     */
+    public void setErrorImage(int resId){
+        this.mErrorBitmap = BitmapFactory.decodeResource(mResources,resId);
+    }
+
+    private void showErrorImage(ImageView imageView){
+        final Bitmap bitmap = mErrorBitmap != null ? mErrorBitmap : mLoadingBitmap;
+        imageView.setImageDrawable(new BitmapDrawable(mResources, bitmap));
+    }
+
     /**
      * Adds an {@link ImageCache} on this {@link ImageWorker} to handle disk and memory bitmap caching
      * @param fragmentManager
      * @param cacheParams
      */
     public void addImageCache(FragmentManager fragmentManager, ImageCache.ImageCacheParams cacheParams){
+        StartupTrace.start();
         mImageCacheParams = cacheParams;
         mImageCache = ImageCache.getInstance(fragmentManager,mImageCacheParams);
+        // Other fragments may use the same instance, it stays open until they all closed it
+        mImageCache.acquire();
+        StartupTrace.mark(StartupTrace.CACHE_ADDED);
         new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+        if(!mMemoryCallbacksRegistered){
+            mContext.registerComponentCallbacks(mMemoryCallbacks);
+            mMemoryCallbacksRegistered = true;
+        }
+    }
+
+    /**
+     * Release memory of the cache, see {@link ImageCache#trimMemory(int)}. Called by the system
+     * from {@link #addImageCache(FragmentManager, ImageCache.ImageCacheParams)} until
+     * {@link #closeCache()}.
+     * @param level One of the ComponentCallbacks2 TRIM_MEMORY_ levels
+     */
+    public void trimMemory(int level){
+        final ImageCache imageCache = mImageCache;
+        if(imageCache != null){
+            imageCache.trimMemory(level);
+        }
+    }
+
+    /**
+     * Give the cache back the memory a trim took, see {@link ImageCache#restoreMemory()}. Call it
+     * when the images are on screen again, from onResume.
+     */
+    public void restoreMemory(){
+        final ImageCache imageCache = mImageCache;
+        if(imageCache != null){
+            imageCache.restoreMemory();
+        }
     }
 
     /**
@@ -130,6 +325,52 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Called on the background thread before a decode slot is taken, for slow work that doesn't
+     * use the CPU, such as downloading the image so that {@link #processBitmap(Object)} finds it
+     * locally. Does nothing by default.
+     * @param data
+     */
+    protected void prepareBitmap(Object data){
+    }
+
+    /**
+     * Look for the bitmap of a key in a store of bitmaps at the exact size they are shown,
+     * before the disk cache. Nothing is stored by default, see
+     * {@link ImageResizer#setThumbnailAtlas(boolean)}.
+     * @param key The cache key of the bitmap
+     * @return The bitmap or null
+     */
+    protected Bitmap getBitmapFromAtlas(String key){
+        return null;
+    }
+
+    /**
+     * Keep a bitmap that was loaded from the disk cache or processed for
+     * {@link #getBitmapFromAtlas(String)}. Does nothing by default.
+     * @param key
+     * @param bitmap
+     */
+    protected void addBitmapToAtlas(String key, Bitmap bitmap){
+    }
+
+    /**
+     * Subclasses call this when the image can't be had, so that loading it isn't tried again
+     * for a while and the error image shows instead.
+     * @param data
+     * @param kind One of the {@link NegativeCache} FAILURE_ constants
+     */
+    protected void reportFailure(Object data, int kind){
+        sNegativeCache.put(String.valueOf(data), kind);
+    }
+
+    /**
+     * @return How many loads were not started because the image failed to load lately
+     */
+    public static long getSuppressedLoads(){
+        return sNegativeCache.getSuppressed();
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by the {@link ImageWorker}
      */
@@ -137,6 +378,13 @@ public abstract class ImageWorker {
         return mImageCache;
     }
 
+    /**
+     * @return The parameters the image cache was added with, null if none was added
+     */
+    protected ImageCache.ImageCacheParams getImageCacheParams(){
+        return mImageCacheParams;
+    }
+
     /**
      * Cancels any pending work attached to the provided ImageView.
      * @param imageView
@@ -201,10 +449,19 @@ public abstract class ImageWorker {
 
         private Object mData;
         private final WeakReference<ImageView> imageViewWeakReference;
+        private final long mRequestTime;
+        private final BitmapDrawable mThumbnail;
 
-        public BitmapWorkerTask(Object data, ImageView imageView){
+        /**
+         * @param data
+         * @param imageView
+         * @param thumbnail The smaller variant shown until the result is bound, may be null
+         */
+        public BitmapWorkerTask(Object data, ImageView imageView, BitmapDrawable thumbnail){
             mData = data;
             imageViewWeakReference = new WeakReference<ImageView>(imageView);
+            mRequestTime = SystemClock.uptimeMillis();
+            mThumbnail = thumbnail;
         }
 
         @Override
@@ -213,26 +470,84 @@ public abstract class ImageWorker {
                 Log.d(TAG,"doInBackground - starting work");
             }
             final String dataString = String.valueOf(mData);
-            Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
-            // wait here if work is paused and the task is not canceled
+            if(!isCancelled() && getAttachedImageView() != null && !mExitTaskEarly){
+                prepareBitmap(dataString);
+            }
+
+            // wait here if work is paused or the throttle has no decode slot free, and the task
+            // is not canceled
+            boolean acquired = false;
             synchronized (mPauseworkLock){
-                while (mPauseWork && !isCancelled()){
+                while (!isCancelled()){
+                    if(!mPauseWork && mThrottle.tryAcquireDecode()){
+                        acquired = true;
+                        break;
+                    }
                     try {
                         mPauseworkLock.wait();
                     } catch (InterruptedException e) {
                     }
                 }
             }
+            try {
+                drawable = loadDrawable(dataString);
+            } finally {
+                if(acquired){
+                    mThrottle.releaseDecode();
+                }
+            }
+
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "doInBackground - finished work");
+            }
+
+            // Hand the result straight to the throttle which binds it in the next frame's batch,
+            // rather than posting a message per task to the UI thread
+            if(drawable != null || sNegativeCache.contains(dataString)){
+                final BitmapDrawable value = drawable;
+                mThrottle.postCompletion(new Runnable() {
+                    @Override
+                    public void run() {
+                        onResult(value);
+                    }
+                });
+            }
+            return drawable;
+        }
+
+        @Override
+        protected boolean isResultDeliveredElsewhere(){
+            return true;
+        }
+
+        private BitmapDrawable loadDrawable(String dataString){
+            final int size = getVariantSize();
+            final String key = getCacheKey(dataString);
+            Bitmap bitmap = null;
+            BitmapDrawable drawable = null;
+
+            // The content of the data may have turned out to be that of an image in memory
+            if(mImageCache != null){
+                drawable = mImageCache.getBitmapFromMemCache(key);
+                if(drawable != null){
+                    return drawable;
+                }
+            }
 
             // If the image cache is available and this task has not been cancelled by another
             // thread and the ImageView that was originally bound to this task is still bound back
             // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
+            // the atlas, which only takes a copy, and then from the disk cache
+            boolean fromAtlas = false;
             if(mImageCache != null && !isCancelled() && getAttachedImageView() != null &&
                     !mExitTaskEarly){
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+                bitmap = getBitmapFromAtlas(key);
+                fromAtlas = bitmap != null;
+                if(bitmap == null){
+                    bitmap = mImageCache.getBitmapFromDiskCache(key);
+                }
             }
 
             // If the bitmap was not found in the cache and this task has not been cancelled by
@@ -249,49 +564,38 @@ public abstract class ImageWorker {
             // here, if it was, and the thread is still running, we may as well add the processed
             // bitmap to our cache as it might be used again in the future.
             if(bitmap != null){
-                if(Utils.hasHoneycomb()){
-                    // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                    drawable = new BitmapDrawable(mResources,bitmap);
-                }else {
-                    // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
-                    // which will recycle automagically
-                    drawable = new RecylingBitmapDrawable(mResources,bitmap);
-                }
-                if(mImageCache != null){
-                    mImageCache.addBitmapToCache(dataString,drawable);
+                drawable = createDrawable(bitmap);
+                if(mImageCache != null && fromAtlas){
+                    // Cropped to the atlas, so it is no variant to show in place of another size
+                    mImageCache.addBitmapToMemCache(key, drawable);
+                }else if(mImageCache != null){
+                    addBitmapToAtlas(key, bitmap);
+                    mImageCache.addBitmapToCache(getContentKey(dataString),size,drawable);
                 }
             }
-
-            if(BuildConfig.DEBUG){
-                Log.d(TAG, "doInBackground - finished work");
-            }
-
             return drawable;
         }
 
         /**
-         * Once the image is processed, associates it to the imageview
-         * @param value
+         * Once the image is processed, associates it to the imageview. Called on the UI thread
+         * from the throttle's per-frame batch.
+         * @param value Null if the image failed to load, the error image is shown then
          */
-        @Override
-        protected void onPostExecute(BitmapDrawable value){
+        private void onResult(BitmapDrawable value){
             // If cancel was called on this task or the "exit early" flag is set when we're done
             if(isCancelled() || mExitTaskEarly){
-                value = null;
+                return;
             }
             final ImageView imageView = getAttachedImageView();
-            if(value != null && imageView != null){
+            if(imageView != null && value == null){
+                showErrorImage(imageView);
+            }else if(imageView != null){
                 if(BuildConfig.DEBUG){
-                    Log.d(TAG, "onPostExecute - setting bitmap");
+                    Log.d(TAG, "onResult - setting bitmap");
                 }
-                setImageDrawable(imageView, value);
-            }
-        }
-
-        protected void onCancelled(BitmapDrawable value){
-            super.onCancelled(value);
-            synchronized (mPauseworkLock){
-                mPauseworkLock.notifyAll();
+                setImageDrawable(imageView, value, mThumbnail);
+                mThrottle.recordFill(mRequestTime);
+                StartupTrace.mark(StartupTrace.FIRST_IMAGE);
             }
         }
 
@@ -305,6 +609,105 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Listener for {@link #prefetch(Object, OnPrefetchListener)}.
+     */
+    public interface OnPrefetchListener{
+        /**
+         * Called on the UI thread once a prefetch has finished or was cancelled.
+         * @param data The data passed to prefetch
+         * @param loaded True if the bitmap is now in the memory cache
+         */
+        void onPrefetchComplete(Object data, boolean loaded);
+    }
+
+    /**
+     * Loads a bitmap into the caches without an ImageView to bind it to.
+     */
+    private class PrefetchTask extends AsyncTask<Void, Void, Boolean>{
+        private final Object mData;
+        private final OnPrefetchListener mListener;
+
+        public PrefetchTask(Object data, OnPrefetchListener listener){
+            mData = data;
+            mListener = listener;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            final String dataString = String.valueOf(mData);
+            final int size = getVariantSize();
+            final String key = getCacheKey(dataString);
+            final ImageCache imageCache = mImageCache;
+
+            // Prefetches wait for a pause just like visible work does
+            synchronized (mPauseworkLock){
+                while (mPauseWork && !isCancelled()){
+                    try {
+                        mPauseworkLock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+
+            if(imageCache == null || isCancelled() || mExitTaskEarly){
+                return false;
+            }
+            // No one waits for a prefetch, so it waits for the disk cache to open rather than
+            // miss and download what may be on it
+            imageCache.getDiskCache();
+            // A visible request may have loaded it while this task was queued
+            if(imageCache.getBitmapFromMemCache(key) != null){
+                return true;
+            }
+            Bitmap bitmap = getBitmapFromAtlas(key);
+            if(bitmap != null){
+                imageCache.addBitmapToMemCache(key, createDrawable(bitmap));
+                return true;
+            }
+            bitmap = imageCache.getBitmapFromDiskCache(key);
+            if(bitmap == null && !isCancelled() && !mExitTaskEarly){
+                bitmap = processBitmap(dataString);
+            }
+            if(bitmap == null){
+                return false;
+            }
+            addBitmapToAtlas(key, bitmap);
+            imageCache.addBitmapToCache(getContentKey(dataString), size, createDrawable(bitmap));
+            return true;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean loaded){
+            if(mListener != null){
+                mListener.onPrefetchComplete(mData, loaded != null && loaded);
+            }
+        }
+
+        @Override
+        protected void onCancelled(Boolean loaded){
+            if(mListener != null){
+                mListener.onPrefetchComplete(mData, false);
+            }
+        }
+    }
+
+    /**
+     * Wrap a freshly loaded bitmap in the right kind of drawable for this platform.
+     * @param bitmap
+     * @return
+     */
+    private BitmapDrawable createDrawable(Bitmap bitmap){
+        if(Utils.hasHoneycomb()){
+            // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
+            return new BitmapDrawable(mResources,bitmap);
+        }
+        // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
+        // which will recycle automagically
+        return new RecylingBitmapDrawable(mResources,bitmap);
+    }
+
     /**
      * A custom Drawable that will be attached to the imageView while the work is in progress,
      * Contains a reference to the actual worker task, so that it can be stopped if a new binding is
@@ -330,9 +733,19 @@ public abstract class ImageWorker {
      * on the Imageview.
      * @param imageView
      * @param drawable
+     * @param thumbnail The smaller variant that was shown as the placeholder, or null
      */
-    private void setImageDrawable(ImageView imageView, Drawable drawable){
-        if(mFadeInBitmap){
+    private void setImageDrawable(ImageView imageView, Drawable drawable, BitmapDrawable thumbnail){
+        if(thumbnail != null){
+            // Cross-fade from the thumbnail, both are the same picture so they line up
+            final TransitionDrawable td =
+                    new TransitionDrawable(new Drawable[]{
+                            new BitmapDrawable(mResources,thumbnail.getBitmap()),drawable
+                    });
+            td.setCrossFadeEnabled(true);
+            imageView.setImageDrawable(td);
+            td.startTransition(FADE_IN_TIME);
+        }else if(mFadeInBitmap){
             // Transition drawable with a tranparent drawable and the final drawable
             final TransitionDrawable td =
                     new TransitionDrawable(new Drawable[]{
@@ -368,6 +781,23 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Let the decode throttle know whether the user is scrolling, so background work backs off
+     * while the list is moving and ramps back up once it stops. Use this from an
+     * {@link android.widget.AbsListView.OnScrollListener} instead of pausing work outright.
+     * @param scrolling
+     */
+    public void setScrolling(boolean scrolling){
+        mThrottle.setScrolling(scrolling);
+    }
+
+    /**
+     * @return The throttle pacing this worker's decodes, for its jank and fill latency numbers
+     */
+    public DecodeThrottle getDecodeThrottle(){
+        return mThrottle;
+    }
+
     protected class CacheAsyncTask extends AsyncTask<Object, Void, Void>{
 
         @Override
@@ -392,11 +822,14 @@ public abstract class ImageWorker {
 
     protected void initDiskCacheInternal(){
         if(mImageCache != null){
+            // Fill the memory cache with what was shown last time while the disk cache opens
+            mImageCache.preloadHotSet(mResources);
             mImageCache.initDiskCache();
         }
     }
 
     protected void clearCacheInternal(){
+        sNegativeCache.clear();
         if(mImageCache != null){
             mImageCache.clearCache();
         }
@@ -424,6 +857,10 @@ public abstract class ImageWorker {
     }
 
     public void closeCache(){
+        if(mMemoryCallbacksRegistered){
+            mContext.unregisterComponentCallbacks(mMemoryCallbacks);
+            mMemoryCallbacksRegistered = false;
+        }
         new CacheAsyncTask().execute(MESSAGE_CLOSE);
     }
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+/**
+ * Remembers images that couldn't be loaded for a while, so that rebinding a cell whose image is
+ * missing shows the error image straight away instead of sending the same doomed request again.
+ * How long a failure is remembered depends on its kind: a network failure may be gone in a few
+ * seconds, a 404 or an image that doesn't decode won't be for a good while. The number of
+ * entries is bounded, the least recently failed ones go first.
+ */
+public class NegativeCache {
+    private static final String TAG = "NegativeCache";
+
+    /** The request failed or timed out, or the server had an error */
+    public static final int FAILURE_NETWORK = 0;
+    /** The server answered that the image doesn't exist or can't be had (4xx) */
+    public static final int FAILURE_NOT_FOUND = 1;
+    /** The image was downloaded but doesn't decode */
+    public static final int FAILURE_UNDECODABLE = 2;
+
+    private static final long[] TTL_MS = {
+            15 * 1000,          // FAILURE_NETWORK
+            10 * 60 * 1000,     // FAILURE_NOT_FOUND
+            30 * 60 * 1000      // FAILURE_UNDECODABLE
+    };
+    // Log the figures every this many suppressed loads in debug builds
+    private static final int LOG_INTERVAL = 20;
+
+    private final LruCache<String, Failure> mFailures;
+    private long mRecorded;
+    private long mSuppressed;
+
+    private static class Failure{
+        final int kind;
+        final long expires;
+
+        Failure(int kind, long expires){
+            this.kind = kind;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * @param maxEntries
+     */
+    public NegativeCache(int maxEntries){
+        mFailures = new LruCache<String, Failure>(maxEntries);
+    }
+
+    /**
+     * Remember that loading the data failed.
+     * @param data
+     * @param kind One of the FAILURE_ constants
+     */
+    public void put(String data, int kind){
+        mFailures.put(data, new Failure(kind, SystemClock.uptimeMillis() + TTL_MS[kind]));
+        synchronized (this){
+            mRecorded++;
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Failure " + kind + " for " + data);
+        }
+    }
+
+    /**
+     * Check whether the data failed recently, counting a hit as a suppressed load.
+     * @param data
+     * @return True if loading it should not be tried again yet
+     */
+    public boolean suppress(String data){
+        if(!contains(data)){
+            return false;
+        }
+        final long suppressed;
+        synchronized (this){
+            suppressed = ++mSuppressed;
+        }
+        if(BuildConfig.DEBUG && suppressed % LOG_INTERVAL == 0){
+            Log.d(TAG, "suppressed = " + suppressed + ", failures recorded = " + getRecorded());
+        }
+        return true;
+    }
+
+    /**
+     * @param data
+     * @return True if the data failed recently
+     */
+    public boolean contains(String data){
+        final Failure failure = mFailures.get(data);
+        if(failure == null){
+            return false;
+        }
+        if(SystemClock.uptimeMillis() >= failure.expires){
+            mFailures.remove(data);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Forget a failure, for example once the data loaded after all.
+     * @param data
+     */
+    public void remove(String data){
+        mFailures.remove(data);
+    }
+
+    /**
+     * Forget all failures.
+     */
+    public void clear(){
+        mFailures.evictAll();
+    }
+
+    /**
+     * @return How many loads were not started because they failed recently
+     */
+    public synchronized long getSuppressed(){
+        return mSuppressed;
+    }
+
+    /**
+     * @return How many failures were recorded
+     */
+    public synchronized long getRecorded(){
+        return mRecorded;
+    }
+}
@@ -0,0 +1,172 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.Arrays;
+
+/**
+ * Decodes previews of a JPEG while it is still being downloaded. The downloader tees every chunk
+ * it writes to the cache into {@link #write(byte[], int, int)}, and every so often the bytes
+ * received so far are decoded at a reduced size. The JPEG decoder fills in whatever the partial
+ * data covers: the top rows of a baseline JPEG (the rest stays grey), or the whole picture at a
+ * coarse quality for a progressive one, getting sharper with every scan.
+ *
+ * Only JPEGs are previewed, other formats don't decode from partial data. Buffering stops once
+ * {@link #MAX_BUFFER_SIZE} bytes have come in, the download itself carries on.
+ */
+public class ProgressiveDecoder {
+    private static final String TAG = "ProgressiveDecoder";
+
+    // Don't hold more than this much of the download in memory for previews
+    private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    // At least this much new data between two previews
+    private static final int MIN_STEP = 32 * 1024;
+    // And at least this long, decoding takes time the download could use
+    private static final long MIN_INTERVAL_MS = 250;
+    // Previews per download if the length is known
+    private static final int PREVIEWS_PER_DOWNLOAD = 6;
+
+    private final int mMaxSize;
+    private final OnPartialImageListener mListener;
+    private final int mStep;
+
+    private byte[] mBuffer;
+    private int mCount;
+    private int mDecodedCount;
+    private long mLastDecodeTime;
+    private boolean mEnabled = true;
+    private int mSampleSize;
+    private boolean mProgressive;
+
+    public interface OnPartialImageListener{
+        /**
+         * Called on the downloading thread with a preview of the data received so far.
+         * @param preview
+         * @param progressive True if the image is a progressive JPEG, so the preview shows the
+         *                    whole picture rather than its top part
+         */
+        void onPartialImage(Bitmap preview, boolean progressive);
+    }
+
+    /**
+     * @param maxSize The largest width or height of a preview
+     * @param expectedLength The Content-Length of the download, or -1 if unknown
+     * @param listener
+     */
+    public ProgressiveDecoder(int maxSize, int expectedLength, OnPartialImageListener listener){
+        mMaxSize = maxSize;
+        mListener = listener;
+        mStep = Math.max(MIN_STEP, expectedLength / PREVIEWS_PER_DOWNLOAD);
+        mBuffer = new byte[expectedLength > 0 ? Math.min(expectedLength, MAX_BUFFER_SIZE) : MIN_STEP * 4];
+    }
+
+    /**
+     * Add a chunk of the download and decode a preview if enough new data came in.
+     * @param data
+     * @param offset
+     * @param length
+     */
+    public void write(byte[] data, int offset, int length){
+        if(!mEnabled){
+            return;
+        }
+        if(mCount + length > MAX_BUFFER_SIZE){
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Download larger than " + MAX_BUFFER_SIZE + " bytes, no more previews");
+            }
+            release();
+            return;
+        }
+        if(mCount + length > mBuffer.length){
+            mBuffer = Arrays.copyOf(mBuffer, Math.min(MAX_BUFFER_SIZE,
+                    Math.max(mCount + length, mBuffer.length * 2)));
+        }
+        System.arraycopy(data, offset, mBuffer, mCount, length);
+        mCount += length;
+
+        if(mCount >= 2 && ((mBuffer[0] & 0xFF) != 0xFF || (mBuffer[1] & 0xFF) != 0xD8)){
+            // No JPEG start of image marker
+            release();
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if(mCount - mDecodedCount >= mStep && now - mLastDecodeTime >= MIN_INTERVAL_MS){
+            decode();
+            mDecodedCount = mCount;
+            mLastDecodeTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Stop previewing and drop the buffered data, for example once the download is complete.
+     */
+    public void release(){
+        mEnabled = false;
+        mBuffer = null;
+    }
+
+    private void decode(){
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if(mSampleSize == 0){
+            // Wait until the header with the dimensions has come in
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(mBuffer, 0, mCount, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0){
+                return;
+            }
+            mSampleSize = 1;
+            while (options.outWidth / mSampleSize > mMaxSize || options.outHeight / mSampleSize > mMaxSize){
+                mSampleSize *= 2;
+            }
+            mProgressive = isProgressive(mBuffer, mCount);
+            options.inJustDecodeBounds = false;
+        }
+        options.inSampleSize = mSampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            final Bitmap preview = BitmapFactory.decodeByteArray(mBuffer, 0, mCount, options);
+            if(preview != null){
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Preview from " + mCount + " bytes (progressive = " + mProgressive + ")");
+                }
+                mListener.onPartialImage(preview, mProgressive);
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "decode - " + e);
+            release();
+        }
+    }
+
+    /**
+     * Walk the JPEG markers up to the first start of frame to see which kind it is.
+     * @param data
+     * @param count
+     * @return True for a progressive (SOF2) JPEG
+     */
+    static boolean isProgressive(byte[] data, int count){
+        int pos = 2;
+        while (pos + 4 <= count){
+            if((data[pos] & 0xFF) != 0xFF){
+                return false;
+            }
+            final int marker = data[pos + 1] & 0xFF;
+            if(marker == 0xFF){
+                // Fill byte
+                pos++;
+                continue;
+            }
+            // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+            if(marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC){
+                return marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE;
+            }
+            final int length = ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            pos += 2 + length;
+        }
+        return false;
+    }
+}
@@ -7,19 +7,30 @@ import android.util.Log;
 
 import com.searover.photogallery.BuildConfig;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by searover on 3/14/15.
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
  * When the drawable is no longer being dispalyed or cached,
- * {@link android.graphics.Bitmap#recycle()} will be called on this drawable's bitmap.
+ * {@link android.graphics.Bitmap#recycle()} is called on its bitmap. Only used before
+ * Honeycomb, where bitmap pixels live outside the Java heap and are not re-used with inBitmap.
+ *
+ * The display count, cache count and the displayed / released flags are packed into a single
+ * atomic word that is only changed with compare-and-set, so the UI thread and the cache threads
+ * never block on each other and the bitmap is released exactly once.
  */
 public class RecylingBitmapDrawable extends BitmapDrawable {
     static final String TAG = "CountingBitmapDrawable";
 
-    private int mCacheRefCount = 0;
-    private int mDisplayRefCount = 0;
+    // Layout of mState: display count in bits 0-23, cache count in bits 24-47, then the flags
+    private static final int COUNT_BITS = 24;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int CACHE_SHIFT = COUNT_BITS;
+    private static final long HAS_BEEN_DISPLAYED = 1L << (2 * COUNT_BITS);
+    private static final long RELEASED = 1L << (2 * COUNT_BITS + 1);
 
-    private boolean mHasBeenDisplayed;
+    private final AtomicLong mState = new AtomicLong();
 
     public RecylingBitmapDrawable(Resources res, Bitmap bitmap){
         super(res,bitmap);
@@ -32,16 +43,7 @@ public class RecylingBitmapDrawable extends BitmapDrawable {
      * @param isDisplayed - Wheather the drawable is being displayed or not
      */
     public void setIsDisplayed(boolean isDisplayed){
-        synchronized (this){
-            if(isDisplayed){
-                mDisplayRefCount++;
-                mHasBeenDisplayed = true;
-            }else {
-                mDisplayRefCount--;
-            }
-        }
-        // Check to see if recycle() can be called
-        checkState();
+        update(isDisplayed ? 1 : -1, 0, isDisplayed);
     }
 
     /**
@@ -50,30 +52,68 @@ public class RecylingBitmapDrawable extends BitmapDrawable {
      * @param isCached - Wheather the drawable is being cached or not
      */
     public void setIsCached(boolean isCached){
-        synchronized (this){
-            if(isCached){
-                mCacheRefCount++;
-            }else {
-                mCacheRefCount--;
+        update(0, isCached ? 1 : -1, false);
+    }
+
+    /**
+     * Apply a change to the counts and release the bitmap if this change is the one that left
+     * the drawable neither displayed nor cached after having been displayed.
+     */
+    private void update(int displayDelta, int cacheDelta, boolean displayed){
+        long current;
+        long next;
+        do {
+            current = mState.get();
+            if((current & RELEASED) != 0){
+                if(BuildConfig.DEBUG){
+                    Log.w(TAG, "State change after the bitmap was released " + toString());
+                }
+                return;
+            }
+            // Counts never go below zero, an unbalanced decrement is ignored
+            final long display = Math.max(0, (current & COUNT_MASK) + displayDelta);
+            final long cache = Math.max(0, ((current >>> CACHE_SHIFT) & COUNT_MASK) + cacheDelta);
+            next = display | (cache << CACHE_SHIFT) | (current & HAS_BEEN_DISPLAYED);
+            if(displayed){
+                next |= HAS_BEEN_DISPLAYED;
             }
+            if(display == 0 && cache == 0 && (next & HAS_BEEN_DISPLAYED) != 0){
+                next |= RELEASED;
+            }
+        } while (!mState.compareAndSet(current, next));
+
+        // Only the thread whose compare-and-set set the flag gets here
+        if((next & RELEASED) != 0){
+            release();
         }
-        // Check to see if recycle() can be called
-        checkState();
     }
 
-    private synchronized void checkState(){
-        // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
-        if(mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()){
-            if(BuildConfig.DEBUG){
-                Log.d(TAG,"No longer being used or cached so recycling" + toString());
-            }
-            getBitmap().recycle();
+    private void release(){
+        final Bitmap bitmap = getBitmap();
+        if(bitmap == null || bitmap.isRecycled()){
+            return;
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG,"No longer being used or cached so recycling" + toString());
         }
+        recycle(bitmap);
     }
 
-    private synchronized boolean hasValidBitmap(){
+    /**
+     * Free the bitmap, called once it is neither displayed nor cached. Happens exactly once.
+     * @param bitmap
+     */
+    void recycle(Bitmap bitmap){
+        bitmap.recycle();
+    }
+
+    /**
+     * @return true if the bitmap has not been released and can still be drawn
+     */
+    public boolean hasValidBitmap(){
+        if((mState.get() & RELEASED) != 0){
+            return false;
+        }
         Bitmap bitmap = getBitmap();
         return bitmap != null && !bitmap.isRecycled();
     }
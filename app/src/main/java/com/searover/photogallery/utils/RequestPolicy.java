@@ -0,0 +1,437 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decides how a request of the image fetchers is attempted, so that one slow or failing response
+ * can't hold up an image for long:
+ *
+ * - Every request has a deadline, no attempt starts after it and none waits beyond it.
+ * - Failed attempts (I/O errors and 5xx or 429 responses) are retried after an exponential
+ *   backoff with full jitter, so that clients don't retry in lockstep.
+ * - Optionally an attempt is hedged: if the response headers haven't come in after the 95th
+ *   percentile of recent response times, a second identical request is sent and whichever
+ *   answers first is used, the other one is disconnected. This only costs one extra request in
+ *   twenty and cuts off the slow tail.
+ * - A circuit breaker per host stops sending requests to a host after several failures in a row,
+ *   and lets a single trial request through once it has cooled down.
+ *
+ * The response time percentiles and those of the whole fetches reported through
+ * {@link #recordFetch(long)} are logged in debug builds.
+ */
+public class RequestPolicy {
+    private static final String TAG = "RequestPolicy";
+
+    public static final long DEFAULT_DEADLINE_MS = 30 * 1000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    private static final long BACKOFF_BASE_MS = 250;
+    private static final long BACKOFF_MAX_MS = 4 * 1000;
+    // Never hedge sooner than this, or before there are enough samples to know the p95
+    private static final long MIN_HEDGE_DELAY_MS = 50;
+    private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    // Failures in a row that open the circuit of a host, and for how long
+    private static final int BREAKER_THRESHOLD = 5;
+    private static final long BREAKER_COOLDOWN_MS = 30 * 1000;
+    // Log the percentiles every this many fetches in debug builds
+    private static final int LOG_INTERVAL = 50;
+
+    private static final Executor ATTEMPT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "RequestPolicy attempt");
+        }
+    });
+
+    private static RequestPolicy sInstance;
+
+    private final HttpTransport mTransport;
+    private final Random mRandom = new Random();
+    private final LatencyHistogram mResponseLatency = new LatencyHistogram();
+    private final LatencyHistogram mFetchLatency = new LatencyHistogram();
+    // Guarded by itself
+    private final Map<String, CircuitBreaker> mBreakers = new HashMap<String, CircuitBreaker>();
+    private long mDeadline = DEFAULT_DEADLINE_MS;
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * Called with a new connection for every attempt, to set its request headers.
+     */
+    public interface RequestSetup{
+        void onSetup(HttpURLConnection connection);
+    }
+
+    /**
+     * @return The policy shared by all image fetchers, so the circuit breakers and response
+     * times apply to the app
+     */
+    public static synchronized RequestPolicy getInstance(){
+        if(sInstance == null){
+            sInstance = new RequestPolicy(HttpTransport.getInstance());
+        }
+        return sInstance;
+    }
+
+    private RequestPolicy(HttpTransport transport){
+        mTransport = transport;
+    }
+
+    /**
+     * @param deadline How long a request may take in milliseconds, over all its attempts
+     * @param maxAttempts How often a request is tried at most
+     */
+    public synchronized void setLimits(long deadline, int maxAttempts){
+        mDeadline = deadline;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Send a request and wait for its response headers, retrying and hedging as described above.
+     * Only use it for idempotent requests.
+     * @param url
+     * @param setup Sets the request headers, may be null
+     * @param hedge Whether to send a second request when the first is slow
+     * @return The connection, with the response code available. Read the body and hand it to
+     * {@link HttpTransport#release(HttpURLConnection, java.io.InputStream, boolean)}.
+     * @throws IOException If the last attempt failed, the deadline passed or the circuit of the
+     * host is open
+     */
+    public HttpURLConnection execute(URL url, RequestSetup setup, boolean hedge) throws IOException{
+        final long deadline;
+        final int maxAttempts;
+        synchronized (this){
+            deadline = SystemClock.uptimeMillis() + mDeadline;
+            maxAttempts = mMaxAttempts;
+        }
+        final CircuitBreaker breaker = getBreaker(url.getHost());
+        IOException error = null;
+        for (int attempt = 0; attempt < maxAttempts; attempt++){
+            if(attempt > 0){
+                // Full jitter: anywhere between nothing and the exponential backoff
+                final long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << (attempt - 1));
+                final long sleep;
+                synchronized (mRandom){
+                    sleep = (long) (mRandom.nextDouble() * backoff);
+                }
+                if(SystemClock.uptimeMillis() + sleep >= deadline){
+                    break;
+                }
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // Keep the interrupt for the callers that tell a cancel from a failure
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted retrying " + url);
+                }
+            }
+            if(!breaker.allowRequest()){
+                throw new IOException("Circuit open for " + url.getHost());
+            }
+            boolean reported = false;
+            try {
+                final HttpURLConnection connection = hedge
+                        ? race(url, setup, deadline) : attempt(url, setup, deadline);
+                if(isRetryable(connection.getResponseCode())){
+                    breaker.onFailure();
+                    reported = true;
+                    error = new IOException("Response " + connection.getResponseCode() + " for " + url);
+                    mTransport.release(connection, null, false);
+                    continue;
+                }
+                breaker.onSuccess();
+                reported = true;
+                return connection;
+            } catch (InterruptedIOException e) {
+                // A timeout is a failure of the host, an interrupt isn't
+                if(Thread.currentThread().isInterrupted()){
+                    throw e;
+                }
+                breaker.onFailure();
+                reported = true;
+                error = e;
+            } catch (IOException e) {
+                breaker.onFailure();
+                reported = true;
+                error = e;
+            } finally {
+                if(!reported){
+                    // Interrupted or an unchecked exception, which says nothing about the host,
+                    // but a trial request mustn't keep the circuit shut for good
+                    breaker.onAbandoned();
+                }
+            }
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "Attempt " + (attempt + 1) + " of " + url + " failed - " + error);
+            }
+        }
+        throw error != null ? error : new InterruptedIOException("Deadline passed for " + url);
+    }
+
+    /**
+     * Report how long a whole fetch took, headers and body, for the fetch latency percentiles.
+     * @param millis
+     */
+    public void recordFetch(long millis){
+        final long count = mFetchLatency.add(millis);
+        if(BuildConfig.DEBUG && count % LOG_INTERVAL == 0){
+            Log.d(TAG, "fetches = " + count + ", fetch latency p50 = " + mFetchLatency.percentile(0.5f)
+                    + "ms p99 = " + mFetchLatency.percentile(0.99f)
+                    + "ms p999 = " + mFetchLatency.percentile(0.999f)
+                    + "ms, response p95 = " + mResponseLatency.percentile(0.95f) + "ms");
+        }
+    }
+
+    /**
+     * @param percentile From 0 to 1
+     * @return The fetch latency at that percentile in milliseconds, over the recent fetches
+     */
+    public long getFetchPercentile(float percentile){
+        return mFetchLatency.percentile(percentile);
+    }
+
+    private static boolean isRetryable(int responseCode){
+        return responseCode >= 500 || responseCode == 429;
+    }
+
+    private CircuitBreaker getBreaker(String host){
+        synchronized (mBreakers){
+            CircuitBreaker breaker = mBreakers.get(host);
+            if(breaker == null){
+                breaker = new CircuitBreaker(host, BREAKER_THRESHOLD, BREAKER_COOLDOWN_MS);
+                mBreakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * One attempt on the calling thread.
+     */
+    private HttpURLConnection attempt(URL url, RequestSetup setup, long deadline) throws IOException{
+        final long start = SystemClock.uptimeMillis();
+        final HttpURLConnection connection = mTransport.open(url);
+        try {
+            // Don't wait for a connection or a response beyond the deadline
+            final int remaining = (int) Math.max(1, deadline - start);
+            connection.setConnectTimeout(Math.min(connection.getConnectTimeout(), remaining));
+            connection.setReadTimeout(Math.min(connection.getReadTimeout(), remaining));
+            if(setup != null){
+                setup.onSetup(connection);
+            }
+            mTransport.connect(connection);
+            connection.getResponseCode();
+        } catch (IOException e) {
+            mTransport.release(connection, null, false);
+            throw e;
+        }
+        mResponseLatency.add(SystemClock.uptimeMillis() - start);
+        return connection;
+    }
+
+    /**
+     * One attempt, plus a hedge if it is slower than the p95 of the response times.
+     */
+    private HttpURLConnection race(final URL url, final RequestSetup setup, final long deadline)
+            throws IOException{
+        final Race race = new Race();
+        final long hedgeDelay = mResponseLatency.count() < MIN_HEDGE_SAMPLES ? DEFAULT_HEDGE_DELAY_MS
+                : Math.max(MIN_HEDGE_DELAY_MS, mResponseLatency.percentile(0.95f));
+        final Runnable runner = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    race.finish(attempt(url, setup, deadline), null);
+                } catch (IOException e) {
+                    race.finish(null, e);
+                }
+            }
+        };
+        race.start();
+        ATTEMPT_EXECUTOR.execute(runner);
+        try {
+            if(race.await(Math.min(deadline, SystemClock.uptimeMillis() + hedgeDelay))){
+                return race.result();
+            }
+            if(SystemClock.uptimeMillis() < deadline){
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Hedging " + url + " after " + hedgeDelay + "ms");
+                }
+                race.start();
+                ATTEMPT_EXECUTOR.execute(runner);
+            }
+            race.await(deadline);
+            return race.result();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + url);
+        } finally {
+            race.close();
+        }
+    }
+
+    /**
+     * The attempts of one hedged request. The first successful one wins, later ones are
+     * disconnected as they come in.
+     */
+    private class Race{
+        private HttpURLConnection mWinner;
+        private IOException mError;
+        private int mPending;
+        private boolean mClosed;
+
+        synchronized void start(){
+            mPending++;
+        }
+
+        synchronized void finish(HttpURLConnection connection, IOException error){
+            mPending--;
+            if(connection != null){
+                if(mWinner == null && !mClosed){
+                    mWinner = connection;
+                }else {
+                    mTransport.release(connection, null, false);
+                }
+            }else {
+                mError = error;
+            }
+            notifyAll();
+        }
+
+        /**
+         * @param until Uptime to wait until at most
+         * @return Whether there is a winner or every attempt failed
+         */
+        synchronized boolean await(long until) throws InterruptedException{
+            long now;
+            while (mWinner == null && mPending > 0 && (now = SystemClock.uptimeMillis()) < until){
+                wait(until - now);
+            }
+            return mWinner != null || mPending == 0;
+        }
+
+        synchronized HttpURLConnection result() throws IOException{
+            if(mWinner != null){
+                return mWinner;
+            }
+            throw mError != null ? mError : new InterruptedIOException("Deadline passed");
+        }
+
+        /**
+         * The caller is done waiting, a winner it didn't take is released.
+         */
+        synchronized void close(){
+            mClosed = true;
+        }
+    }
+
+    /**
+     * Stops requests to a host after a number of failures in a row, until a cool down has
+     * passed. Then one trial request is let through, which either closes the circuit again or
+     * opens it for another cool down. Every allowed request ends with {@link #onSuccess()},
+     * {@link #onFailure()} or {@link #onAbandoned()} on the thread that made it.
+     */
+    static class CircuitBreaker{
+        private final String mHost;
+        private final int mThreshold;
+        private final long mCooldown;
+        private int mFailures;
+        private long mOpenUntil;
+        // The thread making the trial request, null if there is none
+        private Thread mTrial;
+
+        /**
+         * @param host
+         * @param threshold Failures in a row that open the circuit
+         * @param cooldown How long the circuit stays open in milliseconds
+         */
+        CircuitBreaker(String host, int threshold, long cooldown){
+            mHost = host;
+            mThreshold = threshold;
+            mCooldown = cooldown;
+        }
+
+        synchronized boolean allowRequest(){
+            if(mFailures < mThreshold){
+                return true;
+            }
+            if(SystemClock.uptimeMillis() < mOpenUntil || mTrial != null){
+                return false;
+            }
+            mTrial = Thread.currentThread();
+            return true;
+        }
+
+        synchronized void onSuccess(){
+            mFailures = 0;
+            mTrial = null;
+        }
+
+        synchronized void onFailure(){
+            mFailures++;
+            mTrial = null;
+            if(mFailures >= mThreshold){
+                if(BuildConfig.DEBUG && SystemClock.uptimeMillis() >= mOpenUntil){
+                    Log.d(TAG, "Circuit open for " + mHost + " after " + mFailures + " failures");
+                }
+                mOpenUntil = SystemClock.uptimeMillis() + mCooldown;
+            }
+        }
+
+        /**
+         * The request ended without telling whether the host works, for example because it was
+         * cancelled. If it was the trial, the next request may be the trial instead.
+         */
+        synchronized void onAbandoned(){
+            if(mTrial == Thread.currentThread()){
+                mTrial = null;
+            }
+        }
+    }
+
+    /**
+     * The most recent latencies, enough for a p999 that isn't just the maximum.
+     */
+    private static class LatencyHistogram{
+        private static final int SIZE = 2048;
+        private final long[] mSamples = new long[SIZE];
+        private long mCount;
+
+        /**
+         * @param millis
+         * @return The number of samples added so far
+         */
+        synchronized long add(long millis){
+            mSamples[(int) (mCount % SIZE)] = millis;
+            return ++mCount;
+        }
+
+        synchronized long count(){
+            return mCount;
+        }
+
+        synchronized long percentile(float percentile){
+            final int size = (int) Math.min(mCount, SIZE);
+            if(size == 0){
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(mSamples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) (percentile * size))];
+        }
+    }
+}
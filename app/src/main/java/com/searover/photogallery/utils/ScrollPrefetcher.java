@@ -0,0 +1,286 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.Adapter;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Follows the scroll position of a grid and asks an {@link ImageWorker} to prefetch the rows
+ * that are about to come on screen. The number of rows looked ahead grows with the scroll
+ * velocity, and prefetches for positions that fall out of the window (because the user changed
+ * direction or flung past them) are cancelled.
+ *
+ * Feed it from {@link android.widget.AbsListView.OnScrollListener#onScroll} (or the equivalent
+ * positions of a RecyclerView), tell it when the scrolling stops with
+ * {@link #setScrolling(boolean)}, and report every bind with {@link #onBind(Object)} so it can
+ * keep track of how many prefetches were used.
+ * All methods must be called on the UI thread.
+ */
+public class ScrollPrefetcher implements ImageWorker.OnPrefetchListener {
+    private static final String TAG = "ScrollPrefetcher";
+
+    // Rows per second at which the look ahead reaches its maximum
+    private static final float MAX_VELOCITY_ROWS_PER_SECOND = 20f;
+    // Log the rates every this many requested prefetches in debug builds
+    private static final int LOG_INTERVAL = 50;
+
+    private final ImageWorker mImageWorker;
+    private final ItemSource mItems;
+    private final int mMinRowsAhead;
+    private final int mMaxRowsAhead;
+
+    private int mLastFirstVisible = -1;
+    private long mLastScrollTime;
+    private float mVelocity; // rows per second, signed with the scroll direction
+    private int mWindowStart;
+    private int mWindowEnd;
+
+    private final Map<Object, Prefetch> mInFlight = new HashMap<Object, Prefetch>();
+    private final Map<Object, Integer> mLoaded = new HashMap<Object, Integer>();
+    private final Set<Object> mWindowData = new HashSet<Object>();
+
+    private int mRequested;
+    private int mHits;
+    private int mWasted;
+    // Prefetches still queued when their view was bound, part of mWasted
+    private int mLate;
+    private int mNextLog = LOG_INTERVAL;
+
+    /**
+     * Maps adapter positions to the data passed to the worker, for adapters that aren't an
+     * {@link Adapter} such as the ones of a RecyclerView.
+     */
+    public interface ItemSource{
+        /**
+         * @param position
+         * @return The data to load for the position, or null if there is nothing to load
+         */
+        Object getItem(int position);
+    }
+
+    /**
+     * @param imageWorker The worker used to load the images
+     * @param adapter The adapter that maps positions to the data passed to the worker
+     * @param minRowsAhead Rows to prefetch when scrolling slowly
+     * @param maxRowsAhead Rows to prefetch at full fling speed
+     */
+    public ScrollPrefetcher(ImageWorker imageWorker, final Adapter adapter, int minRowsAhead,
+                            int maxRowsAhead){
+        this(imageWorker, new ItemSource() {
+            @Override
+            public Object getItem(int position) {
+                return adapter.getItem(position);
+            }
+        }, minRowsAhead, maxRowsAhead);
+    }
+
+    /**
+     * @param imageWorker The worker used to load the images
+     * @param items Maps positions to the data passed to the worker
+     * @param minRowsAhead Rows to prefetch when scrolling slowly
+     * @param maxRowsAhead Rows to prefetch at full fling speed
+     */
+    public ScrollPrefetcher(ImageWorker imageWorker, ItemSource items, int minRowsAhead,
+                            int maxRowsAhead){
+        mImageWorker = imageWorker;
+        mItems = items;
+        mMinRowsAhead = minRowsAhead;
+        mMaxRowsAhead = Math.max(minRowsAhead, maxRowsAhead);
+    }
+
+    /**
+     * Update the prefetch window from the current scroll position.
+     * @param firstVisibleItem
+     * @param visibleItemCount
+     * @param totalItemCount
+     * @param numColumns
+     */
+    public void onScroll(int firstVisibleItem, int visibleItemCount, int totalItemCount,
+                         int numColumns){
+        if(numColumns <= 0 || visibleItemCount <= 0){
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if(mLastFirstVisible >= 0 && firstVisibleItem != mLastFirstVisible){
+            final long elapsed = Math.max(1, now - mLastScrollTime);
+            final float rows = (float) (firstVisibleItem - mLastFirstVisible) / numColumns;
+            final float instant = rows * 1000f / elapsed;
+            // Smooth out the jumps between onScroll calls
+            mVelocity = mVelocity * 0.5f + instant * 0.5f;
+        }
+        if(firstVisibleItem != mLastFirstVisible){
+            mLastFirstVisible = firstVisibleItem;
+            mLastScrollTime = now;
+        }
+
+        final float speed = Math.min(1f, Math.abs(mVelocity) / MAX_VELOCITY_ROWS_PER_SECOND);
+        final int rowsAhead = mMinRowsAhead + Math.round((mMaxRowsAhead - mMinRowsAhead) * speed);
+        final int itemsAhead = rowsAhead * numColumns;
+
+        final int lastVisible = firstVisibleItem + visibleItemCount;
+        if(mVelocity < 0){
+            mWindowStart = Math.max(0, firstVisibleItem - itemsAhead);
+            mWindowEnd = firstVisibleItem;
+        }else {
+            mWindowStart = lastVisible;
+            mWindowEnd = Math.min(totalItemCount, lastVisible + itemsAhead);
+        }
+        updateWindow(firstVisibleItem, lastVisible);
+    }
+
+    /**
+     * Let the prefetcher know whether the grid is scrolling. Once it comes to rest the measured
+     * velocity is dropped, so the next scroll looks ahead from its own speed rather than the
+     * speed the last one had.
+     * @param scrolling
+     */
+    public void setScrolling(boolean scrolling){
+        if(!scrolling){
+            mVelocity = 0;
+        }
+    }
+
+    /**
+     * Report that the data has been bound to a visible view.
+     * @param data
+     */
+    public void onBind(Object data){
+        if(data == null){
+            return;
+        }
+        if(mLoaded.remove(data) != null){
+            mHits++;
+        }
+        final Prefetch prefetch = mInFlight.remove(data);
+        if(prefetch != null){
+            if(prefetch.task.isStarted()){
+                // Left to finish, the visible request finds the bitmap in memory or on disk
+                // sooner than it would have loaded it on its own
+                mHits++;
+            }else {
+                // Never ran, the visible request does all the work so the prefetch saved
+                // nothing and only holds up the queue
+                prefetch.task.cancel(false);
+                mLate++;
+                mWasted++;
+            }
+        }
+    }
+
+    /**
+     * Cancel all outstanding prefetches, for example when the fragment is paused.
+     */
+    public void cancelAll(){
+        for (Prefetch prefetch : mInFlight.values()){
+            prefetch.task.cancel(false);
+        }
+        mWasted += mInFlight.size();
+        mInFlight.clear();
+        mWasted += mLoaded.size();
+        mLoaded.clear();
+    }
+
+    /**
+     * @return Fraction of requested prefetches that were loaded or loading when their view was
+     * bound
+     */
+    public float getHitRate(){
+        return mRequested == 0 ? 0f : (float) mHits / mRequested;
+    }
+
+    /**
+     * @return Fraction of requested prefetches that were cancelled or dropped from the window
+     * without being used, including the late ones
+     */
+    public float getWasteRate(){
+        return mRequested == 0 ? 0f : (float) mWasted / mRequested;
+    }
+
+    /**
+     * @return Fraction of requested prefetches that were still queued when their view was bound
+     */
+    public float getLateRate(){
+        return mRequested == 0 ? 0f : (float) mLate / mRequested;
+    }
+
+    @Override
+    public void onPrefetchComplete(Object data, boolean loaded){
+        final Prefetch prefetch = mInFlight.remove(data);
+        if(prefetch == null){
+            // Already bound or cancelled and accounted for
+            return;
+        }
+        if(loaded){
+            mLoaded.put(data, prefetch.position);
+        }else {
+            mWasted++;
+        }
+    }
+
+    private void updateWindow(int firstVisible, int lastVisible){
+        mWindowData.clear();
+        for (int position = mWindowStart; position < mWindowEnd; position++){
+            final Object data = mItems.getItem(position);
+            if(data == null){
+                continue;
+            }
+            mWindowData.add(data);
+            if(mInFlight.containsKey(data) || mLoaded.containsKey(data)){
+                continue;
+            }
+            final AsyncTask<Void, Void, Boolean> task = mImageWorker.prefetch(data, this);
+            if(task != null){
+                mInFlight.put(data, new Prefetch(task, position));
+                mRequested++;
+            }
+        }
+
+        // Cancel anything that drifted out of the window. Positions that are on screen now are
+        // left alone since they will be bound (and counted) by the adapter.
+        for (Iterator<Map.Entry<Object, Prefetch>> i = mInFlight.entrySet().iterator(); i.hasNext();){
+            final Map.Entry<Object, Prefetch> entry = i.next();
+            final int position = entry.getValue().position;
+            if(!mWindowData.contains(entry.getKey())
+                    && (position < firstVisible || position >= lastVisible)){
+                entry.getValue().task.cancel(false);
+                i.remove();
+                mWasted++;
+            }
+        }
+        for (Iterator<Map.Entry<Object, Integer>> i = mLoaded.entrySet().iterator(); i.hasNext();){
+            final Map.Entry<Object, Integer> entry = i.next();
+            final int position = entry.getValue();
+            if(!mWindowData.contains(entry.getKey())
+                    && (position < firstVisible || position >= lastVisible)){
+                i.remove();
+                mWasted++;
+            }
+        }
+
+        if(mRequested >= mNextLog){
+            mNextLog = mRequested + LOG_INTERVAL;
+            if(BuildConfig.DEBUG){
+                Log.d(TAG, "prefetch hit rate = " + getHitRate() + ", waste rate = "
+                        + getWasteRate() + ", late rate = " + getLateRate());
+            }
+        }
+    }
+
+    private static class Prefetch{
+        final AsyncTask<Void, Void, Boolean> task;
+        final int position;
+
+        Prefetch(AsyncTask<Void, Void, Boolean> task, int position){
+            this.task = task;
+            this.position = position;
+        }
+    }
+}
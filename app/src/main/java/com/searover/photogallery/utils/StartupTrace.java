@@ -0,0 +1,82 @@
+package com.searover.photogallery.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the start of the image caches in this process, from the first
+ * {@link ImageWorker#addImageCache(android.support.v4.app.FragmentManager, ImageCache.ImageCacheParams)}
+ * to the first image shown, with the caches opening in between. Each event is only recorded the
+ * first time it happens, and logged in debug builds. The lookups that missed because the disk
+ * cache was still opening are counted up to the first image.
+ */
+public class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    /** An image cache was added to a worker */
+    public static final String CACHE_ADDED = "cache added";
+    /** The disk cache of the image cache is open */
+    public static final String DISK_CACHE_OPEN = "disk cache open";
+    /** The bitmaps shown last time are in the memory cache, see {@link ImageCache#preloadHotSet} */
+    public static final String HOT_SET_LOADED = "hot set loaded";
+    /** The HTTP cache of an {@link ImageFetcher} is open, or shares the disk cache */
+    public static final String HTTP_CACHE_OPEN = "http cache open";
+    /** The first image was shown */
+    public static final String FIRST_IMAGE = "first image";
+
+    // Guarded by the class
+    private static long sStart;
+    private static final Map<String, Long> sEvents = new LinkedHashMap<String, Long>();
+    private static int sLookupsFallenThrough;
+
+    private StartupTrace(){}
+
+    /**
+     * Start the trace, unless it already started.
+     */
+    public static synchronized void start(){
+        if(sStart == 0){
+            sStart = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Record an event of the startup, unless it was recorded before.
+     * @param event One of the event constants
+     */
+    public static synchronized void mark(String event){
+        if(sStart == 0 || sEvents.containsKey(event)){
+            return;
+        }
+        final long elapsed = SystemClock.uptimeMillis() - sStart;
+        sEvents.put(event, elapsed);
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, event + " after " + elapsed + "ms"
+                    + (FIRST_IMAGE.equals(event)
+                    ? " (" + sLookupsFallenThrough + " disk lookups missed while opening)" : ""));
+        }
+    }
+
+    /**
+     * Count a disk lookup that missed because the disk cache was still opening.
+     */
+    public static synchronized void countLookupFallenThrough(){
+        if(!sEvents.containsKey(FIRST_IMAGE)){
+            sLookupsFallenThrough++;
+        }
+    }
+
+    /**
+     * @param event
+     * @return Milliseconds from the start to the event, -1 if it hasn't happened yet
+     */
+    public static synchronized long getTime(String event){
+        final Long elapsed = sEvents.get(event);
+        return elapsed != null ? elapsed : -1;
+    }
+}
@@ -0,0 +1,443 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the thumbnails of a grid in one memory mapped file of fixed size slots, so that one
+ * that is not in the memory cache anymore is back with a copy of its pixels rather than a read
+ * and decode of a compressed file from the disk cache.
+ *
+ * Every slot holds one thumbnail of the size the atlas was opened with, center cropped to it,
+ * as RGB_565 pixels behind the hash of its key. A hit copies those pixels straight from the
+ * mapping into a bitmap of that size, taken from the {@link BitmapPool} if one fits. When the
+ * atlas is full the slot to reuse is picked with the clock algorithm: a slot that was read since
+ * the hand last passed it gets another round.
+ *
+ * Which key is in which slot is kept in memory and written to an index file next to the atlas on
+ * {@link #flush()}. Slots that were written after the last flush don't have the hash of the key
+ * the index has for them, and are dropped when the atlas is opened again.
+ */
+public class ThumbnailAtlas {
+    private static final String TAG = "ThumbnailAtlas";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final String INDEX_MAGIC = "atlas";
+    private static final int INDEX_VERSION = 1;
+    // Bytes in front of the pixels of every slot, the hash of the key stored there. 0 if none
+    private static final int SLOT_HEADER_SIZE = 8;
+    private static final int BYTES_PER_PIXEL = 2;
+    // Log the figures every this many hits in debug builds
+    private static final int LOG_INTERVAL = 100;
+
+    private final File mFile;
+    private final File mIndexFile;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mPixelsSize;
+    private final int mSlotSize;
+    private final int mSlotCount;
+
+    // Guarded by this
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private final Map<String, Integer> mSlots = new HashMap<String, Integer>();
+    private final String[] mKeys;
+    private final boolean[] mReferenced;
+    private int mHand;
+    private boolean mIndexDirty;
+    private Bitmap mScratch;
+    private Canvas mCanvas;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSource = new Rect();
+    private final Rect mDestination = new Rect();
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private long mHitNanos;
+
+    private ThumbnailAtlas(File file, int width, int height, int slotCount){
+        mFile = file;
+        mIndexFile = new File(file.getPath() + INDEX_SUFFIX);
+        mWidth = width;
+        mHeight = height;
+        mPixelsSize = width * height * BYTES_PER_PIXEL;
+        mSlotSize = SLOT_HEADER_SIZE + mPixelsSize;
+        mSlotCount = slotCount;
+        mKeys = new String[slotCount];
+        mReferenced = new boolean[slotCount];
+    }
+
+    /**
+     * Open the atlas in the given file, creating it if need be. What the file holds is kept if
+     * it was written for thumbnails of the same size, and dropped otherwise.
+     * @param file
+     * @param width The width of the thumbnails
+     * @param height The height of the thumbnails
+     * @param maxSize The size of the file, as many slots as fit in it are used
+     * @return
+     * @throws IOException
+     */
+    public static ThumbnailAtlas open(File file, int width, int height, int maxSize)
+            throws IOException{
+        if(width <= 0 || height <= 0){
+            throw new IllegalArgumentException("open - the size of the thumbnails must be positive");
+        }
+        final int slotCount = maxSize / (SLOT_HEADER_SIZE + width * height * BYTES_PER_PIXEL);
+        if(slotCount < 1){
+            throw new IllegalArgumentException("open - a thumbnail of " + width + "x" + height
+                    + " doesn't fit in " + maxSize + " bytes");
+        }
+        final File directory = file.getParentFile();
+        if(directory != null && !directory.exists()){
+            directory.mkdirs();
+        }
+        final ThumbnailAtlas atlas = new ThumbnailAtlas(file, width, height, slotCount);
+        atlas.map();
+        atlas.readIndex();
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Opened " + file.getName() + " with " + atlas.mSlots.size() + " of "
+                    + slotCount + " slots of " + width + "x" + height + " in use");
+        }
+        return atlas;
+    }
+
+    private void map() throws IOException{
+        final long length = (long) mSlotSize * mSlotCount;
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            if(mRandomAccessFile.length() != length){
+                mRandomAccessFile.setLength(length);
+            }
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The width of the thumbnails
+     */
+    public int getWidth(){
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the thumbnails
+     */
+    public int getHeight(){
+        return mHeight;
+    }
+
+    /**
+     * @param key
+     * @return True if the thumbnail of the key is in the atlas
+     */
+    public synchronized boolean contains(String key){
+        return mBuffer != null && key != null && mSlots.containsKey(key);
+    }
+
+    /**
+     * Copy a thumbnail out of the atlas.
+     * @param key
+     * @param pool Where to take the bitmap to copy into from, may be null
+     * @return A mutable RGB_565 bitmap of the size of the atlas, null if the key isn't in it
+     */
+    public synchronized Bitmap get(String key, BitmapPool pool){
+        if(mBuffer == null || key == null){
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Integer slot = mSlots.get(key);
+        if(slot == null){
+            mMisses++;
+            return null;
+        }
+        mReferenced[slot] = true;
+        final Bitmap bitmap = obtainBitmap(pool);
+        bitmap.copyPixelsFromBuffer(getPixels(slot));
+
+        mHits++;
+        mHitNanos += System.nanoTime() - start;
+        if(BuildConfig.DEBUG && mHits % LOG_INTERVAL == 0){
+            Log.d(TAG, "hits = " + mHits + ", misses = " + mMisses + ", evictions = "
+                    + mEvictions + ", average hit = " + mHitNanos / mHits / 1000 + "us");
+        }
+        return bitmap;
+    }
+
+    /**
+     * Store the thumbnail of a key, center cropped and scaled to the size of the atlas, in the
+     * slot the clock hand lands on. Nothing is done if the key is in the atlas already.
+     * @param key
+     * @param bitmap
+     * @return True if the thumbnail is in the atlas now
+     */
+    public synchronized boolean put(String key, Bitmap bitmap){
+        if(mBuffer == null || key == null || bitmap == null || bitmap.isRecycled()){
+            return false;
+        }
+        if(mSlots.containsKey(key)){
+            return true;
+        }
+        if(mScratch == null){
+            mScratch = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.RGB_565);
+            mCanvas = new Canvas(mScratch);
+            mDestination.set(0, 0, mWidth, mHeight);
+        }
+        // The largest centered part of the bitmap that has the shape of a slot
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if((long) width * mHeight > (long) height * mWidth){
+            final int cropWidth = (int) ((long) height * mWidth / mHeight);
+            mSource.set((width - cropWidth) / 2, 0, (width + cropWidth) / 2, height);
+        }else {
+            final int cropHeight = (int) ((long) width * mHeight / mWidth);
+            mSource.set(0, (height - cropHeight) / 2, width, (height + cropHeight) / 2);
+        }
+        mCanvas.drawBitmap(bitmap, mSource, mDestination, mPaint);
+
+        final int slot = nextSlot();
+        final String evicted = mKeys[slot];
+        if(evicted != null){
+            mSlots.remove(evicted);
+            mEvictions++;
+        }
+        final int offset = slot * mSlotSize;
+        // Clear the hash first so that a slot left half written never passes for its key
+        mBuffer.putLong(offset, 0);
+        mScratch.copyPixelsToBuffer(getPixels(slot));
+        mBuffer.putLong(offset, hash(key));
+
+        mKeys[slot] = key;
+        mReferenced[slot] = false;
+        mSlots.put(key, slot);
+        mIndexDirty = true;
+        return true;
+    }
+
+    /**
+     * Drop all thumbnails.
+     */
+    public synchronized void clear(){
+        if(mBuffer == null){
+            return;
+        }
+        for(int slot = 0; slot < mSlotCount; slot++){
+            mBuffer.putLong(slot * mSlotSize, 0);
+        }
+        mSlots.clear();
+        Arrays.fill(mKeys, null);
+        Arrays.fill(mReferenced, false);
+        mHand = 0;
+        mIndexFile.delete();
+        mIndexDirty = false;
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Atlas cleared");
+        }
+    }
+
+    /**
+     * Write the pixels and the index to the file system.
+     */
+    public synchronized void flush(){
+        if(mBuffer == null){
+            return;
+        }
+        mBuffer.force();
+        if(mIndexDirty){
+            try {
+                writeIndex();
+                mIndexDirty = false;
+            } catch (IOException e) {
+                Log.e(TAG, "flush - " + e);
+            }
+        }
+    }
+
+    /**
+     * Flush and close the atlas, it returns nothing afterwards.
+     */
+    public synchronized void close(){
+        if(mBuffer == null){
+            return;
+        }
+        flush();
+        mBuffer = null;
+        mSlots.clear();
+        if(mScratch != null){
+            mScratch.recycle();
+            mScratch = null;
+            mCanvas = null;
+        }
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close - " + e);
+        }
+        mRandomAccessFile = null;
+    }
+
+    /**
+     * @return How many thumbnails were copied out of the atlas
+     */
+    public synchronized long getHitCount(){
+        return mHits;
+    }
+
+    /**
+     * @return How many lookups found nothing
+     */
+    public synchronized long getMissCount(){
+        return mMisses;
+    }
+
+    /**
+     * @return The average time a hit took, in microseconds
+     */
+    public synchronized long getAverageHitMicros(){
+        return mHits > 0 ? mHitNanos / mHits / 1000 : 0;
+    }
+
+    /**
+     * Move the clock hand to the next slot that is free or wasn't read since the hand last
+     * passed it, taking the read mark off the slots it passes on the way.
+     * @return The slot
+     */
+    private int nextSlot(){
+        while (mKeys[mHand] != null && mReferenced[mHand]){
+            mReferenced[mHand] = false;
+            mHand = (mHand + 1) % mSlotCount;
+        }
+        final int slot = mHand;
+        mHand = (mHand + 1) % mSlotCount;
+        return slot;
+    }
+
+    /**
+     * @param slot
+     * @return A view of the mapping that spans the pixels of the slot
+     */
+    private ByteBuffer getPixels(int slot){
+        final ByteBuffer pixels = mBuffer.duplicate();
+        final int start = slot * mSlotSize + SLOT_HEADER_SIZE;
+        pixels.limit(start + mPixelsSize);
+        pixels.position(start);
+        return pixels;
+    }
+
+    /**
+     * @param pool
+     * @return A mutable RGB_565 bitmap of the size of the atlas
+     */
+    private Bitmap obtainBitmap(BitmapPool pool){
+        if(pool != null){
+            // Reconfigured from a larger one from KitKat on, see BitmapPool#get(int, int, Config)
+            final Bitmap bitmap = pool.get(mWidth, mHeight, Bitmap.Config.RGB_565);
+            if(bitmap != null){
+                return bitmap;
+            }
+        }
+        return Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.RGB_565);
+    }
+
+    private void readIndex(){
+        if(!mIndexFile.exists()){
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mIndexFile));
+            final String header = reader.readLine();
+            if(!getIndexHeader().equals(header)){
+                if(BuildConfig.DEBUG){
+                    Log.d(TAG, "Index of another layout, starting empty: " + header);
+                }
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null){
+                final int tab = line.indexOf('\t');
+                if(tab < 0){
+                    continue;
+                }
+                final int slot;
+                try {
+                    slot = Integer.parseInt(line.substring(0, tab));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                final String key = line.substring(tab + 1);
+                // The slot may have been written again after the index
+                if(slot >= 0 && slot < mSlotCount && mKeys[slot] == null
+                        && mBuffer.getLong(slot * mSlotSize) == hash(key)){
+                    mKeys[slot] = key;
+                    mSlots.put(key, slot);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "readIndex - " + e);
+        } finally {
+            DiskLruCache.closeQuietly(reader);
+        }
+    }
+
+    private void writeIndex() throws IOException{
+        final File tmp = new File(mIndexFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(tmp));
+            writer.write(getIndexHeader());
+            writer.write('\n');
+            for(int slot = 0; slot < mSlotCount; slot++){
+                if(mKeys[slot] != null){
+                    writer.write(slot + "\t" + mKeys[slot] + "\n");
+                }
+            }
+            writer.close();
+            writer = null;
+            if(!tmp.renameTo(mIndexFile)){
+                throw new IOException("writeIndex - can't rename " + tmp);
+            }
+        } finally {
+            DiskLruCache.closeQuietly(writer);
+        }
+    }
+
+    private String getIndexHeader(){
+        return INDEX_MAGIC + " " + INDEX_VERSION + " " + mWidth + " " + mHeight + " " + mSlotCount;
+    }
+
+    /**
+     * @param key
+     * @return The 64 bit FNV-1a hash of the key, never 0
+     */
+    private static long hash(String key){
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++){
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash != 0 ? hash : 1;
+    }
+}
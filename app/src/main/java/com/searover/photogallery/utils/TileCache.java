@@ -0,0 +1,135 @@
+package com.searover.photogallery.utils;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.util.LinkedList;
+
+/**
+ * A byte bounded LRU cache of decoded tiles for the deep zoom viewer. Tiles are keyed by their
+ * sample level, column and row (see {@link #key(int, int, int)}), so tiles of every zoom level
+ * of one image can share the cache and the least recently drawn ones go first whatever their
+ * level.
+ *
+ * All tile bitmaps have the same size, so from JellyBean on an evicted tile's bitmap is kept in
+ * a small free list and decoded into again instead of allocating a new one. get / put / evict
+ * must be called on the UI thread (the thread that draws the tiles), so a tile can never be
+ * evicted and re-used while it is being drawn. {@link #obtainBitmap()} may be called from the
+ * decoding thread.
+ */
+public class TileCache {
+    private static final String TAG = "TileCache";
+
+    // Evicted bitmaps kept for re-use, a few rows worth of tiles
+    private static final int MAX_FREE_BITMAPS = 8;
+
+    private final int mTileSize;
+    private final LruCache<Long, Tile> mTiles;
+    private final LinkedList<Bitmap> mFreeBitmaps = new LinkedList<Bitmap>();
+
+    /**
+     * A decoded tile. The bitmap may be larger than the tile when it was decoded into a re-used
+     * bitmap, only the top left <code>width</code> x <code>height</code> pixels are valid.
+     */
+    public static class Tile{
+        public final Bitmap bitmap;
+        public final int width;
+        public final int height;
+
+        public Tile(Bitmap bitmap, int width, int height){
+            this.bitmap = bitmap;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * @param tileSize Size in pixels of a (square) tile
+     * @param maxBytes The maximum number of bytes of tiles held by the cache
+     */
+    public TileCache(int tileSize, int maxBytes){
+        mTileSize = tileSize;
+        mTiles = new LruCache<Long, Tile>(maxBytes){
+            @Override
+            protected int sizeOf(Long key, Tile value){
+                return BitmapPool.getBitmapByteCount(value.bitmap);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Tile oldValue, Tile newValue){
+                releaseBitmap(oldValue.bitmap);
+            }
+        };
+    }
+
+    /**
+     * Pack the position of a tile into a cache key.
+     * @param level log2 of the sample size the tile was decoded with
+     * @param column
+     * @param row
+     * @return
+     */
+    public static long key(int level, int column, int row){
+        return ((long) level << 56) | ((long) row << 28) | column;
+    }
+
+    public int getTileSize(){
+        return mTileSize;
+    }
+
+    public Tile get(long key){
+        return mTiles.get(key);
+    }
+
+    public void put(long key, Tile tile){
+        mTiles.put(key, tile);
+    }
+
+    /**
+     * Drop all tiles, for example when another image is shown.
+     */
+    public void evictAll(){
+        mTiles.evictAll();
+        synchronized (mFreeBitmaps){
+            for (Bitmap bitmap : mFreeBitmaps){
+                bitmap.recycle();
+            }
+            mFreeBitmaps.clear();
+        }
+    }
+
+    /**
+     * @return A bitmap of an evicted tile to decode into, or null if there is none
+     */
+    public Bitmap obtainBitmap(){
+        synchronized (mFreeBitmaps){
+            return mFreeBitmaps.poll();
+        }
+    }
+
+    /**
+     * Hand back a bitmap obtained from {@link #obtainBitmap()} that ended up not being used.
+     * @param bitmap
+     */
+    public void releaseBitmap(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled()){
+            return;
+        }
+        if(Utils.hasJellyBean() && bitmap.isMutable()
+                && bitmap.getWidth() == mTileSize && bitmap.getHeight() == mTileSize){
+            synchronized (mFreeBitmaps){
+                if(mFreeBitmaps.size() < MAX_FREE_BITMAPS){
+                    mFreeBitmaps.add(bitmap);
+                    return;
+                }
+            }
+        }
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "Recycling tile bitmap " + bitmap);
+        }
+        bitmap.recycle();
+    }
+}
@@ -0,0 +1,238 @@
+package com.searover.photogallery.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.searover.photogallery.BuildConfig;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes square tiles of a large image with {@link BitmapRegionDecoder}, so only the part of
+ * the original that is on screen is ever decoded, at the sample size that matches the zoom.
+ * A tile at level <code>n</code> covers <code>tileSize * 2^n</code> pixels of the original and is
+ * decoded with an inSampleSize of <code>2^n</code>, so every tile bitmap has the same size.
+ *
+ * Tiles are decoded one at a time on a background thread in the order of the last call to
+ * {@link #request(List)}, which replaces whatever was still waiting, so tiles that scrolled out
+ * of view are never decoded. Results are delivered on the UI thread.
+ */
+public class TileDecoder {
+    private static final String TAG = "TileDecoder";
+
+    // BitmapRegionDecoder serializes decodes internally, so one thread is all that helps
+    private static final Executor TILE_EXECUTOR =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "TileDecoder");
+                }
+            });
+
+    private final BitmapRegionDecoder mDecoder;
+    private final TileCache mCache;
+    private final OnTileDecodedListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by mPending
+    private final LinkedList<Long> mPending = new LinkedList<Long>();
+    private final Set<Long> mDecoding = new HashSet<Long>();
+    private boolean mDrainScheduled;
+    private boolean mRecycled;
+
+    public interface OnTileDecodedListener{
+        /**
+         * Called on the UI thread with a tile that was requested, the listener owns the tile.
+         * @param key
+         * @param tile
+         */
+        void onTileDecoded(long key, TileCache.Tile tile);
+    }
+
+    /**
+     * @param fileDescriptor The original image, it has to stay open until {@link #recycle()}
+     * @param cache Cache whose free bitmaps are decoded into
+     * @param listener
+     * @throws IOException If the image can't be read or isn't a JPEG or PNG
+     */
+    public TileDecoder(FileDescriptor fileDescriptor, TileCache cache,
+                       OnTileDecodedListener listener) throws IOException{
+        mDecoder = BitmapRegionDecoder.newInstance(fileDescriptor, false);
+        mCache = cache;
+        mListener = listener;
+    }
+
+    public int getWidth(){
+        return mDecoder.getWidth();
+    }
+
+    public int getHeight(){
+        return mDecoder.getHeight();
+    }
+
+    /**
+     * Decode the whole image at a size no larger than <code>maxSize</code> on either side, to be
+     * drawn while the tiles load. Must not be called on the UI thread.
+     * @param maxSize
+     * @return The preview or null if it couldn't be decoded
+     */
+    public Bitmap decodePreview(int maxSize){
+        int sampleSize = 1;
+        while (getWidth() / sampleSize > maxSize || getHeight() / sampleSize > maxSize){
+            sampleSize *= 2;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            return mDecoder.decodeRegion(new Rect(0, 0, getWidth(), getHeight()), options);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "decodePreview - " + e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "decodePreview - " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Replace the tiles waiting to be decoded. Tiles already being decoded are skipped.
+     * @param keys Tile keys (see {@link TileCache#key(int, int, int)}), most important first
+     */
+    public void request(List<Long> keys){
+        synchronized (mPending){
+            if(mRecycled){
+                return;
+            }
+            mPending.clear();
+            for (Long key : keys){
+                if(!mDecoding.contains(key)){
+                    mPending.add(key);
+                }
+            }
+            if(!mPending.isEmpty() && !mDrainScheduled){
+                mDrainScheduled = true;
+                TILE_EXECUTOR.execute(mDrain);
+            }
+        }
+    }
+
+    /**
+     * Stop decoding and release the decoder once the tile in progress is done. Must be called
+     * on the UI thread, no tiles are delivered afterwards.
+     */
+    public void recycle(){
+        synchronized (mPending){
+            mRecycled = true;
+            mPending.clear();
+        }
+        TILE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.recycle();
+            }
+        });
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            while (true){
+                final Long key;
+                synchronized (mPending){
+                    key = mPending.poll();
+                    if(key == null || mRecycled){
+                        mDrainScheduled = false;
+                        return;
+                    }
+                    mDecoding.add(key);
+                }
+                final TileCache.Tile tile = decodeTile(key);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        final boolean recycled;
+                        synchronized (mPending){
+                            mDecoding.remove(key);
+                            recycled = mRecycled;
+                        }
+                        if(tile == null){
+                            return;
+                        }
+                        if(recycled){
+                            mCache.releaseBitmap(tile.bitmap);
+                        }else {
+                            mListener.onTileDecoded(key, tile);
+                        }
+                    }
+                });
+            }
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private TileCache.Tile decodeTile(long key){
+        final int level = (int) (key >>> 56);
+        final int row = (int) ((key >>> 28) & 0xFFFFFFF);
+        final int column = (int) (key & 0xFFFFFFF);
+        final int sampleSize = 1 << level;
+        final int tileSize = mCache.getTileSize();
+        final int extent = tileSize * sampleSize;
+
+        final Rect region = new Rect(column * extent, row * extent,
+                Math.min(getWidth(), (column + 1) * extent),
+                Math.min(getHeight(), (row + 1) * extent));
+        if(region.width() <= 0 || region.height() <= 0){
+            return null;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap reuse = null;
+        if(Utils.hasJellyBean()){
+            // Decode into a full size tile bitmap so it can be re-used for any other tile
+            reuse = mCache.obtainBitmap();
+            if(reuse == null){
+                reuse = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.RGB_565);
+            }
+            options.inBitmap = reuse;
+        }
+        try {
+            final Bitmap bitmap = mDecoder.decodeRegion(region, options);
+            if(bitmap != null){
+                if(bitmap != reuse){
+                    mCache.releaseBitmap(reuse);
+                }
+                final int width = Math.min(bitmap.getWidth(),
+                        (region.width() + sampleSize - 1) / sampleSize);
+                final int height = Math.min(bitmap.getHeight(),
+                        (region.height() + sampleSize - 1) / sampleSize);
+                return new TileCache.Tile(bitmap, width, height);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "decodeTile - " + e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "decodeTile - " + e);
+        }
+        mCache.releaseBitmap(reuse);
+        if(BuildConfig.DEBUG){
+            Log.d(TAG, "decodeTile - failed for level " + level + " " + column + "," + row);
+        }
+        return null;
+    }
+}